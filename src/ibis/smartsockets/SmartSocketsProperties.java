@@ -65,6 +65,36 @@ public final class SmartSocketsProperties {
     public static final String DETAILED_EXCEPTIONS =
             PREFIX + "detailed.exceptions";
 
+    /**
+     * Should the VirtualSocketFactory remember which module worked for a
+     * target, and try this module first in the next connection setup ? Not
+     * used if smartsockets.cluster.reorder is false. (true)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String CONNECT_CACHE = PREFIX + "connectcache";
+
+    /**
+     * Time in milliseconds after which an entry in the connect cache
+     * expires. (600000)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String CONNECT_CACHE_TTL = PREFIX + "connectcache.ttl";
+
+    /**
+     * Maximum number of entries in the connect cache. (1000)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String CONNECT_CACHE_SIZE =
+            PREFIX + "connectcache.size";
+
+    /**
+     * File in which the connect cache is stored, so it can be reused by later
+     * runs. (not set)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String CONNECT_CACHE_FILE =
+            PREFIX + "connectcache.file";
+
     /**
      * Should the DirectSocketFactory create NIO sockets ? (false)
     * @see ibis.smartsockets.direct.DirectSocketFactory
@@ -264,6 +294,37 @@ public final class SmartSocketsProperties {
      */
     public static final String HUB_ADDRESS_FILE = HUB_PREFIX + "addressfile";
 
+    /**
+     * Engine used by the hub to handle its connections. Either "blocking"
+     * (a thread per connection) or "nio" (a few selector threads).
+     * (blocking)
+     * @see ibis.smartsockets.hub.Hub
+     */
+    public static final String HUB_ENGINE = HUB_PREFIX + "engine";
+
+    /**
+     * Number of selector threads used by the "nio" hub engine. (number of
+     * processors)
+     * @see ibis.smartsockets.hub.Hub
+     */
+    public static final String HUB_ENGINE_THREADS = HUB_PREFIX + "engine.threads";
+
+    /**
+     * Should the hubs only gossip the changes in their state instead of the
+     * complete state ? The changes are only sent to hubs that announce they
+     * accept them, so hubs using different settings (or older versions) can
+     * be mixed. (true)
+     * @see ibis.smartsockets.hub.Hub
+     */
+    public static final String HUB_DELTA_GOSSIP = HUB_PREFIX + "gossip.delta";
+
+    /**
+     * Number of TCP connections a hub creates to each hub it connects to. The
+     * virtual connections between the two hubs are spread over them. (1)
+     * @see ibis.smartsockets.hub.Hub
+     */
+    public static final String HUB_LINKS = HUB_PREFIX + "links";
+
     /** Prefix for all SmartSockets "sl" (service link) properties. */
     public static final String SL_PREFIX         = PREFIX + "servicelink.";
 
@@ -298,6 +359,23 @@ public final class SmartSocketsProperties {
      */
     public static final String SL_RETRIES = SL_PREFIX + "retries";
 
+    /**
+     * Number of additional connections to the hub that carry the virtual
+     * (hubrouted) connections. When set, the servicelink itself only carries
+     * the control traffic. (0)
+     * @see ibis.smartsockets.hub.servicelink.ServiceLink
+     */
+    public static final String SL_DATA_LINKS = SL_PREFIX + "datalinks";
+
+    /**
+     * Should the servicelink cache the information it gets from the hub (such
+     * as the list of clients)? The hub tells the servicelink when this
+     * information changes. Nothing is cached for hubs that do not support
+     * this. (true)
+     * @see ibis.smartsockets.hub.servicelink.ServiceLink
+     */
+    public static final String SL_CACHE = SL_PREFIX + "cache";
+
     /** Prefix for all SmartSockets "viz" (visualization) properties. */
     public static final String VIZ_PREFIX           = PREFIX + "viz.";
 
@@ -331,6 +409,15 @@ public final class SmartSocketsProperties {
      */
     public static final String MODULES_SKIP = MODULES_PREFIX + "skip";
 
+    /**
+     * Time in milliseconds after which the VirtualSocketFactory starts a
+     * connection attempt with the next module, while the previous attempts
+     * are still running. When set to 0, the modules are tried one after
+     * another. (0)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String MODULES_STAGGER = MODULES_PREFIX + "stagger";
+
     /**
      * Prefix for all SmartSockets "modules.direct" properties.
      * @see ibis.smartsockets.direct.DirectSocketFactory
@@ -364,6 +451,15 @@ public final class SmartSocketsProperties {
     public static final String DIRECT_LOCAL_TIMEOUT =
             DIRECT_PREFIX + "timeout.local";
 
+    /**
+     * Time in milliseconds after which the DirectSocketFactory starts
+     * connecting to the next address of a target, while the connection attempts
+     * to the previous addresses are still running. When set to 0, the
+     * addresses are tried one after another. (0)
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String DIRECT_STAGGER = DIRECT_PREFIX + "stagger";
+
     /**
      * The size of the send buffer used for direct connections.
      * @see ibis.smartsockets.direct.DirectSocketFactory
@@ -472,6 +568,29 @@ public final class SmartSocketsProperties {
      */
     public static final String ROUTED_MIN_ACK = ROUTED_PREFIX + "size.ack";
 
+    /**
+     * Maximum number of fragments a virtual (hubrouted) connection sends to
+     * the hub in one go. (16)
+     * @see ibis.smartsockets.virtual.modules.hubrouted
+     */
+    public static final String ROUTED_BATCH = ROUTED_PREFIX + "size.batch";
+
+    /**
+     * Boolean: adapt the window of each virtual (hubrouted) connection to its
+     * round trip time and throughput. The buffer size is then used as the
+     * initial (and minimal) window. (false)
+     * @see ibis.smartsockets.virtual.modules.hubrouted
+     */
+    public static final String ROUTED_ADAPTIVE = ROUTED_PREFIX + "adaptive";
+
+    /**
+     * Maximum window of a virtual (hubrouted) connection when the window is
+     * adaptive (in bytes). (8388608)
+     * @see ibis.smartsockets.virtual.modules.hubrouted
+     */
+    public static final String ROUTED_MAX_BUFFER =
+            ROUTED_PREFIX + "size.buffer.max";
+
     /**
      * Prefix for all SmartSockets "networks" properties.
      * @see ibis.smartsockets.direct.NetworkPreference
@@ -681,6 +800,9 @@ public final class SmartSocketsProperties {
             HUB_STATISTICS,         "false",
             HUB_STATS_INTERVAL,     "60000",
             HUB_VIRTUAL_PORT,       "42",
+            HUB_ENGINE,             "blocking",
+            HUB_DELTA_GOSSIP,       "true",
+            HUB_LINKS,              "1",
 
             MODULES_DEFINE,         "direct,reverse,hubrouted",
             MODULES_ORDER,          "direct,reverse,hubrouted",
@@ -696,9 +818,14 @@ public final class SmartSocketsProperties {
             SL_FORCE,               "false",
             SL_TIMEOUT,             "10000",
             SL_RETRIES,             "6",
+            SL_DATA_LINKS,          "0",
+            SL_CACHE,               "true",
 
             ROUTED_BUFFER,          "65536",
-            ROUTED_FRAGMENT,        "8176"
+            ROUTED_FRAGMENT,        "8176",
+            ROUTED_BATCH,           "16",
+            ROUTED_ADAPTIVE,        "false",
+            ROUTED_MAX_BUFFER,      "8388608"
     };
 
     /**
@@ -4,6 +4,7 @@ import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.util.InetAddressCache;
 import ibis.smartsockets.util.NetworkUtils;
 import ibis.smartsockets.util.STUN;
+import ibis.smartsockets.util.ThreadPool;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.util.UPNP;
 
@@ -20,10 +21,13 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 
@@ -66,6 +70,8 @@ public class DirectSocketFactory {
 
     private final int DEFAULT_LOCAL_TIMEOUT;
 
+    private final int STAGGER;
+
     // private final TypedProperties properties;
 
     private final boolean USE_NIO;
@@ -124,6 +130,7 @@ public class DirectSocketFactory {
                 SmartSocketsProperties.DIRECT_TIMEOUT, 5000);
         DEFAULT_LOCAL_TIMEOUT = p.getIntProperty(
                 SmartSocketsProperties.DIRECT_LOCAL_TIMEOUT, 1000);
+        STAGGER = p.getIntProperty(SmartSocketsProperties.DIRECT_STAGGER, 0);
 
         boolean allowSSHIn = p.booleanProperty(SmartSocketsProperties.SSH_IN,
                 false);
@@ -816,8 +823,6 @@ public class DirectSocketFactory {
         }
 
         Socket s = null;
-        InputStream in = null;
-        OutputStream out = null;
 
         long start = 0;
 
@@ -851,6 +856,61 @@ public class DirectSocketFactory {
                         + " ms.");
             }
 
+            return finishConnection(sas, target, s, start, userOut, userIn,
+                    check);
+
+        } catch (FirewallException e) {
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to connect to "
+                        + NetworkUtils.ipToString(target.getAddress()) + ":"
+                        + target.getPort() + " after "
+                        + (System.currentTimeMillis() - start) + " ms. ("
+                        + timeout + ") due to simulated firewall. ", e);
+            }
+
+            // allowed
+            close(s, null, null);
+
+            throw e;
+
+        } catch (IOException e) {
+
+            /*
+             * logger.warn("Failed to connect to " +
+             * NetworkUtils.ipToString(target.getAddress()) + ":" +
+             * target.getPort() + " after " + (System.currentTimeMillis()-start) + "
+             * ms. (" + timeout + ") ", e);
+             */
+
+            close(s, null, null);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to directly connect to "
+                        + NetworkUtils.ipToString(target.getAddress()) + ":"
+                        + target.getPort() + " after "
+                        + (System.currentTimeMillis() - start) + " ms.", e);
+            } else if (logger.isInfoEnabled()) {
+                logger.info("Failed to directly connect to "
+                        + NetworkUtils.ipToString(target.getAddress()) + ":"
+                        + target.getPort() + " after "
+                        + (System.currentTimeMillis() - start) + " ms.");
+            }
+
+            throw e;
+        }
+    }
+
+    // Performs the handshake on a newly connected socket. Returns null if we
+    // are connected to the wrong machine.
+    private DirectSocket finishConnection(DirectSocketAddress sas,
+            InetSocketAddress target, Socket s, long start, byte[] userOut,
+            byte[] userIn, boolean check) throws IOException {
+
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
             s.setSoTimeout(5000);
 
             // Check if we are talking to the right machine...
@@ -894,44 +954,8 @@ public class DirectSocketFactory {
 
             return r;
 
-        } catch (FirewallException e) {
-
-            if (logger.isDebugEnabled()) {
-                logger.debug("Failed to connect to "
-                        + NetworkUtils.ipToString(target.getAddress()) + ":"
-                        + target.getPort() + " after "
-                        + (System.currentTimeMillis() - start) + " ms. ("
-                        + timeout + ") due to simulated firewall. ", e);
-            }
-
-            // allowed
-            close(s, out, in);
-
-            throw e;
-
         } catch (IOException e) {
-
-            /*
-             * logger.warn("Failed to connect to " +
-             * NetworkUtils.ipToString(target.getAddress()) + ":" +
-             * target.getPort() + " after " + (System.currentTimeMillis()-start) + "
-             * ms. (" + timeout + ") ", e);
-             */
-
             close(s, out, in);
-
-            if (logger.isDebugEnabled()) {
-                logger.debug("Failed to directly connect to "
-                        + NetworkUtils.ipToString(target.getAddress()) + ":"
-                        + target.getPort() + " after "
-                        + (System.currentTimeMillis() - start) + " ms.", e);
-            } else if (logger.isInfoEnabled()) {
-                logger.info("Failed to directly connect to "
-                        + NetworkUtils.ipToString(target.getAddress()) + ":"
-                        + target.getPort() + " after "
-                        + (System.currentTimeMillis() - start) + " ms.");
-            }
-
             throw e;
         }
     }
@@ -1702,6 +1726,13 @@ public class DirectSocketFactory {
 
         // System.out.println("loopOverOptions " + timeout);
 
+        if (STAGGER > 0 && user == null && localPort <= 0 && sas.length > 1) {
+            // Note: SSH tunnels and fixed local ports are always tried one at
+            // a time.
+            return connectInParallel(target, sas, timeout, sendBuffer,
+                    receiveBuffer, userOut, userIn, exceptions);
+        }
+
         DirectSocket result = null;
 
         int timeLeft = timeout;
@@ -1774,6 +1805,385 @@ public class DirectSocketFactory {
         return result;
     }
 
+    /**
+     * Connects to all addresses of a target at the same time, using
+     * non-blocking connects. The connect to the next address is started
+     * STAGGER ms. after the previous one, or immediately when all previous
+     * attempts have failed. Connections that are established are
+     * handshaked one at a time, in the order in which they were
+     * established, so the target never accepts more than one of them. The
+     * handshake runs on a separate thread, so the remaining connects are
+     * started and timed out while it is in progress. All other connections
+     * are closed.
+     */
+    private DirectSocket connectInParallel(DirectSocketAddress target,
+            InetSocketAddress[] sas, int timeout, int sendBuffer,
+            int receiveBuffer, byte[] userOut, byte[] userIn,
+            LinkedList<NestedIOExceptionData> exceptions)
+            throws FirewallException {
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+
+        SocketChannel[] channels = new SocketChannel[sas.length];
+        long[] started = new long[sas.length];
+        long[] deadlines = new long[sas.length];
+
+        // The connections that are waiting for their handshake.
+        LinkedList<Integer> connected = new LinkedList<Integer>();
+
+        ParallelHandshake handshake = null;
+
+        Selector selector = null;
+
+        int next = 0;
+        int pending = 0;
+        long nextStart = start;
+
+        try {
+            selector = Selector.open();
+
+            while (true) {
+
+                long now = System.currentTimeMillis();
+
+                if (now >= deadline) {
+                    break;
+                }
+
+                // Start the next connect(s) if it is time to do so, or if
+                // nothing else is in progress.
+                while (next < sas.length && (now >= nextStart
+                        || (pending == 0 && handshake == null
+                                && connected.isEmpty()))) {
+
+                    int i = next++;
+                    nextStart = now + STAGGER;
+
+                    boolean local = NetworkUtils.isLocalAddress(
+                            sas[i].getAddress());
+
+                    started[i] = now;
+                    deadlines[i] = deadline;
+
+                    if (local && now + DEFAULT_LOCAL_TIMEOUT < deadline) {
+                        // local networks get limited time!
+                        deadlines[i] = now + DEFAULT_LOCAL_TIMEOUT;
+                    }
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Starting connection to "
+                                + target.toString() + " using network "
+                                + NetworkUtils.saToString(sas[i]));
+                    }
+
+                    try {
+                        SocketChannel channel = SocketChannel.open();
+                        channels[i] = channel;
+
+                        Socket tmp = channel.socket();
+                        tmp.setReuseAddress(true);
+                        tuneSocket(tmp, sendBuffer, receiveBuffer);
+
+                        channel.configureBlocking(false);
+
+                        if (channel.connect(sas[i])) {
+                            // Connected immediately (i.e., on the same machine)
+                            if (logger.isInfoEnabled()) {
+                                logger.info("Established connection to "
+                                        + target.toString() + " using network "
+                                        + NetworkUtils.saToString(sas[i])
+                                        + " in 0 ms.");
+                            }
+
+                            channel.configureBlocking(true);
+                            connected.add(i);
+                        } else {
+                            channel.register(selector, SelectionKey.OP_CONNECT,
+                                    Integer.valueOf(i));
+                            pending++;
+                        }
+                    } catch (IOException e) {
+                        failParallel(sas, channels, i, started[i], e,
+                                exceptions);
+                    }
+                }
+
+                // Collect the result of the handshake, if it has finished.
+                if (handshake != null && handshake.done()) {
+
+                    ParallelHandshake h = handshake;
+                    handshake = null;
+
+                    if (h.getResult() != null) {
+                        return h.getResult();
+                    }
+
+                    IOException e = h.getException();
+
+                    if (e instanceof FirewallException) {
+                        throw (FirewallException) e;
+                    }
+
+                    if (e != null) {
+                        int i = h.index;
+
+                        exceptions.add(new NestedIOExceptionData(
+                                "Connection setup to "
+                                + NetworkUtils.saToString(sas[i])
+                                + " failed after "
+                                + (System.currentTimeMillis() - started[i])
+                                + " ms. (address " + i + " of " + sas.length
+                                + ", parallel)", e));
+                    }
+                }
+
+                // Start the next handshake if there is none in progress.
+                if (handshake == null && !connected.isEmpty()) {
+
+                    int i = connected.removeFirst();
+
+                    handshake = new ParallelHandshake(selector, target, sas,
+                            channels[i], i, started[i], userOut, userIn);
+
+                    // The handshake owns the channel from now on.
+                    channels[i] = null;
+
+                    ThreadPool.createNew(handshake, "ParallelHandshake "
+                            + NetworkUtils.saToString(sas[i]));
+                }
+
+                if (pending == 0 && next == sas.length && handshake == null) {
+                    // All attempts have failed.
+                    break;
+                }
+
+                // Wait until a connect or the handshake finishes, the next
+                // connect must be started, or the first attempt times out.
+                long wakeup = deadline;
+
+                if (next < sas.length) {
+                    wakeup = Math.min(wakeup, nextStart);
+                }
+
+                for (int i = 0; i < next; i++) {
+                    if (channels[i] != null && !connected.contains(i)) {
+                        wakeup = Math.min(wakeup, deadlines[i]);
+                    }
+                }
+
+                long wait = wakeup - now;
+
+                if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+                while (it.hasNext()) {
+
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    int i = ((Integer) key.attachment()).intValue();
+
+                    try {
+                        if (!channels[i].finishConnect()) {
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        pending--;
+                        failParallel(sas, channels, i, started[i], e,
+                                exceptions);
+                        continue;
+                    }
+
+                    pending--;
+
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Established connection to "
+                                + target.toString() + " using network "
+                                + NetworkUtils.saToString(sas[i]) + " in "
+                                + (System.currentTimeMillis() - started[i])
+                                + " ms.");
+                    }
+
+                    // The handshake is done using blocking streams, so the
+                    // channel must be removed from the selector first.
+                    key.cancel();
+                    selector.selectNow();
+
+                    try {
+                        channels[i].configureBlocking(true);
+                        connected.add(i);
+                    } catch (IOException e) {
+                        failParallel(sas, channels, i, started[i], e,
+                                exceptions);
+                    }
+                }
+
+                // Give up on the connects that took too long.
+                now = System.currentTimeMillis();
+
+                for (int i = 0; i < next; i++) {
+                    if (channels[i] != null && !connected.contains(i)
+                            && now >= deadlines[i]) {
+                        pending--;
+                        failParallel(sas, channels, i, started[i],
+                                new SocketTimeoutException("connect timed out"),
+                                exceptions);
+                    }
+                }
+            }
+
+        } catch (FirewallException e) {
+            throw e;
+        } catch (IOException e) {
+            // Failed to create or use the selector.
+            exceptions.add(new NestedIOExceptionData("Parallel connection "
+                    + "setup to " + target.toString() + " failed", e));
+        } finally {
+            if (handshake != null) {
+                handshake.abandon();
+            }
+
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] != null) {
+                    close(channels[i].socket(), null, null);
+                }
+            }
+
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Direct connection failed: "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+
+        return null;
+    }
+
+    // The handshake on a channel that connected in a parallel connection
+    // setup. It wakes up the selector of the connection setup when it is done.
+    private final class ParallelHandshake implements Runnable {
+
+        private final Selector selector;
+        private final DirectSocketAddress target;
+        private final InetSocketAddress sa;
+        private final SocketChannel channel;
+        private final long start;
+        private final byte[] userOut;
+        private final byte[] userIn;
+
+        final int index;
+
+        private DirectSocket result;
+        private IOException exception;
+
+        private boolean done = false;
+        private boolean abandoned = false;
+
+        ParallelHandshake(Selector selector, DirectSocketAddress target,
+                InetSocketAddress[] sas, SocketChannel channel, int index,
+                long start, byte[] userOut, byte[] userIn) {
+
+            this.selector = selector;
+            this.target = target;
+            this.sa = sas[index];
+            this.channel = channel;
+            this.index = index;
+            this.start = start;
+            this.userOut = userOut;
+            this.userIn = userIn;
+        }
+
+        public void run() {
+
+            DirectSocket r = null;
+            IOException e = null;
+
+            try {
+                r = finishConnection(target, sa, channel.socket(), start,
+                        userOut, userIn,
+                        NetworkUtils.isLocalAddress(sa.getAddress()));
+            } catch (IOException x) {
+                close(channel.socket(), null, null);
+                e = x;
+            }
+
+            synchronized (this) {
+                if (abandoned) {
+                    // The connection setup has given up on us.
+                    if (r != null) {
+                        close(r, null, null);
+                    }
+                    return;
+                }
+
+                result = r;
+                exception = e;
+                done = true;
+
+                selector.wakeup();
+            }
+        }
+
+        synchronized boolean done() {
+            return done;
+        }
+
+        synchronized DirectSocket getResult() {
+            return result;
+        }
+
+        synchronized IOException getException() {
+            return exception;
+        }
+
+        // Called when the connection setup returns without using the result.
+        // Closes the connection, which also ends a handshake in progress.
+        synchronized void abandon() {
+
+            abandoned = true;
+
+            if (result != null) {
+                close(result, null, null);
+            } else if (!done) {
+                close(channel.socket(), null, null);
+            }
+        }
+    }
+
+    private void failParallel(InetSocketAddress[] sas, SocketChannel[] channels,
+            int i, long start, IOException e,
+            LinkedList<NestedIOExceptionData> exceptions) {
+
+        if (channels[i] != null) {
+            close(channels[i].socket(), null, null);
+            channels[i] = null;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Failed to directly connect to "
+                    + NetworkUtils.saToString(sas[i]) + " after "
+                    + (System.currentTimeMillis() - start) + " ms.", e);
+        }
+
+        exceptions.add(new NestedIOExceptionData("Connection setup to "
+                + NetworkUtils.saToString(sas[i]) + " failed after "
+                + (System.currentTimeMillis() - start) + " ms. (address " + i
+                + " of " + sas.length + ", parallel)", e));
+    }
+
     public DirectServerSocket createServerSocket(int port, int backlog, Map<String, Object> prop)
             throws IOException {
         return createServerSocket(port, backlog, -1, prop);
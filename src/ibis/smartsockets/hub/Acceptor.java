@@ -7,8 +7,12 @@ import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.hub.connections.ClientConnection;
+import ibis.smartsockets.hub.connections.ClientDataConnection;
 import ibis.smartsockets.hub.connections.HubConnection;
+import ibis.smartsockets.hub.connections.HubDataConnection;
+import ibis.smartsockets.hub.connections.NIOEngine;
 import ibis.smartsockets.hub.connections.VirtualConnections;
+import ibis.smartsockets.hub.connections.Watches;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
 import ibis.smartsockets.hub.state.StateCounter;
@@ -50,18 +54,28 @@ public class Acceptor extends CommunicationThread {
 
     private final StatisticsCallback callback;
     private final long statisticsInterval;
+    private final boolean deltaGossip;
+
+    private final Watches watches;
 
     Acceptor(TypedProperties p, int port, StateCounter state,
             Connections connections, HubList knownProxies,
-            VirtualConnections vcs, DirectSocketFactory factory,
-            DirectSocketAddress delegationAddress, StatisticsCallback callback,
-            long statisticsInterval) throws IOException {
+            VirtualConnections vcs, Watches watches,
+            DirectSocketFactory factory, DirectSocketAddress delegationAddress,
+            StatisticsCallback callback, long statisticsInterval,
+            NIOEngine engine) throws IOException {
+
+        super("HubAcceptor", state, connections, knownProxies, vcs, factory,
+                engine);
 
-        super("HubAcceptor", state, connections, knownProxies, vcs, factory);
+        this.watches = watches;
 
         this.callback = callback;
         this.statisticsInterval = statisticsInterval;
 
+        deltaGossip = p.booleanProperty(
+                SmartSocketsProperties.HUB_DELTA_GOSSIP, true);
+
         if (delegationAddress == null) {
             sendBuffer = p.getIntProperty(SmartSocketsProperties.HUB_SEND_BUFFER, -1);
             receiveBuffer = p.getIntProperty(SmartSocketsProperties.HUB_RECEIVE_BUFFER, -1);
@@ -78,9 +92,13 @@ public class Acceptor extends CommunicationThread {
     }
 
     private boolean handleIncomingHubConnect(DirectSocket s,
-            DataInputStream in, DataOutputStream out) throws IOException {
+            DataInputStream in, DataOutputStream out, boolean extended)
+        throws IOException {
 
         String otherAsString = in.readUTF();
+
+        // Hubs that use the old request do not support any extensions.
+        int capabilities = extended ? in.readInt() : 0;
         DirectSocketAddress addr =
             DirectSocketAddress.getByAddress(otherAsString);
 
@@ -93,8 +111,10 @@ public class Acceptor extends CommunicationThread {
 
         HubConnection c = new HubConnection(s, in, out, d, connections,
                 knownHubs, state, virtualConnections, false, callback,
-                statisticsInterval);
+                statisticsInterval, deltaGossip);
 
+        // The connection is not ready until the reply has been sent, so
+        // other threads (such as the gossip) will not use it yet.
         if (!d.createConnection(c)) {
             // There already was a connection with this hub...
             if (hconlogger.isInfoEnabled()) {
@@ -104,23 +124,78 @@ public class Acceptor extends CommunicationThread {
             out.write(ConnectionProtocol.CONNECTION_REFUSED);
             out.flush();
             return false;
-        } else {
-            // We just created a connection to this hub.
-            if (hconlogger.isInfoEnabled()) {
-                hconlogger.info("Incoming connection from hub " + addr
-                       + " accepted (hubs = " + connections.numberOfHubs()
-                       + ", clients = " + connections.numberOfClients() + ")");
-            }
+        }
+
+        // We just created a connection to this hub.
+        if (hconlogger.isInfoEnabled()) {
+            hconlogger.info("Incoming connection from hub " + addr
+                   + " accepted (hubs = " + connections.numberOfHubs()
+                   + ", clients = " + connections.numberOfClients() + ")");
+        }
 
+        try {
             out.write(ConnectionProtocol.CONNECTION_ACCEPTED);
+
+            if (extended) {
+                out.writeInt(ConnectionProtocol.HUB_CAPABILITIES);
+            }
+
             out.flush();
+        } catch (IOException e) {
+            d.removeConnection();
+            c.setFailed();
+            throw e;
+        }
 
-            // Now activate it.
-            c.activate();
+        // Now activate it.
+        startConnection(c);
+        c.setReady(capabilities);
 
-            connections.put(addr, c);
-            return true;
+        connections.put(addr, c);
+
+        knownHubs.getLocalDescription().addConnectedTo(d.hubAddressAsString);
+        return true;
+    }
+
+    private boolean handleIncomingHubDataConnect(DirectSocket s,
+            DataInputStream in, DataOutputStream out) throws IOException {
+
+        String other = in.readUTF();
+        int link = in.readInt();
+
+        DirectSocketAddress addr = DirectSocketAddress.getByAddress(other);
+
+        // A link can only be added to an existing connection.
+        HubConnection primary = connections.getHub(addr);
+
+        if (primary == null) {
+            if (hconlogger.isInfoEnabled()) {
+                hconlogger.info("Link " + link + " from " + addr
+                        + " refused, since there is no connection!");
+            }
+
+            out.write(ConnectionProtocol.CONNECTION_REFUSED);
+            out.flush();
+            return false;
         }
+
+        if (hconlogger.isInfoEnabled()) {
+            hconlogger.info("Incoming link " + link + " from hub " + addr
+                    + " accepted");
+        }
+
+        out.write(ConnectionProtocol.CONNECTION_ACCEPTED);
+        out.flush();
+
+        HubDataConnection c = new HubDataConnection(primary, link, s, in, out,
+                connections, knownHubs, virtualConnections, callback,
+                statisticsInterval);
+
+        primary.addLink(c);
+
+        startConnection(c);
+
+        return true;
     }
 
     private boolean handlePing(DirectSocket s,
@@ -132,11 +207,14 @@ public class Acceptor extends CommunicationThread {
     }
 
     private boolean handleServiceLinkConnect(DirectSocket s, DataInputStream in,
-            DataOutputStream out) {
+            DataOutputStream out, boolean extended) {
 
         try {
             String src = in.readUTF();
 
+            // Clients that use the old request do not support any extensions.
+            int capabilities = extended ? in.readInt() : 0;
+
             DirectSocketAddress srcAddr = DirectSocketAddress.getByAddress(src);
 
             if (connections.getClient(srcAddr) != null) {
@@ -159,11 +237,17 @@ public class Acceptor extends CommunicationThread {
 
             out.write(ConnectionProtocol.CONNECTION_ACCEPTED);
             out.writeUTF(getLocalAsString());
+
+            if (extended) {
+                out.writeInt(ConnectionProtocol.HUB_CAPABILITIES);
+            }
+
             out.flush();
 
             ClientConnection c = new ClientConnection(srcAddr, s, in, out,
-                    connections, knownHubs, virtualConnections, callback,
-                    statisticsInterval);
+                    connections, knownHubs, state, watches,
+                    virtualConnections, callback, statisticsInterval,
+                    capabilities);
 
             connections.put(srcAddr, c);
             knownHubs.getLocalDescription().addClient(srcAddr);
@@ -172,8 +256,59 @@ public class Acceptor extends CommunicationThread {
                 reglogger.info("Added client: " + src);
             }
 
-            // Finally activate the thread so it can handle incoming requests.
-            c.activate();
+            // Finally activate the connection so it can handle incoming
+            // requests.
+            startConnection(c);
+
+            return true;
+
+        } catch (IOException e) {
+            cconlogger.warn("Got exception while handling connect!", e);
+            DirectSocketFactory.close(s, out, in);
+        }
+
+        return false;
+    }
+
+    private boolean handleServiceLinkDataConnect(DirectSocket s,
+            DataInputStream in, DataOutputStream out) {
+
+        try {
+            String src = in.readUTF();
+            int link = in.readInt();
+
+            DirectSocketAddress srcAddr = DirectSocketAddress.getByAddress(src);
+
+            // A data link can only be added to an existing service link.
+            ClientConnection primary = connections.getClient(srcAddr);
+
+            if (primary == null) {
+                if (cconlogger.isDebugEnabled()) {
+                    cconlogger.debug("Data link " + link + " from " + src
+                            + " refused, since there is no service link!");
+                }
+
+                out.write(ConnectionProtocol.CONNECTION_REFUSED);
+                out.flush();
+                DirectSocketFactory.close(s, out, in);
+                return false;
+            }
+
+            if (cconlogger.isInfoEnabled()) {
+                 cconlogger.info("Incoming data link " + link + " from client "
+                         + src + " accepted");
+            }
+
+            out.write(ConnectionProtocol.CONNECTION_ACCEPTED);
+            out.flush();
+
+            ClientDataConnection c = new ClientDataConnection(primary, link, s,
+                    in, out, connections, knownHubs, virtualConnections,
+                    callback, statisticsInterval);
+
+            primary.addDataLink(c);
+
+            startConnection(c);
 
             return true;
 
@@ -230,13 +365,17 @@ public class Acceptor extends CommunicationThread {
                     new BufferedInputStream(s.getInputStream()));
 
             out = new DataOutputStream(
-                    new BufferedOutputStream(s.getOutputStream()));
+                    new BufferedOutputStream(getOutputStream(s)));
 
             int opcode = in.read();
 
             switch (opcode) {
             case ConnectionProtocol.HUB_CONNECT:
-                result = handleIncomingHubConnect(s, in, out);
+                result = handleIncomingHubConnect(s, in, out, false);
+                break;
+
+            case ConnectionProtocol.HUB_CONNECT_EXTENDED:
+                result = handleIncomingHubConnect(s, in, out, true);
                 break;
 
             case ConnectionProtocol.PING:
@@ -244,7 +383,19 @@ public class Acceptor extends CommunicationThread {
                 break;
 
             case ConnectionProtocol.SERVICELINK_CONNECT:
-                result = handleServiceLinkConnect(s, in, out);
+                result = handleServiceLinkConnect(s, in, out, false);
+                break;
+
+            case ConnectionProtocol.SERVICELINK_CONNECT_EXTENDED:
+                result = handleServiceLinkConnect(s, in, out, true);
+                break;
+
+            case ConnectionProtocol.SERVICELINK_DATA_CONNECT:
+                result = handleServiceLinkDataConnect(s, in, out);
+                break;
+
+            case ConnectionProtocol.HUB_DATA_CONNECT:
+                result = handleIncomingHubDataConnect(s, in, out);
                 break;
 
             case ConnectionProtocol.GET_SPLICE_INFO:
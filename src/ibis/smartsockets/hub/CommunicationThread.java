@@ -1,11 +1,17 @@
 package ibis.smartsockets.hub;
 
+import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.hub.connections.BaseConnection;
+import ibis.smartsockets.hub.connections.NIOEngine;
 import ibis.smartsockets.hub.connections.VirtualConnections;
 import ibis.smartsockets.hub.state.HubList;
 import ibis.smartsockets.hub.state.StateCounter;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,11 +36,14 @@ abstract class CommunicationThread implements Runnable {
     protected String localAsString;
     protected Thread thread;
 
+    // Only set when the hub uses the NIO engine.
+    private final NIOEngine engine;
+
     private boolean end = false;
 
     protected CommunicationThread(String name, StateCounter state,
             Connections connections, HubList knownHubs, VirtualConnections vcs,
-            DirectSocketFactory factory) {
+            DirectSocketFactory factory, NIOEngine engine) {
 
         this.name = name;
         this.state = state;
@@ -42,6 +51,7 @@ abstract class CommunicationThread implements Runnable {
         this.knownHubs = knownHubs;
         this.virtualConnections = vcs;
         this.factory = factory;
+        this.engine = engine;
     }
 
     protected void setLocal(DirectSocketAddress local) {
@@ -57,6 +67,24 @@ abstract class CommunicationThread implements Runnable {
         return localAsString;
     }
 
+    protected OutputStream getOutputStream(DirectSocket s) throws IOException {
+
+        if (engine == null) {
+            return s.getOutputStream();
+        }
+
+        return engine.getOutputStream(s);
+    }
+
+    protected void startConnection(BaseConnection c) {
+
+        if (engine == null) {
+            c.activate();
+        } else {
+            engine.activate(c);
+        }
+    }
+
     protected synchronized boolean getDone() {
         return end;
     }
@@ -12,4 +12,57 @@ public interface ConnectionProtocol {
     public static final byte PING                = 7;
     public static final byte GET_SPLICE_INFO     = 8;
 
+    public static final byte SERVICELINK_DATA_CONNECT = 9;
+    public static final byte HUB_DATA_CONNECT         = 10;
+
+    // Sent instead of HUB_CONNECT by hubs that announce the extensions of the
+    // protocol they support. The request and the CONNECTION_ACCEPTED reply
+    // are followed by an int containing CAPABILITY bits. Hubs that do not
+    // know this opcode close the connection, after which the old request is
+    // used.
+    public static final byte HUB_CONNECT_EXTENDED     = 11;
+
+    // Sent instead of SERVICELINK_CONNECT by clients that announce the
+    // extensions they support. The request and the CONNECTION_ACCEPTED reply
+    // (after the address of the hub) are followed by an int containing
+    // CAPABILITY bits. Again, old hubs close the connection instead.
+    public static final byte SERVICELINK_CONNECT_EXTENDED = 12;
+
+    // The peer accepts GOSSIP_DELTA and GOSSIP_RESYNC (see HubProtocol).
+    public static final int CAPABILITY_DELTA_GOSSIP   = 1;
+
+    // The peer answers PING_TIMED with a PONG (see HubProtocol).
+    public static final int CAPABILITY_TIMED_PING     = 2;
+
+    // The peer accepts CLIENT_MESSAGE (see MessageForwarderProtocol). Others
+    // only accept the old INFO_MESSAGE.
+    public static final int CAPABILITY_CLIENT_MESSAGE = 4;
+
+    // The hub accepts SUBSCRIBE_STATE (see ServiceLinkProtocol).
+    public static final int CAPABILITY_STATE          = 8;
+
+    // The hub accepts BROADCAST_MESSAGE (see MessageForwarderProtocol).
+    public static final int CAPABILITY_BROADCAST      = 16;
+
+    // The hub accepts WATCH and UNWATCH (see ServiceLinkProtocol).
+    public static final int CAPABILITY_WATCH          = 32;
+
+    // The peer accepts the metrics of hub links: GOSSIP_METRICS (see
+    // HubProtocol) for hubs, the metrics in the HUB_DETAILS reply (see
+    // HubInfo) for clients.
+    public static final int CAPABILITY_LINK_METRICS   = 64;
+
+    // The hub accepts CREATE_VIRTUAL_HOPS (see MessageForwarderProtocol).
+    public static final int CAPABILITY_VIRTUAL_HOPS   = 128;
+
+    // The capabilities of this hub.
+    public static final int HUB_CAPABILITIES = CAPABILITY_DELTA_GOSSIP
+        | CAPABILITY_TIMED_PING | CAPABILITY_CLIENT_MESSAGE | CAPABILITY_STATE
+        | CAPABILITY_BROADCAST | CAPABILITY_WATCH | CAPABILITY_LINK_METRICS
+        | CAPABILITY_VIRTUAL_HOPS;
+
+    // The capabilities of a client (see ServiceLink).
+    public static final int CLIENT_CAPABILITIES = CAPABILITY_CLIENT_MESSAGE
+        | CAPABILITY_LINK_METRICS;
+
 }
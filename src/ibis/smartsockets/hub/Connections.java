@@ -42,6 +42,19 @@ public class Connections {
         return (hubs.remove(a) != null);
     }
 
+    // Only removes the hub if it is still registered with connection c, so a
+    // stale connection cannot unregister the one that replaced it.
+    public synchronized boolean removeHub(DirectSocketAddress a,
+            HubConnection c) {
+
+        if (hubs.get(a) != c) {
+            return false;
+        }
+
+        hubs.remove(a);
+        return true;
+    }
+
     public synchronized MessageForwardingConnection getAny(
             DirectSocketAddress a) {
 
@@ -5,6 +5,8 @@ import ibis.smartsockets.direct.DirectSSHSocket;
 import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.hub.connections.HubConnection;
+import ibis.smartsockets.hub.connections.HubDataConnection;
+import ibis.smartsockets.hub.connections.NIOEngine;
 import ibis.smartsockets.hub.connections.VirtualConnections;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
@@ -32,53 +34,155 @@ class Connector extends CommunicationThread {
 
     private final StatisticsCallback callback;
     private final long statisticsInterval;
+    private final boolean deltaGossip;
+
+    // The number of TCP connections to create to each hub.
+    private final int links;
+
+    // Returned by sendConnect if the request was refused, or not understood.
+    private static final int REFUSED = -1;
+    private static final int OLD_HUB = -2;
 
     Connector(TypedProperties p, StateCounter state, Connections connections,
             HubList knownHubs, VirtualConnections vcs,
             DirectSocketFactory factory, StatisticsCallback callback,
-            long statisticsInterval) {
+            long statisticsInterval, NIOEngine engine) {
 
-        super("HubConnector", state, connections, knownHubs, vcs, factory);
+        super("HubConnector", state, connections, knownHubs, vcs, factory,
+                engine);
 
         this.callback = callback;
         this.statisticsInterval = statisticsInterval;
 
+        deltaGossip = p.booleanProperty(
+                SmartSocketsProperties.HUB_DELTA_GOSSIP, true);
+
         sendBuffer = p.getIntProperty(SmartSocketsProperties.HUB_SEND_BUFFER, -1);
         receiveBuffer = p.getIntProperty(SmartSocketsProperties.HUB_RECEIVE_BUFFER, -1);
         usercode = p.getIntProperty(SmartSocketsProperties.HUB_VIRTUAL_PORT, 42);
+        links = Math.max(1, p.getIntProperty(SmartSocketsProperties.HUB_LINKS, 1));
     }
 
-    private boolean sendConnect(DataOutputStream out, DataInputStream in)
-        throws IOException {
+    // Sends a connection request. Returns the capabilities of the peer if it
+    // accepts, REFUSED if it does not, or OLD_HUB if the peer does not
+    // understand the extended request.
+    private int sendConnect(DataOutputStream out, DataInputStream in,
+            boolean extended) throws IOException {
 
         if (hconlogger.isDebugEnabled()) {
             hconlogger.debug("Sending connection request");
         }
 
-        out.write(ConnectionProtocol.HUB_CONNECT);
-        out.writeUTF(localAsString);
+        if (extended) {
+            out.write(ConnectionProtocol.HUB_CONNECT_EXTENDED);
+            out.writeUTF(localAsString);
+            out.writeInt(ConnectionProtocol.HUB_CAPABILITIES);
+        } else {
+            out.write(ConnectionProtocol.HUB_CONNECT);
+            out.writeUTF(localAsString);
+        }
+
         out.flush();
 
-        int opcode = in.read();
+        int opcode;
+
+        try {
+            opcode = in.read();
+        } catch (IOException e) {
+            if (!extended) {
+                throw e;
+            }
+
+            // An old hub may reset the connection instead of closing it.
+            opcode = -1;
+        }
 
         switch (opcode) {
         case ConnectionProtocol.CONNECTION_ACCEPTED:
             if (hconlogger.isDebugEnabled()) {
                 hconlogger.debug("Connection request accepted");
             }
-            return true;
+            return extended ? in.readInt() : 0;
         case ConnectionProtocol.CONNECTION_REFUSED:
             if (hconlogger.isDebugEnabled()) {
                 hconlogger.debug("Connection request refused (duplicate)");
             }
-            return false;
+            return REFUSED;
+        case -1:
+            if (extended) {
+                if (hconlogger.isDebugEnabled()) {
+                    hconlogger.debug("Extended connection request not "
+                            + "understood, retrying with the old one");
+                }
+                return OLD_HUB;
+            }
+            return REFUSED;
         default:
             if (hconlogger.isDebugEnabled()) {
                 hconlogger.warn("Got unknown reply from proxy! ("
                         + opcode + ")");
             }
+            return REFUSED;
+        }
+    }
+
+    // Creates an additional link to the hub that 'c' is connected to. Returns
+    // false if it could not be created.
+    private boolean createLink(HubDescription d, HubConnection c, int link) {
+
+        DirectSocket s = null;
+        DataInputStream in = null;
+        DataOutputStream out = null;
+
+        try {
+            s = factory.createSocket(d.hubAddress, DEFAULT_TIMEOUT, 0,
+                    sendBuffer, receiveBuffer, null, false, usercode);
+
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(DEFAULT_TIMEOUT);
+
+            out = new DataOutputStream(
+                    new BufferedOutputStream(getOutputStream(s)));
+
+            in = new DataInputStream(
+                    new BufferedInputStream(s.getInputStream()));
+
+            out.write(ConnectionProtocol.HUB_DATA_CONNECT);
+            out.writeUTF(localAsString);
+            out.writeInt(link);
+            out.flush();
+
+            int opcode = in.read();
+
+            if (opcode != ConnectionProtocol.CONNECTION_ACCEPTED) {
+                if (hconlogger.isInfoEnabled()) {
+                    hconlogger.info("Link " + link + " to " + d.hubAddress
+                            + " refused (" + opcode + ")");
+                }
+
+                DirectSocketFactory.close(s, out, in);
+                return false;
+            }
+
+            s.setSoTimeout(0);
+
+        } catch (IOException e) {
+            if (hconlogger.isInfoEnabled()) {
+                hconlogger.info("Failed to create link " + link + " to "
+                        + d.hubAddress, e);
+            }
+
+            DirectSocketFactory.close(s, out, in);
             return false;
         }
+
+        HubDataConnection l = new HubDataConnection(c, link, s, in, out,
+                connections, knownHubs, virtualConnections, callback,
+                statisticsInterval);
+
+        c.addLink(l);
+        startConnection(l);
+        return true;
     }
 
     private void testConnection(HubDescription d) {
@@ -136,11 +240,22 @@ class Connector extends CommunicationThread {
 
     private void createConnection(HubDescription d) {
 
+        // Hubs that do not know the extended request close the connection, so
+        // we have to try again with the old request.
+        if (!createConnection(d, true)) {
+            createConnection(d, false);
+        }
+    }
+
+    // Returns false if the peer did not understand the extended request.
+    private boolean createConnection(HubDescription d, boolean extended) {
+
         DirectSocket s = null;
         DataInputStream in = null;
         DataOutputStream out = null;
         boolean result = false;
         HubConnection c = null;
+        int capabilities = REFUSED;
 
         // Creates a connection to a newly discovered proxy. Note that there is
         // a very nice race condition here, since the target proxy may be doing
@@ -172,7 +287,7 @@ class Connector extends CommunicationThread {
             }
 
             out = new DataOutputStream(
-                    new BufferedOutputStream(s.getOutputStream()));
+                    new BufferedOutputStream(getOutputStream(s)));
 
             in = new DataInputStream(
                     new BufferedInputStream(s.getInputStream()));
@@ -201,8 +316,10 @@ class Connector extends CommunicationThread {
 
                 c = new HubConnection(s, in, out, d, connections,
                         knownHubs, state, virtualConnections, true,
-                        callback, statisticsInterval);
+                        callback, statisticsInterval, deltaGossip);
 
+                // The connection is not ready until the peer has accepted,
+                // so other threads (such as the gossip) will not use it yet.
                 result = d.createConnection(c);
 
                 if (!result) {
@@ -215,19 +332,32 @@ class Connector extends CommunicationThread {
                     out.writeUTF(localAsString);
                     out.flush();
                 } else {
-                    result = sendConnect(out, in);
+                    result = false;
+
+                    try {
+                        capabilities = sendConnect(out, in, extended);
+                        result = capabilities >= 0;
+                    } finally {
+                        if (!result) {
+                            // Release the 'lock' again, or we will refuse
+                            // all connections from this hub.
+                            d.removeConnection();
+                            c.setFailed();
+                        }
+                    }
                 }
             } else {
                 if (hconlogger.isDebugEnabled()) {
                     hconlogger.debug("I am slave during connection setup");
                 }
 
-                result = sendConnect(out, in);
+                capabilities = sendConnect(out, in, extended);
+                result = capabilities >= 0;
 
                 if (result) {
                     c = new HubConnection(s, in, out, d, connections,
                             knownHubs, state, virtualConnections, false,
-                            callback, statisticsInterval);
+                            callback, statisticsInterval, deltaGossip);
                     result = d.createConnection(c);
 
                     if (!result) {
@@ -241,14 +371,6 @@ class Connector extends CommunicationThread {
             s.setSoTimeout(0);
 
             d.setReachable();
-
-            String name = d.hubAddressAsString;
-
-            if (s instanceof DirectSSHSocket) {
-                name += " (SSH)";
-            }
-
-            knownHubs.getLocalDescription().addConnectedTo(name);
          } catch (IOException e) {
             // This happens a lot, so it's not worth a warning...
             if (hconlogger.isDebugEnabled()) {
@@ -267,7 +389,15 @@ class Connector extends CommunicationThread {
             }
 
             connections.put(d.hubAddress, c);
-            c.activate();
+            startConnection(c);
+            c.setReady(capabilities);
+
+            // The other side only needs to accept the additional links.
+            for (int i=1;i<links;i++) {
+                if (!createLink(d, c, i)) {
+                    break;
+                }
+            }
 
             String name = d.hubAddressAsString;
 
@@ -282,6 +412,8 @@ class Connector extends CommunicationThread {
             }
             DirectSocketFactory.close(s, out, in);
         }
+
+        return capabilities != OLD_HUB;
     }
 
     private void handleNewHub() {
@@ -5,9 +5,12 @@ import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.discovery.Discovery;
+import ibis.smartsockets.hub.connections.ClientConnection;
 import ibis.smartsockets.hub.connections.HubConnection;
 import ibis.smartsockets.hub.connections.MessageForwardingConnectionStatistics;
+import ibis.smartsockets.hub.connections.NIOEngine;
 import ibis.smartsockets.hub.connections.VirtualConnections;
+import ibis.smartsockets.hub.connections.Watches;
 import ibis.smartsockets.hub.state.ConnectionsSelector;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
@@ -26,7 +29,13 @@ import org.slf4j.LoggerFactory;
 
 public final class Hub extends Thread implements StatisticsCallback {
 
-    private static int GOSSIP_SLEEP = 3000;
+    // Time between gossip rounds if nothing changes. Only needed to repair
+    // any inconsistencies, since changes are gossiped right away.
+    private static int GOSSIP_SLEEP = 30000;
+
+    // Minimal time between two gossip rounds. Limits the gossip rate when the
+    // state is changing rapidly.
+    private static int GOSSIP_DELAY = 20;
 
     private static final int DEFAULT_DISCOVERY_PORT = 24545;
     private static final int DEFAULT_ACCEPT_PORT    = 17878;
@@ -45,9 +54,15 @@ public final class Hub extends Thread implements StatisticsCallback {
 
     private final Connections connections;
 
+    // The watches placed by our clients.
+    private final Watches watches;
+
     private final Acceptor acceptor;
     private final Connector connector;
 
+    // Only used if the hub is configured to use NIO.
+    private NIOEngine engine;
+
     private final StateCounter state = new StateCounter();
 
     private final Discovery discovery;
@@ -92,6 +107,20 @@ public final class Hub extends Thread implements StatisticsCallback {
                     + Arrays.deepToString(clusters));
         }
 
+        String engineType = p.getProperty(SmartSocketsProperties.HUB_ENGINE,
+                "blocking");
+
+        if (engineType.equals("nio")) {
+            // The NIO engine needs sockets that have a channel.
+            p.setProperty(SmartSocketsProperties.NIO, "true");
+
+            engine = new NIOEngine(
+                    p.getIntProperty(SmartSocketsProperties.HUB_ENGINE_THREADS, 0));
+        } else if (!engineType.equals("blocking")) {
+            throw new IOException("Unknown hub engine: \"" + engineType
+                    + "\"");
+        }
+
         DirectSocketFactory factory = DirectSocketFactory.getSocketFactory(p);
 
         // Create the hub list
@@ -126,11 +155,14 @@ public final class Hub extends Thread implements StatisticsCallback {
 
         // NOTE: These are not started until later. We first need to init the
         // rest of the world!
+        watches = new Watches(hubs);
+
         acceptor = new Acceptor(p, port, state, connections, hubs,
-                virtualConnections, factory, delegationAddress, this, 5000);
+                virtualConnections, watches, factory, delegationAddress, this,
+                5000, engine);
 
         connector = new Connector(p, state, connections, hubs,
-                virtualConnections, factory, this, 5000);
+                virtualConnections, factory, this, 5000, engine);
 
         DirectSocketAddress local = acceptor.getLocal();
         connector.setLocal(local);
@@ -302,6 +334,26 @@ public final class Hub extends Thread implements StatisticsCallback {
                 c.gossip();
             }
         }
+
+        notifyClients();
+    }
+
+    // Tells the clients that cache information about the hubs that our state
+    // has changed, and sends the changes in the clients they watch.
+    private void notifyClients() {
+
+        long current = state.get();
+
+        watches.update();
+
+        for (DirectSocketAddress a : connections.clients()) {
+
+            ClientConnection c = connections.getClient(a);
+
+            if (c != null) {
+                c.stateChanged(current);
+            }
+        }
     }
 
     public void delegateAccept(DirectSocket s) {
@@ -336,6 +388,10 @@ public final class Hub extends Thread implements StatisticsCallback {
         // Shut down the other threads....
         acceptor.end();
         connector.end();
+
+        if (engine != null) {
+            engine.end();
+        }
     }
 
     public void add(Statistics s) {
@@ -407,18 +463,64 @@ public final class Hub extends Thread implements StatisticsCallback {
         nextStats = now + STAT_FREQ;
     }
 
+    private synchronized long getNextStatistics() {
+
+        if (!printStatistics) {
+            return Long.MAX_VALUE;
+        }
+
+        return nextStats;
+    }
+
     public void run() {
 
+        // The state at the start of the last gossip round.
+        long gossipState = -1;
+        long lastGossip = 0;
+
         while (!getDone()) {
-            try {
-                if (goslogger.isInfoEnabled()) {
-                    goslogger.info("Sleeping for " + GOSSIP_SLEEP + " ms.");
+
+            long current = state.get();
+
+            long deadline;
+
+            if (current != gossipState) {
+                // Something changed, so gossip as soon as we are allowed to.
+                deadline = lastGossip + GOSSIP_DELAY;
+            } else {
+                deadline = lastGossip + GOSSIP_SLEEP;
+            }
+
+            long now = System.currentTimeMillis();
+
+            if (now < deadline) {
+
+                long wait = Math.min(deadline, getNextStatistics()) - now;
+
+                if (wait > 0) {
+                    try {
+                        if (current != gossipState) {
+                            Thread.sleep(wait);
+                        } else {
+                            if (goslogger.isDebugEnabled()) {
+                                goslogger.debug("Waiting for state change "
+                                        + "for at most " + wait + " ms.");
+                            }
+
+                            state.waitForChange(current, wait);
+                        }
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
                 }
-                Thread.sleep(GOSSIP_SLEEP);
-            } catch (InterruptedException e) {
-                // ignore
+
+                statistics();
+                continue;
             }
 
+            gossipState = current;
+            lastGossip = now;
+
             gossip();
             statistics();
         }
@@ -5,4 +5,28 @@ import ibis.smartsockets.hub.connections.MessageForwarderProtocol;
 public interface HubProtocol extends MessageForwarderProtocol {
 
     public static final byte GOSSIP = 20;
+
+    // Only contains the changes in a hub description since a previous state
+    // (or the complete description in binary form if the previous state is
+    // FULL_STATE).
+    public static final byte GOSSIP_DELTA = 21;
+
+    // Asks the peer to send the complete description of a hub, since the
+    // changes it sent could not be applied.
+    public static final byte GOSSIP_RESYNC = 22;
+
+    // Ping that carries a timestamp. The peer sends the timestamp back in a
+    // PONG, followed by the time (in nanoseconds) the ping spent at the peer,
+    // which allows us to measure the round trip time of the link.
+    public static final byte PING_TIMED = 23;
+    public static final byte PONG = 24;
+
+    // The metrics of the links of a hub (see LinkMetrics), which are gossiped
+    // separately from its description. Followed by the address of the hub,
+    // the state of its metrics, their number and the metrics themselves.
+    // Only sent to hubs with CAPABILITY_LINK_METRICS (see
+    // ConnectionProtocol).
+    public static final byte GOSSIP_METRICS = 25;
+
+    public static final long FULL_STATE = -1;
 }
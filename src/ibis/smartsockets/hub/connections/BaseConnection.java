@@ -10,13 +10,27 @@ import ibis.smartsockets.util.ThreadPool;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class BaseConnection implements Runnable {
 
     protected final DirectSocket s;
-    protected final DataInputStream in;
+
+    // NOTE: not final, since the NIO engine replaces this stream by one that
+    // reads from its own buffer once the connection is activated.
+    protected DataInputStream in;
     protected final DataOutputStream out;
 
+    // Only set when the connection is handled by the NIO engine. These give
+    // direct access to the buffer 'in' reads from, and to the channel 'out'
+    // writes to (writers must hold the lock on 'out').
+    NIOEngine.FrameInputStream frameIn;
+    volatile ChannelOutputStream channelOut;
+
+    // Used to copy data from 'in' if frameIn is not set.
+    private byte [] scratch;
+
     protected Connections connections;
 
     protected final HubList knownHubs;
@@ -24,6 +38,8 @@ public abstract class BaseConnection implements Runnable {
     protected final StatisticsCallback callback;
     protected final long statisticsInterval;
 
+    private long nextStatistics;
+
     protected BaseConnection(DirectSocket s, DataInputStream in,
             DataOutputStream out, Connections connections, HubList hubs,
             StatisticsCallback callback, long statisticsInterval) {
@@ -35,12 +51,39 @@ public abstract class BaseConnection implements Runnable {
         this.knownHubs = hubs;
         this.statisticsInterval = statisticsInterval;
         this.callback = callback;
+        this.nextStatistics = System.currentTimeMillis() + statisticsInterval;
     }
 
     public void activate() {
         ThreadPool.createNew(this, getName());
     }
 
+    // Reads exactly dst.remaining() bytes from 'in'.
+    protected void readFully(ByteBuffer dst) throws IOException {
+
+        if (frameIn != null) {
+            frameIn.readFully(dst);
+            return;
+        }
+
+        if (dst.hasArray()) {
+            in.readFully(dst.array(), dst.arrayOffset() + dst.position(),
+                    dst.remaining());
+            dst.position(dst.limit());
+            return;
+        }
+
+        if (scratch == null) {
+            scratch = new byte[8192];
+        }
+
+        while (dst.hasRemaining()) {
+            int len = Math.min(dst.remaining(), scratch.length);
+            in.readFully(scratch, 0, len);
+            dst.put(scratch, 0, len);
+        }
+    }
+
     public DirectSocketAddress getLocalHub() {
         return knownHubs.getLocalDescription().hubAddress;
     }
@@ -51,25 +94,33 @@ public abstract class BaseConnection implements Runnable {
 	return getLocalHub().sameProcess(sa);
     }
 
-    public void run() {
+    // Handles a single incoming message, and hands the statistics to the
+    // callback if it is time to do so. Returns false if the connection should
+    // no longer be serviced.
+    boolean handleNextMessage() {
 
-        boolean cont = true;
+        boolean cont = runConnection();
 
-        long next = System.currentTimeMillis() + statisticsInterval;
+        if (System.currentTimeMillis() > nextStatistics) {
 
-        while (cont) {
-            cont = runConnection();
+            Statistics s = getStatistics();
 
-            if (System.currentTimeMillis() > next) {
+            if (s != null && callback != null) {
+                callback.add(s);
+            }
 
-                Statistics s = getStatistics();
+            nextStatistics = System.currentTimeMillis() + statisticsInterval;
+        }
 
-                if (s != null && callback != null) {
-                    callback.add(s);
-                }
+        return cont;
+    }
 
-                next = System.currentTimeMillis() + statisticsInterval;
-            }
+    public void run() {
+
+        boolean cont = true;
+
+        while (cont) {
+            cont = handleNextMessage();
         }
 
         // NOTE: Do NOT close the socket here, since it may still be in use!
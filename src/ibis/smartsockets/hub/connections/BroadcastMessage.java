@@ -0,0 +1,319 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.util.MalformedAddressException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+/**
+ * A message for all clients with a given tag (see
+ * MessageForwarderProtocol.BROADCAST_MESSAGE).
+ *
+ * The message starts with the hops left and the hubs it must still reach.
+ * These are followed by the body: the source and source hub (in coded form),
+ * the tag, the id and name of the target module, the opcode and the message
+ * itself.
+ * The body never changes on the way, so the copies of a message that a hub
+ * sends to its neighbours all share the body it received. Only the list of
+ * hubs differs per copy.
+ *
+ * The module, opcode and message are in the same format as those of a
+ * CLIENT_MESSAGE, so the hub can simply copy them into the CLIENT_MESSAGEs
+ * it delivers to its own clients.
+ */
+final class BroadcastMessage {
+
+    private static final String MALFORMED = "Malformed broadcast message";
+
+    private final int hopsLeft;
+
+    // The hubs the message must still reach, or null if the source hub has
+    // not determined them yet.
+    private final DirectSocketAddress [] targets;
+
+    // The body, which starts at 'bodyOff' in 'data'.
+    private byte [] data;
+    private int bodyOff;
+
+    // The offsets of the source hub, tag, module and opcode in 'data'.
+    private int sourceHubOff;
+    private int tagOff;
+    private int moduleOff;
+    private int codeOff;
+
+    private BroadcastMessage(int hopsLeft, DirectSocketAddress [] targets,
+            byte [] data, int bodyOff) throws IOException {
+
+        this.hopsLeft = hopsLeft;
+        this.targets = targets;
+        this.data = data;
+        this.bodyOff = bodyOff;
+
+        parse();
+    }
+
+    // Returns a copy with different targets (and one hop less) that shares
+    // the body of this message.
+    private BroadcastMessage(BroadcastMessage other,
+            DirectSocketAddress [] targets) {
+
+        this.hopsLeft = other.hopsLeft - 1;
+        this.targets = targets;
+        this.data = other.data;
+        this.bodyOff = other.bodyOff;
+        this.sourceHubOff = other.sourceHubOff;
+        this.tagOff = other.tagOff;
+        this.moduleOff = other.moduleOff;
+        this.codeOff = other.codeOff;
+    }
+
+    private void parse() throws IOException {
+
+        sourceHubOff = skip(bodyOff);
+        tagOff = skip(sourceHubOff);
+        moduleOff = skip(tagOff);
+
+        // module id + length of the module name
+        if (moduleOff + 6 > data.length) {
+            throw new IOException(MALFORMED);
+        }
+
+        codeOff = moduleOff + 6
+            + (((data[moduleOff+4] & 0xFF) << 8) | (data[moduleOff+5] & 0xFF));
+
+        if (codeOff + 4 > data.length) {
+            throw new IOException(MALFORMED);
+        }
+    }
+
+    // Reads a message in the format of BROADCAST_MESSAGE.
+    static BroadcastMessage read(DataInputStream in) throws IOException {
+
+        int len = in.readInt();
+
+        if (len < 5) {
+            throw new IOException(MALFORMED);
+        }
+
+        byte [] data = new byte[len];
+        in.readFully(data);
+
+        int hops = data[0];
+        int n = getInt(data, 1);
+        int off = 5;
+
+        DirectSocketAddress [] targets = null;
+
+        if (n >= 0) {
+
+            if (n > len / 4) {
+                throw new IOException(MALFORMED);
+            }
+
+            targets = new DirectSocketAddress[n];
+
+            for (int i=0;i<n;i++) {
+
+                int next = skip(data, off);
+
+                if (next < 0 || next == off + 4) {
+                    throw new IOException(MALFORMED);
+                }
+
+                targets[i] = decode(data, off);
+                off = next;
+            }
+        }
+
+        return new BroadcastMessage(hops, targets, data, off);
+    }
+
+    private static int getInt(byte [] data, int off) {
+        return ((data[off] & 0xFF) << 24) | ((data[off+1] & 0xFF) << 16)
+            | ((data[off+2] & 0xFF) << 8) | (data[off+3] & 0xFF);
+    }
+
+    private static void putInt(byte [] data, int off, int value) {
+        data[off] = (byte) (value >>> 24);
+        data[off+1] = (byte) (value >>> 16);
+        data[off+2] = (byte) (value >>> 8);
+        data[off+3] = (byte) value;
+    }
+
+    // Returns the offset just beyond the coded field at offset 'off', or -1
+    // if it does not fit.
+    private static int skip(byte [] data, int off) {
+
+        if (off + 4 > data.length) {
+            return -1;
+        }
+
+        int len = getInt(data, off);
+
+        if (len < 0 || off + 4 + len > data.length) {
+            return -1;
+        }
+
+        return off + 4 + len;
+    }
+
+    private int skip(int off) throws IOException {
+
+        int next = skip(data, off);
+
+        if (next < 0) {
+            throw new IOException(MALFORMED);
+        }
+
+        return next;
+    }
+
+    private static DirectSocketAddress decode(byte [] data, int off) {
+
+        if (getInt(data, off) == 0) {
+            return null;
+        }
+
+        try {
+            return DirectSocketAddress.fromBytes(data, off + 4);
+        } catch (UnknownHostException e) {
+            throw new MalformedAddressException("Malformed address in "
+                    + "broadcast message", e);
+        }
+    }
+
+    int getHopsLeft() {
+        return hopsLeft;
+    }
+
+    // The hubs the message must still reach, or null if they have not been
+    // determined yet.
+    DirectSocketAddress [] getTargets() {
+        return targets;
+    }
+
+    DirectSocketAddress getSource() {
+        return decode(data, bodyOff);
+    }
+
+    DirectSocketAddress getSourceHub() {
+        return decode(data, sourceHubOff);
+    }
+
+    String getTag() {
+        try {
+            return new String(data, tagOff + 4, getInt(data, tagOff), "UTF-8");
+        } catch (IOException e) {
+            // UTF-8 is always supported.
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Fills in the source hub if the sender did not know it.
+    void setSourceHub(DirectSocketAddress hub) {
+
+        if (getInt(data, sourceHubOff) != 0) {
+            return;
+        }
+
+        byte [] coded = hub.getAddress();
+        byte [] tmp = new byte[data.length - bodyOff + coded.length];
+
+        int off = sourceHubOff - bodyOff;
+
+        System.arraycopy(data, bodyOff, tmp, 0, off);
+        putInt(tmp, off, coded.length);
+        System.arraycopy(coded, 0, tmp, off + 4, coded.length);
+        System.arraycopy(data, sourceHubOff + 4, tmp, off + 4 + coded.length,
+                data.length - sourceHubOff - 4);
+
+        int shift = coded.length - bodyOff;
+
+        data = tmp;
+        bodyOff = 0;
+        sourceHubOff = off;
+        tagOff += shift;
+        moduleOff += shift;
+        codeOff += shift;
+    }
+
+    // Returns a copy for a subset of the targets, to be sent to the next hop.
+    BroadcastMessage forward(DirectSocketAddress [] targets) {
+        return new BroadcastMessage(this, targets);
+    }
+
+    // Returns a CLIENT_MESSAGE for one of the clients of the local hub.
+    ClientMessage deliverTo(DirectSocketAddress target,
+            DirectSocketAddress targetHub) throws IOException {
+
+        byte [] t = target.getAddress();
+        byte [] th = targetHub.getAddress();
+
+        int sources = tagOff - bodyOff;
+        int tail = data.length - moduleOff;
+
+        byte [] tmp = new byte[6 + sources + 4 + t.length + 4 + th.length
+                               + tail];
+
+        // The routing prefix (see ClientMessage): no hops left, no flags.
+        putInt(tmp, 0, ClientMessage.hubHash(targetHub));
+
+        int off = 6;
+
+        System.arraycopy(data, bodyOff, tmp, off, sources);
+        off += sources;
+
+        putInt(tmp, off, t.length);
+        System.arraycopy(t, 0, tmp, off + 4, t.length);
+        off += 4 + t.length;
+
+        putInt(tmp, off, th.length);
+        System.arraycopy(th, 0, tmp, off + 4, th.length);
+        off += 4 + th.length;
+
+        System.arraycopy(data, moduleOff, tmp, off, tail);
+
+        return new ClientMessage(tmp);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+
+        int len = 1 + 4 + (data.length - bodyOff);
+
+        if (targets != null) {
+            for (DirectSocketAddress a : targets) {
+                len += 4 + a.getAddress().length;
+            }
+        }
+
+        out.writeInt(len);
+        out.writeByte(hopsLeft);
+
+        if (targets == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(targets.length);
+
+            for (DirectSocketAddress a : targets) {
+                DirectSocketAddress.write(a, out);
+            }
+        }
+
+        out.write(data, bodyOff, data.length - bodyOff);
+    }
+
+    public long messageSize() {
+        return data.length - bodyOff;
+    }
+
+    public String toString() {
+        return "Broadcast [from " + getSource() + "@" + getSourceHub()
+            + "] [tag " + getTag() + "] [module " + getInt(data, moduleOff)
+            + " code " + getInt(data, codeOff) + "] message: ["
+            + (data.length - codeOff - 4) + "] hubs: "
+            + (targets == null ? "?" : Integer.toString(targets.length));
+    }
+}
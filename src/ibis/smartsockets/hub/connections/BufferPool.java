@@ -0,0 +1,100 @@
+package ibis.smartsockets.hub.connections;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Pool of direct ByteBuffers used to forward virtual connection data.
+ *
+ * Buffers are handed out in power of two sizes. Requests that are larger than
+ * the largest size are served by (unpooled) heap buffers. Only a limited
+ * amount of memory is kept in the pool, the rest is left to the GC.
+ */
+final class BufferPool {
+
+    private static final int MIN_SHIFT = 10; // 1 KB
+    private static final int MAX_SHIFT = 20; // 1 MB
+
+    // The maximum amount of memory kept in each of the pools.
+    private static final int MAX_POOLED_BYTES = 4*1024*1024;
+
+    // The buffers of one size. Only needed because arrays of generic types
+    // cannot be created.
+    private static final class Pool {
+        final LinkedList<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+    }
+
+    private static final Pool [] pools = new Pool[MAX_SHIFT-MIN_SHIFT+1];
+
+    static {
+        for (int i=0;i<pools.length;i++) {
+            pools[i] = new Pool();
+        }
+    }
+
+    private BufferPool() {
+        // Not used.
+    }
+
+    private static int sizeClass(int size) {
+
+        int shift = MIN_SHIFT;
+
+        while ((1 << shift) < size) {
+            shift++;
+        }
+
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns a buffer with position 0 and limit size.
+     */
+    static ByteBuffer get(int size) {
+
+        if (size > (1 << MAX_SHIFT)) {
+            return ByteBuffer.allocate(size);
+        }
+
+        int c = sizeClass(size);
+
+        ByteBuffer result = null;
+
+        LinkedList<ByteBuffer> pool = pools[c].buffers;
+
+        synchronized (pool) {
+            if (pool.size() > 0) {
+                result = pool.removeFirst();
+            }
+        }
+
+        if (result == null) {
+            result = ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+        }
+
+        result.clear();
+        result.limit(size);
+        return result;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer may no longer be used by the
+     * caller.
+     */
+    static void release(ByteBuffer b) {
+
+        if (!b.isDirect()) {
+            return;
+        }
+
+        int c = sizeClass(b.capacity());
+
+        LinkedList<ByteBuffer> pool = pools[c].buffers;
+
+        synchronized (pool) {
+            if ((pool.size() + 1) * b.capacity() <= MAX_POOLED_BYTES) {
+                pool.addLast(b);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ibis.smartsockets.hub.connections;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * OutputStream that writes directly to a SocketChannel.
+ *
+ * Unlike the stream returned by the socket itself, this stream also works
+ * when the channel has been switched to non-blocking mode by the NIO engine.
+ * In that case a write blocks (using a private selector) until all data has
+ * been handed to the channel, so the writers in the hub connections do not
+ * need to know which engine is used.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    private final SocketChannel channel;
+
+    private final byte [] single = new byte[1];
+
+    // Only created if we ever need to wait for the channel.
+    private Selector selector;
+
+    private boolean closed = false;
+
+    public ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public synchronized void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    public synchronized void write(byte [] b, int off, int len)
+        throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    public synchronized void write(ByteBuffer b) throws IOException {
+
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (b.hasRemaining()) {
+            if (channel.write(b) == 0) {
+                // Only happens in non-blocking mode.
+                waitUntilWritable();
+            }
+        }
+    }
+
+    /**
+     * Writes all buffers using a gathering write.
+     */
+    public synchronized void write(ByteBuffer [] b) throws IOException {
+
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        int off = 0;
+
+        while (off < b.length) {
+
+            if (!b[off].hasRemaining()) {
+                off++;
+            } else if (channel.write(b, off, b.length - off) == 0) {
+                waitUntilWritable();
+            }
+        }
+    }
+
+    private void waitUntilWritable() throws IOException {
+
+        if (selector == null) {
+            selector = Selector.open();
+        }
+
+        SelectionKey key = channel.register(selector, SelectionKey.OP_WRITE);
+
+        try {
+            selector.select();
+        } finally {
+            key.cancel();
+
+            // Flushes the cancelled key, so we can register again later.
+            selector.selectNow();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            channel.close();
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package ibis.smartsockets.hub.connections;
 import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.hub.ConnectionProtocol;
 import ibis.smartsockets.hub.Connections;
 import ibis.smartsockets.hub.StatisticsCallback;
 import ibis.smartsockets.hub.servicelink.ServiceLinkProtocol;
@@ -12,11 +13,13 @@ import ibis.smartsockets.hub.state.DetailsSelector;
 import ibis.smartsockets.hub.state.DirectionsAsStringSelector;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
+import ibis.smartsockets.hub.state.StateCounter;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 
 import org.slf4j.Logger;
@@ -35,31 +38,76 @@ public class ClientConnection extends MessageForwardingConnection {
 
     private final DirectSocketAddress clientAddress;
 
-    private final String clientAddressAsString;
+    // Additional connections of the same client that only carry virtual
+    // connections. If there are any, this connection is only used for the
+    // other (control) traffic.
+    private final ArrayList<ClientDataConnection> dataLinks =
+        new ArrayList<ClientDataConnection>();
 
-    private final String uniquePrefix;
+    private final StateCounter state;
+
+    private final Watches watches;
+
+    // Set if the client wants to know about state changes (see
+    // ServiceLinkProtocol.SUBSCRIBE_STATE).
+    private boolean subscribed = false;
+
+    // The last state the client was told about.
+    private long notifiedState = -1;
 
     public ClientConnection(DirectSocketAddress clientAddress, DirectSocket s,
             DataInputStream in, DataOutputStream out, Connections connections,
-            HubList hubs, VirtualConnections vcs, StatisticsCallback callback,
-            long statisticsInterval) {
+            HubList hubs, StateCounter state, Watches watches,
+            VirtualConnections vcs, StatisticsCallback callback,
+            long statisticsInterval, int capabilities) {
 
         super(s, in, out, connections, hubs, vcs, false,
                 "Client(" + clientAddress.toString() + ")", callback,
                 statisticsInterval);
 
         this.clientAddress = clientAddress;
-        this.clientAddressAsString = clientAddress.toString();
+        this.state = state;
+        this.watches = watches;
 
-        this.uniquePrefix = clientAddressAsString + "__";
+        setCapabilities(capabilities);
 
         if (conlogger.isDebugEnabled()) {
             conlogger.debug("Created client connection: " + clientAddress);
         }
     }
 
-    protected String getUniqueID(long index) {
-        return uniquePrefix + index;
+    DirectSocketAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    public void addDataLink(ClientDataConnection c) {
+        synchronized (dataLinks) {
+            dataLinks.add(c);
+        }
+    }
+
+    void removeDataLink(ClientDataConnection c) {
+        synchronized (dataLinks) {
+            dataLinks.remove(c);
+        }
+    }
+
+    boolean hasDataLink(MessageForwardingConnection c) {
+        synchronized (dataLinks) {
+            return dataLinks.contains(c);
+        }
+    }
+
+    // Returns the connection that should carry virtual connection 'index'.
+    MessageForwardingConnection selectDataLink(long index) {
+        synchronized (dataLinks) {
+            if (dataLinks.size() == 0) {
+                return this;
+            }
+
+            return dataLinks.get((int) ((index & Long.MAX_VALUE)
+                    % dataLinks.size()));
+        }
     }
 
     protected void handleDisconnect(Exception e) {
@@ -74,10 +122,23 @@ public class ClientConnection extends MessageForwardingConnection {
         }
 
         connections.removeClient(clientAddress);
+        watches.removeAll(this);
         DirectSocketFactory.close(s, out, in);
 
         // Close all connections that have an endpoint at our side
-        closeAllVirtualConnections(uniquePrefix);
+        closeAllVirtualConnections();
+
+        // The data links are useless without us.
+        ClientDataConnection [] tmp;
+
+        synchronized (dataLinks) {
+            tmp = dataLinks.toArray(new ClientDataConnection[dataLinks.size()]);
+            dataLinks.clear();
+        }
+
+        for (ClientDataConnection c : tmp) {
+            c.handleDisconnect(null);
+        }
     }
 
     private void handleListHubs() throws IOException {
@@ -94,17 +155,7 @@ public class ClientConnection extends MessageForwardingConnection {
 
         LinkedList<String> result = as.getResult();
 
-        synchronized (out) {
-            out.write(ServiceLinkProtocol.INFO_REPLY);
-            out.writeInt(id);
-            out.writeInt(result.size());
-
-            for (String s : result) {
-                out.writeUTF(s);
-            }
-
-            out.flush();
-        }
+        enqueueControl(new InfoReplyMessage(id, result));
     }
 
     private void handleListHubDetails() throws IOException {
@@ -115,28 +166,19 @@ public class ClientConnection extends MessageForwardingConnection {
             reqlogger.debug("Connection " + clientAddress + " return id: " + id);
         }
 
-        DetailsSelector as = new DetailsSelector();
+        DetailsSelector as = new DetailsSelector(
+                peerSupports(ConnectionProtocol.CAPABILITY_LINK_METRICS));
 
         knownHubs.select(as);
 
         LinkedList<String> result = as.getResult();
 
-        synchronized (out) {
-            out.write(ServiceLinkProtocol.INFO_REPLY);
-            out.writeInt(id);
-            out.writeInt(result.size());
-
-            if (reqlogger.isDebugEnabled()) {
-                reqlogger.debug("Connection " + clientAddress + " result: "
-                        + result.size() + " " + result);
-            }
-
-            for (String s : result) {
-                out.writeUTF(s);
-            }
-
-            out.flush();
+        if (reqlogger.isDebugEnabled()) {
+            reqlogger.debug("Connection " + clientAddress + " result: "
+                    + result.size() + " " + result);
         }
+
+        enqueueControl(new InfoReplyMessage(id, result));
     }
 
 
@@ -160,17 +202,7 @@ public class ClientConnection extends MessageForwardingConnection {
                     + "address: " + hub);
         }
 
-        synchronized (out) {
-            out.write(ServiceLinkProtocol.INFO_REPLY);
-            out.writeInt(id);
-            out.writeInt(result.size());
-
-            for (String s : result) {
-                out.writeUTF(s);
-            }
-
-            out.flush();
-        }
+        enqueueControl(new InfoReplyMessage(id, result));
     }
 
     private void handleListClients() throws IOException {
@@ -188,22 +220,12 @@ public class ClientConnection extends MessageForwardingConnection {
 
         LinkedList<String> result = css.getResult();
 
-        synchronized (out) {
-            out.write(ServiceLinkProtocol.INFO_REPLY);
-            out.writeInt(id);
-            out.writeInt(result.size());
-
-            if (reqlogger.isDebugEnabled()) {
-                reqlogger.debug("Connection " + clientAddress + " returning : "
-                        + result.size() + " clients: " + result);
-            }
-
-            for (String s : result) {
-                out.writeUTF(s);
-            }
-
-            out.flush();
+        if (reqlogger.isDebugEnabled()) {
+            reqlogger.debug("Connection " + clientAddress + " returning : "
+                    + result.size() + " clients: " + result);
         }
+
+        enqueueControl(new InfoReplyMessage(id, result));
     }
 
     private void handleGetDirectionsToClient() throws IOException {
@@ -221,22 +243,12 @@ public class ClientConnection extends MessageForwardingConnection {
 
         LinkedList<String> result = ds.getResult();
 
-        synchronized (out) {
-            out.write(ServiceLinkProtocol.INFO_REPLY);
-            out.writeInt(id);
-            out.writeInt(result.size());
-
-            if (reqlogger.isDebugEnabled()) {
-                reqlogger.debug("Connection " + clientAddress + " returning : "
-                        + result.size() + " possible directions: " + result);
-            }
-
-            for (String tmp : result) {
-                out.writeUTF(tmp);
-            }
-
-            out.flush();
+        if (reqlogger.isDebugEnabled()) {
+            reqlogger.debug("Connection " + clientAddress + " returning : "
+                    + result.size() + " possible directions: " + result);
         }
+
+        enqueueControl(new InfoReplyMessage(id, result));
     }
 
     private void registerProperty() throws IOException {
@@ -252,18 +264,9 @@ public class ClientConnection extends MessageForwardingConnection {
 
         HubDescription localHub = knownHubs.getLocalDescription();
 
-        synchronized (out) {
-            out.write(ServiceLinkProtocol.PROPERTY_ACK);
-            out.writeInt(id);
-
-            if (localHub.addService(clientAddress, tag, info)) {
-                out.writeInt(ServiceLinkProtocol.PROPERTY_ACCEPTED);
-            } else {
-                out.writeInt(ServiceLinkProtocol.PROPERTY_REJECTED);
-            }
+        boolean accepted = localHub.addService(clientAddress, tag, info);
 
-            out.flush();
-        }
+        enqueueControl(new PropertyAckMessage(id, accepted));
     }
 
     private void updateProperty() throws IOException {
@@ -279,18 +282,9 @@ public class ClientConnection extends MessageForwardingConnection {
 
         HubDescription localHub = knownHubs.getLocalDescription();
 
-        synchronized (out) {
-            out.write(ServiceLinkProtocol.PROPERTY_ACK);
-            out.writeInt(id);
+        boolean accepted = localHub.updateService(clientAddress, tag, info);
 
-            if (localHub.updateService(clientAddress, tag, info)) {
-                out.writeInt(ServiceLinkProtocol.PROPERTY_ACCEPTED);
-            } else {
-                out.writeInt(ServiceLinkProtocol.PROPERTY_REJECTED);
-            }
-
-            out.flush();
-        }
+        enqueueControl(new PropertyAckMessage(id, accepted));
     }
 
     private void handleRemoveProperty() throws IOException {
@@ -305,18 +299,72 @@ public class ClientConnection extends MessageForwardingConnection {
 
         HubDescription localHub = knownHubs.getLocalDescription();
 
-        synchronized (out) {
-            out.write(ServiceLinkProtocol.PROPERTY_ACK);
-            out.writeInt(id);
+        boolean accepted = localHub.removeService(clientAddress, tag);
 
-            if (localHub.removeService(clientAddress, tag)) {
-                out.writeInt(ServiceLinkProtocol.PROPERTY_ACCEPTED);
-            } else {
-                out.writeInt(ServiceLinkProtocol.PROPERTY_REJECTED);
+        enqueueControl(new PropertyAckMessage(id, accepted));
+    }
+
+    private void handleSubscribeState() {
+
+        synchronized (this) {
+            subscribed = true;
+        }
+
+        stateChanged(state.get());
+    }
+
+    /**
+     * Tells the client that the state of the hub has changed, provided that
+     * it has subscribed to these changes. The client uses this to invalidate
+     * the replies to info requests it has cached.
+     *
+     * @param current the current state of the hub.
+     */
+    public void stateChanged(long current) {
+
+        synchronized (this) {
+            if (!subscribed || current == notifiedState) {
+                return;
             }
 
-            out.flush();
+            notifiedState = current;
+        }
+
+        if (reqlogger.isDebugEnabled()) {
+            reqlogger.debug("Connection " + clientAddress + " notified of "
+                    + "state " + current);
+        }
+
+        enqueueControl(new StateMessage(current));
+    }
+
+    private void handleWatch() throws IOException {
+
+        String tag = in.readUTF();
+
+        if (reqlogger.isDebugEnabled()) {
+            reqlogger.debug("Connection " + clientAddress + " watches: \""
+                    + tag + "\"");
+        }
+
+        watches.add(this, tag);
+    }
+
+    private void handleUnwatch() throws IOException {
+
+        String tag = in.readUTF();
+
+        if (reqlogger.isDebugEnabled()) {
+            reqlogger.debug("Connection " + clientAddress + " stops watching: \""
+                    + tag + "\"");
         }
+
+        watches.remove(this, tag);
+    }
+
+    // Tells the client about a change in the clients it watches.
+    void sendWatchEvent(String tag, byte type, String hub, String info) {
+        enqueueControl(new WatchMessage(tag, type, hub, info));
     }
 
     protected String getName() {
@@ -392,6 +440,22 @@ public class ClientConnection extends MessageForwardingConnection {
                 handleRemoveProperty();
                 return true;
 
+            case ServiceLinkProtocol.SUBSCRIBE_STATE:
+                if (reqlogger.isDebugEnabled()) {
+                    reqlogger.debug("Connection " + clientAddress + " requests"
+                            + " state changes");
+                }
+                handleSubscribeState();
+                return true;
+
+            case ServiceLinkProtocol.WATCH:
+                handleWatch();
+                return true;
+
+            case ServiceLinkProtocol.UNWATCH:
+                handleUnwatch();
+                return true;
+
             default:
                 conlogger.warn("Connection " + clientAddress
                         + " got unknown " + "opcode " + opcode
@@ -407,4 +471,103 @@ public class ClientConnection extends MessageForwardingConnection {
 
         return false;
     }
+
+    // The reply to an info request.
+    private static final class InfoReplyMessage extends SendQueue.Message {
+
+        private final int id;
+        private final LinkedList<String> result;
+
+        InfoReplyMessage(int id, LinkedList<String> result) {
+            this.id = id;
+            this.result = result;
+        }
+
+        int length() {
+
+            int len = 9;
+
+            for (String s : result) {
+                len += 2 + s.length();
+            }
+
+            return len;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(ServiceLinkProtocol.INFO_REPLY);
+            out.writeInt(id);
+            out.writeInt(result.size());
+
+            for (String s : result) {
+                out.writeUTF(s);
+            }
+        }
+    }
+
+    // The reply to a property request.
+    private static final class PropertyAckMessage extends SendQueue.Message {
+
+        private final int id;
+        private final boolean accepted;
+
+        PropertyAckMessage(int id, boolean accepted) {
+            this.id = id;
+            this.accepted = accepted;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(ServiceLinkProtocol.PROPERTY_ACK);
+            out.writeInt(id);
+
+            if (accepted) {
+                out.writeInt(ServiceLinkProtocol.PROPERTY_ACCEPTED);
+            } else {
+                out.writeInt(ServiceLinkProtocol.PROPERTY_REJECTED);
+            }
+        }
+    }
+
+    // Tells the client the current state of the hub.
+    private static final class StateMessage extends SendQueue.Message {
+
+        private final long state;
+
+        StateMessage(long state) {
+            this.state = state;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(ServiceLinkProtocol.STATE_CHANGED);
+            out.writeLong(state);
+        }
+    }
+
+    // Tells the client about a change in the clients it watches.
+    private static final class WatchMessage extends SendQueue.Message {
+
+        private final String tag;
+        private final byte type;
+        private final String hub;
+        private final String info;
+
+        WatchMessage(String tag, byte type, String hub, String info) {
+            this.tag = tag;
+            this.type = type;
+            this.hub = hub;
+            this.info = info;
+        }
+
+        int length() {
+            return 8 + tag.length() + hub.length() + info.length();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(ServiceLinkProtocol.WATCH_EVENT);
+            out.writeUTF(tag);
+            out.write(type);
+            out.writeUTF(hub);
+            out.writeUTF(info);
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.hub.Connections;
+import ibis.smartsockets.hub.StatisticsCallback;
+import ibis.smartsockets.hub.state.HubList;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Additional connection of a client that only carries virtual connections.
+ *
+ * A client may open several of these next to its normal (control) connection,
+ * so a bulk transfer on one virtual connection does not hold up the others,
+ * or the control traffic. The virtual connections of the client are spread
+ * over its data links. The data links share the index space of the control
+ * connection, so the client sees unique indices on all of them.
+ */
+public class ClientDataConnection extends MessageForwardingConnection {
+
+    private static Logger conlogger =
+        LoggerFactory.getLogger("ibis.smartsockets.hub.connections.client");
+
+    private final ClientConnection primary;
+    private final int link;
+
+    public ClientDataConnection(ClientConnection primary, int link,
+            DirectSocket s, DataInputStream in, DataOutputStream out,
+            Connections connections, HubList hubs, VirtualConnections vcs,
+            StatisticsCallback callback, long statisticsInterval) {
+
+        super(s, in, out, connections, hubs, vcs, primary.index,
+                "Client(" + primary.getClientAddress() + ", " + link + ")",
+                callback, statisticsInterval);
+
+        this.primary = primary;
+        this.link = link;
+
+        if (conlogger.isDebugEnabled()) {
+            conlogger.debug("Created data link " + link + " for client: "
+                    + primary.getClientAddress());
+        }
+    }
+
+    protected void handleDisconnect(Exception e) {
+
+        if (conlogger.isDebugEnabled()) {
+            conlogger.debug("Removed data link " + link + " of client "
+                    + primary.getClientAddress());
+        }
+
+        primary.removeDataLink(this);
+        DirectSocketFactory.close(s, out, in);
+
+        // Close all connections that have an endpoint at our side
+        closeAllVirtualConnections();
+    }
+
+    protected String getName() {
+        return "ClientDataConnection(" + primary.getClientAddress() + ", "
+            + link + ")";
+    }
+
+    protected boolean handleOpcode(int opcode) {
+
+        conlogger.warn("Data link " + link + " of "
+                + primary.getClientAddress() + " got unknown opcode "
+                + opcode + " -- disconnecting");
+
+        handleDisconnect(null);
+        return false;
+    }
+}
@@ -1,154 +1,398 @@
 package ibis.smartsockets.hub.connections;
 
 import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.util.MalformedAddressException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-
+import java.net.UnknownHostException;
+
+/**
+ * A message between two clients (see MessageForwarderProtocol.CLIENT_MESSAGE).
+ *
+ * The message is kept in its wire format. It starts with a small routing
+ * prefix (the hash of the hub the message is heading for, the hops left and
+ * the flags), followed by the addresses of the source, source hub, target and
+ * target hub (in coded form), the id and name of the target module, the
+ * opcode and the message itself. The name is only needed to deliver the
+ * message in the old format of INFO_MESSAGE. A hub that only passes the message on just has to look at
+ * the prefix, so the addresses are only decoded when they are really needed.
+ */
 public class ClientMessage {
 
+    // The layout of the routing prefix.
+    private static final int HASH = 0;
+    private static final int HOPS = 4;
+    private static final int FLAGS = 5;
+    private static final int HEADER = 6;
+
+    // The message as it is sent on the wire, minus the opcode and length.
+    private byte [] data;
+
+    // The offsets of the source hub, target, target hub, module and opcode in
+    // 'data'. The source starts at HEADER.
+    private int sourceHubOff;
+    private int targetOff;
+    private int targetHubOff;
+    private int moduleOff;
+    private int codeOff;
+
+    // The decoded addresses (null until used).
     private DirectSocketAddress source;
     private DirectSocketAddress sourceHub;
     private DirectSocketAddress target;
     private DirectSocketAddress targetHub;
 
-    int hopsLeft;
-    boolean returnToSender;
+    ClientMessage(byte [] data) throws IOException {
+        this.data = data;
+        parse();
+    }
 
-    String module;
-    int code;
-    byte [] message;
+    private ClientMessage(ClientMessage other) {
+        this.data = other.data.clone();
+        this.sourceHubOff = other.sourceHubOff;
+        this.targetOff = other.targetOff;
+        this.targetHubOff = other.targetHubOff;
+        this.moduleOff = other.moduleOff;
+        this.codeOff = other.codeOff;
+        this.source = other.source;
+        this.sourceHub = other.sourceHub;
+        this.target = other.target;
+        this.targetHub = other.targetHub;
+    }
 
-    long messageSize = -1;
+    // Returns a copy that is not affected by later changes to this message.
+    ClientMessage copy() {
+        return new ClientMessage(this);
+    }
 
-    ClientMessage(DataInputStream in) throws IOException {
+    private void parse() throws IOException {
 
-        source = DirectSocketAddress.read(in);
-        sourceHub = DirectSocketAddress.read(in);
+        sourceHubOff = skipAddress(HEADER);
+        targetOff = skipAddress(sourceHubOff);
+        targetHubOff = skipAddress(targetOff);
+        moduleOff = skipAddress(targetHubOff);
 
-        hopsLeft = in.readInt();
-        returnToSender = in.readBoolean();
+        // module id + length of the module name
+        if (moduleOff + 6 > data.length) {
+            throw new IOException("Malformed client message");
+        }
+
+        codeOff = moduleOff + 6
+            + (((data[moduleOff+4] & 0xFF) << 8) | (data[moduleOff+5] & 0xFF));
 
-        target = DirectSocketAddress.read(in);
-        targetHub = DirectSocketAddress.read(in);
+        if (codeOff + 4 > data.length) {
+            throw new IOException("Malformed client message");
+        }
+    }
 
-        module = in.readUTF();
-        code = in.readInt();
+    // Reads a message in the format of CLIENT_MESSAGE.
+    static ClientMessage read(DataInputStream in) throws IOException {
 
         int len = in.readInt();
 
-        if (len > 0) {
-            message = new byte[len];
-            in.readFully(message);
+        if (len < HEADER) {
+            throw new IOException("Malformed client message");
         }
+
+        byte [] data = new byte[len];
+        in.readFully(data);
+
+        return new ClientMessage(data);
     }
 
-    void write(DataOutputStream out) throws IOException {
+    // Reads a message in the (old) format of INFO_MESSAGE.
+    static ClientMessage readInfoMessage(DataInputStream in)
+        throws IOException {
 
-        DirectSocketAddress.write(source, out);
-        DirectSocketAddress.write(sourceHub, out);
+        DirectSocketAddress source = DirectSocketAddress.read(in);
+        DirectSocketAddress sourceHub = DirectSocketAddress.read(in);
+
+        int hopsLeft = in.readInt();
+        boolean returnToSender = in.readBoolean();
+
+        DirectSocketAddress target = DirectSocketAddress.read(in);
+        DirectSocketAddress targetHub = DirectSocketAddress.read(in);
+
+        String module = in.readUTF();
+        int code = in.readInt();
+
+        byte [] message = new byte[in.readInt()];
+        in.readFully(message);
 
-        out.writeInt(hopsLeft);
-        out.writeBoolean(returnToSender);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
 
+        out.writeInt(hubHash(returnToSender ? sourceHub : targetHub));
+        out.writeByte(hops(hopsLeft));
+        out.writeByte(returnToSender ? MessageForwarderProtocol.RETURN_TO_SENDER : 0);
+
+        DirectSocketAddress.write(source, out);
+        DirectSocketAddress.write(sourceHub, out);
         DirectSocketAddress.write(target, out);
         DirectSocketAddress.write(targetHub, out);
 
+        out.writeInt(moduleID(module));
         out.writeUTF(module);
         out.writeInt(code);
+        out.writeInt(message.length);
+        out.write(message);
+        out.flush();
 
-        if (message == null || message.length == 0) {
-            out.writeInt(0);
-        } else {
-            out.writeInt(message.length);
-            out.write(message);
+        return new ClientMessage(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the id used for a module in client messages and datagrams.
+     * Different modules may share an id, so the name of the module is always
+     * sent with it and the receiver checks that the two match.
+     *
+     * @param module the name of the module (may be null)
+     * @return the id of the module.
+     */
+    public static int moduleID(String module) {
+        return module == null ? 0 : module.hashCode();
+    }
+
+    /**
+     * Returns the hash used for a hub in the routing prefix of a client
+     * message.
+     *
+     * @param hub the address of the hub (may be null)
+     * @return the hash of the hub, or 0 if hub is null.
+     */
+    public static int hubHash(DirectSocketAddress hub) {
+        return hub == null ? 0 : hub.hashCode();
+    }
+
+    private static byte hops(int hops) {
+        return (byte) Math.max(-1, Math.min(hops, Byte.MAX_VALUE));
+    }
+
+    private int getInt(int off) {
+        return ((data[off] & 0xFF) << 24) | ((data[off+1] & 0xFF) << 16)
+            | ((data[off+2] & 0xFF) << 8) | (data[off+3] & 0xFF);
+    }
+
+    private void putInt(int off, int value) {
+        data[off] = (byte) (value >>> 24);
+        data[off+1] = (byte) (value >>> 16);
+        data[off+2] = (byte) (value >>> 8);
+        data[off+3] = (byte) value;
+    }
+
+    private int skipAddress(int off) throws IOException {
+
+        if (off + 4 > data.length) {
+            throw new IOException("Malformed client message");
+        }
+
+        int len = getInt(off);
+
+        if (len < 0 || off + 4 + len > data.length) {
+            throw new IOException("Malformed client message");
+        }
+
+        return off + 4 + len;
+    }
+
+    private DirectSocketAddress decode(int off) {
+
+        if (getInt(off) == 0) {
+            return null;
+        }
+
+        try {
+            return DirectSocketAddress.fromBytes(data, off + 4);
+        } catch (UnknownHostException e) {
+            throw new MalformedAddressException("Malformed address in client "
+                    + "message", e);
+        }
+    }
+
+    // Checks if the coded address at offset 'off' is equal to 'a'.
+    private boolean matches(int off, DirectSocketAddress a) {
+
+        byte [] coded = a.getAddress();
+
+        if (getInt(off) != coded.length) {
+            return false;
         }
+
+        off += 4;
+
+        for (int i=0;i<coded.length;i++) {
+            if (data[off+i] != coded[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    int getHopsLeft() {
+        return data[HOPS];
+    }
+
+    void setHopsLeft(int hops) {
+        data[HOPS] = hops(hops);
+    }
+
+    boolean getReturnToSender() {
+        return (data[FLAGS] & MessageForwarderProtocol.RETURN_TO_SENDER) != 0;
+    }
+
+    // Turns the message around, so it is send back to the source.
+    void returnToSender() {
+        data[FLAGS] |= MessageForwarderProtocol.RETURN_TO_SENDER;
+        putInt(HASH, hubHash(getTargetHub()));
+    }
+
+    // The hash of the hub the message is heading for (0 if unknown).
+    int targetHubHash() {
+        return getInt(HASH);
+    }
+
+    // Checks if the message is heading for 'hub', without decoding anything.
+    boolean isTargetHub(DirectSocketAddress hub) {
+        return matches(getReturnToSender() ? sourceHubOff : targetHubOff, hub);
+    }
+
+    private DirectSocketAddress getOriginalSource() {
+        if (source == null) {
+            source = decode(HEADER);
+        }
+        return source;
+    }
+
+    private DirectSocketAddress getOriginalSourceHub() {
+        if (sourceHub == null) {
+            sourceHub = decode(sourceHubOff);
+        }
+        return sourceHub;
+    }
+
+    private DirectSocketAddress getOriginalTarget() {
+        if (target == null) {
+            target = decode(targetOff);
+        }
+        return target;
+    }
+
+    private DirectSocketAddress getOriginalTargetHub() {
+        if (targetHub == null) {
+            targetHub = decode(targetHubOff);
+        }
+        return targetHub;
     }
 
     DirectSocketAddress getSource() {
-        if (returnToSender) {
-            return target;
+        if (getReturnToSender()) {
+            return getOriginalTarget();
         } else {
-            return source;
+            return getOriginalSource();
         }
     }
 
     DirectSocketAddress getSourceHub() {
-        if (returnToSender) {
-            return targetHub;
+        if (getReturnToSender()) {
+            return getOriginalTargetHub();
         } else {
-            return sourceHub;
+            return getOriginalSourceHub();
         }
     }
 
     DirectSocketAddress getTarget() {
-        if (returnToSender) {
-            return source;
+        if (getReturnToSender()) {
+            return getOriginalSource();
         } else {
-            return target;
+            return getOriginalTarget();
         }
     }
 
     DirectSocketAddress getTargetHub() {
-        if (returnToSender) {
-            return sourceHub;
+        if (getReturnToSender()) {
+            return getOriginalSourceHub();
         } else {
-            return targetHub;
+            return getOriginalTargetHub();
         }
     }
 
-
     String targetAsString() {
-        if (targetHub != null) {
-            return target + "@" + targetHub;
+
+        DirectSocketAddress hub = getOriginalTargetHub();
+
+        if (hub != null) {
+            return getOriginalTarget() + "@" + hub;
         } else {
-            return target.toString();
+            return getOriginalTarget().toString();
         }
     }
 
     String sourceAsString() {
-        return source + "@" + sourceHub;
+        return getOriginalSource() + "@" + getOriginalSourceHub();
     }
 
     public String toString() {
-        return "Message [from " + source + "@" + sourceHub + "] [to "
-            + target + "@" + targetHub + "] [module " + module + " code "
-            + code + "] message: [" + (message == null ? 0 : message.length)
-            + "]";
+        return "Message [from " + sourceAsString() + "] [to "
+            + targetAsString() + "] [module " + getInt(moduleOff) + " code "
+            + getInt(codeOff) + "] message: ["
+            + (data.length - codeOff - 4) + "]";
     }
 
-    public void setSourceHub(DirectSocketAddress hub) {
-        if (sourceHub == null) {
-            sourceHub = hub;
-        }
-    }
+    // Fills in the source hub if the sender did not know it.
+    void setSourceHub(DirectSocketAddress hub) {
 
-    public long messageSize() {
+        if (getInt(sourceHubOff) != 0) {
+            return;
+        }
 
-        if (messageSize <= 0) {
-            messageSize = 4 + 4 + 4 + 1; // Fixed length parts...
+        byte [] coded = hub.getAddress();
+        byte [] tmp = new byte[data.length + coded.length];
 
-            messageSize += source.getAddress().length;
-            messageSize += target.getAddress().length;
+        System.arraycopy(data, 0, tmp, 0, sourceHubOff);
+        System.arraycopy(coded, 0, tmp, sourceHubOff + 4, coded.length);
+        System.arraycopy(data, sourceHubOff + 4, tmp,
+                sourceHubOff + 4 + coded.length,
+                data.length - sourceHubOff - 4);
 
-            if (sourceHub != null) {
-                messageSize += sourceHub.getAddress().length;
-            }
+        data = tmp;
+        putInt(sourceHubOff, coded.length);
 
-            if (targetHub != null) {
-                messageSize += targetHub.getAddress().length;
-            }
+        targetOff += coded.length;
+        targetHubOff += coded.length;
+        moduleOff += coded.length;
+        codeOff += coded.length;
 
-            if (module != null) {
-                messageSize += module.length() * 2 + 4;
-            }
+        sourceHub = hub;
 
-            if (message != null) {
-                messageSize += message.length;
-            }
+        if (getReturnToSender()) {
+            putInt(HASH, hubHash(hub));
         }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
 
-        return messageSize;
+    // Writes the message in the (old) format of INFO_MESSAGE, which only
+    // contains the name of the module. The coded addresses, and everything
+    // from the name onwards, are the same in both formats.
+    void writeInfoMessage(DataOutputStream out) throws IOException {
+
+        out.write(data, HEADER, targetOff - HEADER);
+
+        out.writeInt(getHopsLeft());
+        out.writeBoolean(getReturnToSender());
+
+        out.write(data, targetOff, moduleOff - targetOff);
+        out.write(data, moduleOff + 4, data.length - moduleOff - 4);
+    }
+
+    public long messageSize() {
+        return data.length;
     }
 }
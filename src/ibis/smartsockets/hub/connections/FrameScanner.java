@@ -0,0 +1,294 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.hub.HubProtocol;
+import ibis.smartsockets.hub.servicelink.ServiceLinkProtocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Determines if a complete message is available in a buffer.
+ *
+ * The hub protocol does not contain explicit message lengths. To allow the
+ * NIO engine to reuse the (blocking) message handlers of the connections,
+ * this class walks over the fields of a message without decoding them, so
+ * the handler is only invoked once all of its data has arrived.
+ */
+final class FrameScanner {
+
+    static final int INCOMPLETE = -1;
+
+    private ByteBuffer buffer;
+    private int pos;
+    private int end;
+
+    // Returns the length of the message that starts at the position of the
+    // buffer, or INCOMPLETE if more data is required. The buffer position
+    // is not changed.
+    int scan(ByteBuffer buffer) {
+
+        this.buffer = buffer;
+        this.pos = buffer.position();
+        this.end = buffer.limit();
+
+        try {
+            if (pos >= end) {
+                return INCOMPLETE;
+            }
+
+            int start = pos;
+
+            if (!scanMessage(buffer.get(pos++))) {
+                return INCOMPLETE;
+            }
+
+            return pos - start;
+        } finally {
+            this.buffer = null;
+        }
+    }
+
+    private boolean scanMessage(byte opcode) {
+
+        switch (opcode) {
+
+        case MessageForwarderProtocol.DISCONNECT:
+        case HubProtocol.PING:
+        case ServiceLinkProtocol.SUBSCRIBE_STATE:
+            return true;
+
+        case MessageForwarderProtocol.INFO_MESSAGE:
+            return skipAddress() && skipAddress() && skip(4 + 1)
+                && skipAddress() && skipAddress() && skipUTF() && skip(4)
+                && skipBlob();
+
+        case MessageForwarderProtocol.DATA_MESSAGE:
+        case MessageForwarderProtocol.CLIENT_MESSAGE:
+        case MessageForwarderProtocol.BROADCAST_MESSAGE:
+            return skipBlob();
+
+        case MessageForwarderProtocol.CREATE_VIRTUAL:
+            return skipAddress() && skipAddress() && skipAddress()
+                && skipAddress() && skip(8 + 4 + 4 + 4 + 4);
+
+        case MessageForwarderProtocol.CREATE_VIRTUAL_HOPS:
+            return skipAddress() && skipAddress() && skipAddress()
+                && skipAddress() && skip(8 + 4 + 4 + 4 + 4 + 1);
+
+        case MessageForwarderProtocol.CREATE_VIRTUAL_ACK:
+            return skip(8 + 4 + 4);
+
+        case MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK:
+            return skip(8 + 1);
+
+        case MessageForwarderProtocol.CREATE_VIRTUAL_NACK:
+            return skip(8 + 1);
+
+        case MessageForwarderProtocol.CLOSE_VIRTUAL:
+            return skip(8);
+
+        case MessageForwarderProtocol.MESSAGE_VIRTUAL:
+            return skip(8) && skipBlob();
+
+        case MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK:
+            return skip(8 + 4);
+
+        case HubProtocol.GOSSIP:
+            return scanGossip();
+
+        case HubProtocol.GOSSIP_DELTA:
+            return scanGossipDelta();
+
+        case HubProtocol.GOSSIP_RESYNC:
+            return skipAddress();
+
+        case HubProtocol.GOSSIP_METRICS:
+            return scanGossipMetrics();
+
+        case HubProtocol.PING_TIMED:
+            return skip(8);
+
+        case HubProtocol.PONG:
+            return skip(8 + 8);
+
+        case ServiceLinkProtocol.HUBS:
+        case ServiceLinkProtocol.HUB_DETAILS:
+            return skip(4);
+
+        case ServiceLinkProtocol.ALL_CLIENTS:
+        case ServiceLinkProtocol.DIRECTION:
+        case ServiceLinkProtocol.REMOVE_PROPERTY:
+            return skip(4) && skipUTF();
+
+        case ServiceLinkProtocol.WATCH:
+        case ServiceLinkProtocol.UNWATCH:
+            return skipUTF();
+
+        case ServiceLinkProtocol.CLIENTS_FOR_HUB:
+        case ServiceLinkProtocol.REGISTER_PROPERTY:
+        case ServiceLinkProtocol.UPDATE_PROPERTY:
+            return skip(4) && skipUTF() && skipUTF();
+
+        default:
+            // Unknown opcodes are passed on as is. The connection will
+            // complain about them and disconnect.
+            return true;
+        }
+    }
+
+    private boolean scanGossip() {
+
+        // address, name, viz info, hops, state
+        if (!(skipUTF() && skipUTF() && skipUTF() && skip(4 + 8))) {
+            return false;
+        }
+
+        int clients = readInt();
+
+        for (int i=0;i<clients;i++) {
+
+            // address, version
+            if (!(skipUTF() && skip(8))) {
+                return false;
+            }
+
+            int services = readInt();
+
+            for (int s=0;s<services;s++) {
+                if (!(skipUTF() && skipUTF())) {
+                    return false;
+                }
+            }
+        }
+
+        int connections = readInt();
+
+        for (int i=0;i<connections;i++) {
+            if (!skipUTF()) {
+                return false;
+            }
+        }
+
+        return pos <= end;
+    }
+
+    private boolean scanGossipDelta() {
+
+        // address, name, viz info, hops, base state, state
+        if (!(skipAddress() && skipUTF() && skipUTF() && skip(4 + 8 + 8))) {
+            return false;
+        }
+
+        int changed = readInt();
+
+        for (int i=0;i<changed;i++) {
+
+            // address, version
+            if (!(skipAddress() && skip(8))) {
+                return false;
+            }
+
+            int services = readInt();
+
+            for (int s=0;s<services;s++) {
+                if (!(skipUTF() && skipUTF())) {
+                    return false;
+                }
+            }
+        }
+
+        int removed = readInt();
+
+        for (int i=0;i<removed;i++) {
+            if (!skipAddress()) {
+                return false;
+            }
+        }
+
+        // -1 indicates that the connections did not change
+        int connections = readInt();
+
+        for (int i=0;i<connections;i++) {
+            if (!skipUTF()) {
+                return false;
+            }
+        }
+
+        return pos <= end;
+    }
+
+    private boolean scanGossipMetrics() {
+
+        // address, state
+        if (!(skipAddress() && skip(8))) {
+            return false;
+        }
+
+        int metrics = readInt();
+
+        for (int i=0;i<metrics;i++) {
+
+            // address, rtt, bandwidth
+            if (!(skipUTF() && skip(8 + 8))) {
+                return false;
+            }
+        }
+
+        return pos <= end;
+    }
+
+    private boolean skip(int bytes) {
+
+        if (bytes < 0 || end - pos < bytes) {
+            // Make sure any following read fails as well.
+            pos = end + 1;
+            return false;
+        }
+
+        pos += bytes;
+        return true;
+    }
+
+    // Returns the int at the current position. If it is not available, the
+    // position is moved beyond the end of the data.
+    private int readInt() {
+
+        if (end - pos < 4) {
+            pos = end + 1;
+            return 0;
+        }
+
+        int result = buffer.getInt(pos);
+        pos += 4;
+        return result;
+    }
+
+    private boolean skipUTF() {
+
+        if (end - pos < 2) {
+            pos = end + 1;
+            return false;
+        }
+
+        int len = buffer.getShort(pos) & 0xFFFF;
+        pos += 2;
+        return skip(len);
+    }
+
+    // Skips an int length followed by that many bytes (this is also the
+    // encoding used by DirectSocketAddress.write).
+    private boolean skipBlob() {
+
+        int len = readInt();
+
+        if (pos > end) {
+            return false;
+        }
+
+        // Negative lengths are left to the handler to complain about.
+        return len <= 0 || skip(len);
+    }
+
+    private boolean skipAddress() {
+        return skipBlob();
+    }
+}
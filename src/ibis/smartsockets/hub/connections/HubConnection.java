@@ -3,19 +3,26 @@ package ibis.smartsockets.hub.connections;
 import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.hub.ConnectionProtocol;
 import ibis.smartsockets.hub.Connections;
 import ibis.smartsockets.hub.HubProtocol;
 import ibis.smartsockets.hub.StatisticsCallback;
 import ibis.smartsockets.hub.state.ClientDescription;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
+import ibis.smartsockets.hub.state.LinkMetrics;
+import ibis.smartsockets.hub.state.MetricsSelector;
 import ibis.smartsockets.hub.state.StateCounter;
 import ibis.smartsockets.hub.state.StateSelector;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +36,17 @@ public class HubConnection extends MessageForwardingConnection {
     private static final Logger goslogger =
         LoggerFactory.getLogger("ibis.smartsockets.hub.gossip");
 
+    // Minimal time between two changes of the published link metrics (in
+    // milliseconds).
+    private static final long METRICS_INTERVAL = 30000;
+
+    // Changes in the round trip time below this value (in microseconds) are
+    // never published.
+    private static final long MIN_RTT_CHANGE = 500;
+
+    // Number of round trip time samples needed before it is published.
+    private static final int RTT_WARMUP = 4;
+
     private final HubDescription peer;
     private final HubDescription local;
 
@@ -39,26 +57,156 @@ public class HubConnection extends MessageForwardingConnection {
     // to the peer. Remembering this allows us to send delta's.
     private long lastSendState;
 
-    private final String uniquePrefix;
+    // Should we only send the changes in the hub descriptions ? Only if this
+    // is enabled locally and the peer accepts them.
+    private boolean deltaGossip;
+
+    // Does the peer answer timed pings ?
+    private boolean timedPing;
+
+    // Does the peer accept the metrics of the hub links ?
+    private boolean linkMetrics;
+
+    // Set once the connection setup is done. Until then, the connection is
+    // skipped by the gossip and anything queued for it is held.
+    private volatile boolean ready = false;
+
+    // Set once the connection has been torn down. Both the reader and the
+    // send queue may end up in disconnect().
+    private boolean disconnected = false;
+
+    // The hub descriptions as they were last sent to the peer (delta gossip
+    // only). Also protects 'resync'.
+    private final HashMap<DirectSocketAddress, SentDescription> sent =
+        new HashMap<DirectSocketAddress, SentDescription>();
+
+    // The hubs the peer wants to receive a complete description of.
+    private LinkedList<DirectSocketAddress> resync =
+        new LinkedList<DirectSocketAddress>();
+
+    // Smoothed round trip time to the peer in nanoseconds (-1 if unknown),
+    // and the number of samples it is based on (up to RTT_WARMUP).
+    private long rtt = -1;
+    private int rttSamples;
+
+    // The link metrics last published in the local description, and the time
+    // at which they were published.
+    private long publishedRTT = -1;
+    private long publishedBandwidth = 0;
+    private long lastPublished;
+
+    // The additional connections to the peer. The virtual connections to the
+    // peer are spread over these links and this connection.
+    private final ArrayList<HubDataConnection> links =
+        new ArrayList<HubDataConnection>();
+
+    private static final class SentDescription {
+
+        final long state;
+        final HashMap<DirectSocketAddress, Long> clients;
+        final String [] connectedTo;
+
+        SentDescription(long state, HashMap<DirectSocketAddress, Long> clients,
+                String [] connectedTo) {
+            this.state = state;
+            this.clients = clients;
+            this.connectedTo = connectedTo;
+        }
+    }
+
+    // A ping carrying the time at which it is written to the socket, so the
+    // time it spends in the send queue does not count as round trip time.
+    private static final class TimedPingMessage extends SendQueue.Message {
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(HubProtocol.PING_TIMED);
+            out.writeLong(System.nanoTime());
+        }
+    }
+
+    // The answer to a timed ping. Besides the timestamp of the ping, it
+    // carries the time the ping spent here before the answer was written, so
+    // the peer can leave our send queue out of the round trip time.
+    private static final class PongMessage extends SendQueue.Message {
+
+        private final long time;
+        private final long received;
+
+        PongMessage(long time, long received) {
+            this.time = time;
+            this.received = received;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(HubProtocol.PONG);
+            out.writeLong(time);
+            out.writeLong(System.nanoTime() - received);
+        }
+    }
+
+    // Asks the peer for a complete description of a hub.
+    private static final class ResyncMessage extends SendQueue.Message {
+
+        private final DirectSocketAddress address;
+
+        ResyncMessage(DirectSocketAddress address) {
+            this.address = address;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(HubProtocol.GOSSIP_RESYNC);
+            DirectSocketAddress.write(address, out);
+        }
+    }
 
     public HubConnection(DirectSocket s, DataInputStream in,
             DataOutputStream out, HubDescription peer, Connections connections,
             HubList hubs, StateCounter state, VirtualConnections vcs,
-            boolean master, StatisticsCallback callback, long statisticsInterval) {
+            boolean master, StatisticsCallback callback, long statisticsInterval,
+            boolean deltaGossip) {
 
         super(s, in, out, connections, hubs, vcs, master, "Hub("
                 + peer.hubAddressAsString + ")", callback, statisticsInterval);
 
         this.peer = peer;
         this.state = state;
-
-        this.uniquePrefix = peer.hubAddressAsString + "__";
+        this.deltaGossip = deltaGossip;
 
         local = hubs.getLocalDescription();
+
+        holdMessages();
     }
 
-    protected String getUniqueID(long index) {
-        return uniquePrefix + index;
+    /**
+     * Marks the connection as set up, so it takes part in the gossip and the
+     * messages queued for it are sent.
+     *
+     * @param capabilities the capabilities the peer announced during the
+     * connection setup (see ConnectionProtocol).
+     */
+    public void setReady(int capabilities) {
+
+        setCapabilities(capabilities);
+
+        deltaGossip = deltaGossip
+            && (capabilities & ConnectionProtocol.CAPABILITY_DELTA_GOSSIP) != 0;
+
+        timedPing =
+            (capabilities & ConnectionProtocol.CAPABILITY_TIMED_PING) != 0;
+
+        linkMetrics =
+            (capabilities & ConnectionProtocol.CAPABILITY_LINK_METRICS) != 0;
+
+        ready = true;
+        releaseMessages();
+    }
+
+    /**
+     * Drops the messages queued for this connection, since it could not be
+     * set up.
+     */
+    public void setFailed() {
+        discardMessages();
     }
 
     public synchronized void setLastSendState() {
@@ -67,6 +215,11 @@ public class HubConnection extends MessageForwardingConnection {
 
     public void gossip() {
 
+        if (!ready) {
+            // The handshake is still in progress.
+            return;
+        }
+
         long newSendState = state.get();
 
         if (goslogger.isInfoEnabled()) {
@@ -77,10 +230,21 @@ public class HubConnection extends MessageForwardingConnection {
 
         knownHubs.select(ss);
 
+        LinkedList<HubDescription> result = ss.getResult();
+
+        if (deltaGossip) {
+            addResyncs(result);
+        }
+
         try {
+            // The gossip is encoded here and then sent as a single message,
+            // so that the gossip thread never waits for the peer's socket.
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream buf = new DataOutputStream(bytes);
+
             int writes = 0;
 
-            for (HubDescription tmp : ss.getResult()) {
+            for (HubDescription tmp : result) {
 
                 if (goslogger.isInfoEnabled()) {
                     goslogger.info("    Writing hub: " + tmp.hubAddressAsString);
@@ -92,17 +256,41 @@ public class HubConnection extends MessageForwardingConnection {
                             + " > lastSendState= " + lastSendState);
                 }
 
-                writeHub(tmp);
+                if (deltaGossip) {
+                    writeHubDelta(buf, tmp);
+                } else {
+                    writeHub(buf, tmp);
+                }
+
                 writes++;
             }
 
+            if (linkMetrics) {
+
+                MetricsSelector ms = new MetricsSelector(lastSendState);
+
+                knownHubs.select(ms);
+
+                for (HubDescription tmp : ms.getResult()) {
+                    writeMetrics(buf, tmp);
+                    writes++;
+                }
+            }
+
             if (writes == 0) {
                 // No proxies where written, so write a ping instead.
-                writePing();
+                buf.write(HubProtocol.PING);
             }
 
-            synchronized (out) {
-                out.flush();
+            buf.flush();
+
+            if (!enqueueControl(new EncodedMessage(bytes.toByteArray(),
+                    bytes.size()))) {
+                return;
+            }
+
+            if (timedPing) {
+                enqueueControl(new TimedPingMessage());
             }
 
             lastSendState = newSendState;
@@ -113,54 +301,81 @@ public class HubConnection extends MessageForwardingConnection {
             goslogger.warn("Unhandled exception in HubConnection!!", e);
             disconnect();
         }
-
     }
 
-    private void writePing() throws IOException {
-        synchronized (out) {
-            out.write(HubProtocol.PING);
+    private void writeHub(DataOutputStream out, HubDescription d)
+            throws IOException {
+
+        out.write(HubProtocol.GOSSIP);
+
+        out.writeUTF(d.hubAddress.toString());
+        out.writeUTF(d.getName());
+        out.writeUTF(d.getVizInfo());
+        out.writeInt(d.getHops());
+
+        if (d.isLocal()) {
+            out.writeLong(d.getLastLocalUpdate());
+        } else {
+            out.writeLong(d.getHomeState());
         }
-    }
 
-    private void writeHub(HubDescription d) throws IOException {
+        ArrayList<ClientDescription> clients = d.getClients(null);
 
-        synchronized (out) {
-            out.write(HubProtocol.GOSSIP);
+        out.writeInt(clients.size());
 
-            out.writeUTF(d.hubAddress.toString());
-            out.writeUTF(d.getName());
-            out.writeUTF(d.getVizInfo());
-            out.writeInt(d.getHops());
+        for (ClientDescription c : clients) {
+            c.write(out);
+        }
 
-            if (d.isLocal()) {
-                out.writeLong(d.getLastLocalUpdate());
-            } else {
-                out.writeLong(d.getHomeState());
-            }
+        String [] connectedTo = d.connectedTo();
 
-            ArrayList<ClientDescription> clients = d.getClients(null);
+        if (connectedTo == null || connectedTo.length == 0) {
+            out.writeInt(0);
+            return;
+        }
 
-            out.writeInt(clients.size());
+        out.writeInt(connectedTo.length);
 
-            for (ClientDescription c : clients) {
-                c.write(out);
-            }
+        for (String c : connectedTo) {
+            out.writeUTF(c);
+        }
+    }
 
-            String [] connectedTo = d.connectedTo();
+    private void writeMetrics(DataOutputStream out, HubDescription d)
+            throws IOException {
 
-            if (connectedTo == null || connectedTo.length == 0) {
-                out.writeInt(0);
-                return;
-            }
+        LinkMetrics [] metrics = d.linkMetrics();
 
-            out.writeInt(connectedTo.length);
+        out.write(HubProtocol.GOSSIP_METRICS);
+        DirectSocketAddress.write(d.hubAddress, out);
+        out.writeLong(d.getMetricsState());
+        out.writeInt(metrics.length);
 
-            for (String c : connectedTo) {
-                out.writeUTF(c);
-            }
+        for (LinkMetrics m : metrics) {
+            m.write(out);
         }
     }
 
+    private void readMetrics() throws IOException {
+
+        DirectSocketAddress address = DirectSocketAddress.read(in);
+        long state = in.readLong();
+
+        LinkMetrics [] metrics = new LinkMetrics[in.readInt()];
+
+        for (int i=0;i<metrics.length;i++) {
+            metrics[i] = LinkMetrics.read(in);
+        }
+
+        HubDescription tmp = knownHubs.add(address);
+
+        if (tmp != local) {
+            tmp.updateLinkMetrics(metrics, state);
+        }
+
+        peer.setContactTimeStamp(false);
+    }
+
     private void readHub() throws IOException {
 
         DirectSocketAddress address = DirectSocketAddress.getByAddress(in.readUTF());
@@ -189,60 +404,264 @@ public class HubConnection extends MessageForwardingConnection {
             a[i] = in.readUTF();
         }
 
-        if (local.hubAddress.equals(address)) {
+        if (isNewer(tmp, name, hops, state)) {
+            tmp.update(c, a, name, state, color);
+        }
+
+        peer.setContactTimeStamp(false);
+    }
+
+    // Checks if the information about a hub is more recent than what we
+    // already know. Also updates the route to the hub if needed.
+    private boolean isNewer(HubDescription tmp, String name, int hops,
+            long state) {
+
+        if (local == tmp) {
             // Just received information about myself!
             if (hops == 0) {
                 peer.setCanReachMe();
             } else {
                 peer.setCanNotReachMe();
             }
-        } else if (tmp == peer) {
+
+            return false;
+        }
+
+        if (tmp == peer) {
             // The peer send information about itself. This should
             // always be up-to-date.
-            if (state > tmp.getHomeState()) {
-                tmp.update(c, a, name, state, color);
-            } else if (state < tmp.getHomeState()) {
+            if (state < tmp.getHomeState()) {
                 goslogger.warn("EEK: got information directly from "
                         + peer.hubAddressAsString
                         + (name.length() > 0 ? (" (" + name + ")") : "")
                         + " which seems to be out of date! " + state
                         + " " + tmp.getHomeState());
             }
+
+            return state > tmp.getHomeState();
+        }
+
+        // We got information about a 'third party'.
+        if (hops+1 < tmp.getHops()) {
+            // We seem to have found a shorter route to the target
+            if (tmp.addIndirection(peer, hops+1)) {
+                if (vclogger.isDebugEnabled()) {
+                    vclogger.debug("Found shortcut to hub: "
+                            + tmp.hubAddressAsString + " via "
+                            + peer.hubAddressAsString + " in " + (hops+1)
+                            + " hops");
+                }
+            }
+        }
+
+        // Check if the information is more recent than what I know...
+        if (state < tmp.getHomeState()) {
+            String pn = peer.getName();
+
+            if (goslogger.isDebugEnabled()) {
+                goslogger.debug("Ignoring outdated information about "
+                    + tmp.hubAddressAsString
+                    + (name.length() > 0 ? (" (" + name + ")") : "")
+                    + " from " + peer.hubAddressAsString
+                    + (pn.length() > 0 ? (" (" + pn + ") ") : " ")
+                    + state + " "
+                    + tmp.getHomeState());
+            }
+        }
+
+        return state > tmp.getHomeState();
+    }
+
+    private void addResyncs(LinkedList<HubDescription> result) {
+
+        LinkedList<DirectSocketAddress> tmp;
+
+        synchronized (sent) {
+            if (resync.size() == 0) {
+                return;
+            }
+
+            tmp = resync;
+            resync = new LinkedList<DirectSocketAddress>();
+        }
+
+        for (DirectSocketAddress a : tmp) {
+
+            HubDescription d = knownHubs.get(a);
+
+            if (d != null && !result.contains(d)) {
+                result.add(d);
+            }
+        }
+    }
+
+    private void writeHubDelta(DataOutputStream out, HubDescription d)
+            throws IOException {
+
+        long current;
+
+        if (d.isLocal()) {
+            current = d.getLastLocalUpdate();
         } else {
-            // We got information about a 'third party'.
-            if (hops+1 < tmp.getHops()) {
-                // We seem to have found a shorter route to the target
-                if (tmp.addIndirection(peer, hops+1)) {
-                    if (vclogger.isDebugEnabled()) {
-                        vclogger.debug("Found shortcut to hub: "
-                                + tmp.hubAddressAsString + " via "
-                                + peer.hubAddressAsString + " in " + (hops+1)
-                                + " hops");
-                    }
+            current = d.getHomeState();
+        }
+
+        ArrayList<ClientDescription> clients = d.getClients(null);
+        String [] connectedTo = d.connectedTo();
+
+        SentDescription prev;
+
+        synchronized (sent) {
+            prev = sent.get(d.hubAddress);
+        }
+
+        HashMap<DirectSocketAddress, Long> versions =
+            new HashMap<DirectSocketAddress, Long>();
+
+        ArrayList<ClientDescription> changed = new ArrayList<ClientDescription>();
+
+        for (ClientDescription c : clients) {
+
+            Long v = (prev == null ? null : prev.clients.get(c.getAddress()));
+
+            if (v == null || v.longValue() != c.getVersion()) {
+                changed.add(c);
+            } else {
+                versions.put(c.getAddress(), v);
+            }
+        }
+
+        out.write(HubProtocol.GOSSIP_DELTA);
+
+        DirectSocketAddress.write(d.hubAddress, out);
+        out.writeUTF(d.getName());
+        out.writeUTF(d.getVizInfo());
+        out.writeInt(d.getHops());
+
+        out.writeLong(prev == null ? HubProtocol.FULL_STATE : prev.state);
+        out.writeLong(current);
+
+        out.writeInt(changed.size());
+
+        for (ClientDescription c : changed) {
+            versions.put(c.getAddress(), c.writeBinary(out));
+        }
+
+        // All current clients are now in 'versions', so anything else
+        // we've sent before is gone.
+        ArrayList<DirectSocketAddress> removed =
+            new ArrayList<DirectSocketAddress>();
+
+        if (prev != null) {
+            for (DirectSocketAddress a : prev.clients.keySet()) {
+                if (!versions.containsKey(a)) {
+                    removed.add(a);
                 }
             }
+        }
 
-            // Check if the information is more recent than what I know...
-            if (state > tmp.getHomeState()) {
-                tmp.update(c, a, name, state, color);
-            } else if (state < tmp.getHomeState()) {
-                String pn = peer.getName();
+        out.writeInt(removed.size());
 
-                if (goslogger.isDebugEnabled()) {
-                    goslogger.debug("Ignoring outdated information about "
-                        + tmp.hubAddressAsString
-                        + (name.length() > 0 ? (" (" + name + ")") : "")
-                        + " from " + peer.hubAddressAsString
-                        + (pn.length() > 0 ? (" (" + pn + ") ") : " ")
-                        + state + " "
-                        + tmp.getHomeState());
+        for (DirectSocketAddress a : removed) {
+            DirectSocketAddress.write(a, out);
+        }
+
+        if (prev != null && Arrays.equals(prev.connectedTo, connectedTo)) {
+            // unchanged
+            out.writeInt(-1);
+        } else {
+            out.writeInt(connectedTo.length);
+
+            for (String c : connectedTo) {
+                out.writeUTF(c);
+            }
+        }
+
+        synchronized (sent) {
+            sent.put(d.hubAddress,
+                    new SentDescription(current, versions, connectedTo));
+        }
+    }
+
+    private void readHubDelta() throws IOException {
+
+        DirectSocketAddress address = DirectSocketAddress.read(in);
+        String name = in.readUTF();
+        String color = in.readUTF();
+        int hops = in.readInt();
+
+        long base = in.readLong();
+        long state = in.readLong();
+
+        int count = in.readInt();
+
+        ClientDescription [] changed = new ClientDescription[count];
+
+        for (int i=0;i<count;i++) {
+            changed[i] = ClientDescription.readBinary(in);
+        }
+
+        count = in.readInt();
+
+        DirectSocketAddress [] removed = new DirectSocketAddress[count];
+
+        for (int i=0;i<count;i++) {
+            removed[i] = DirectSocketAddress.read(in);
+        }
+
+        count = in.readInt();
+
+        String [] a = null;
+
+        if (count >= 0) {
+            a = new String[count];
+
+            for (int i=0;i<count;i++) {
+                a[i] = in.readUTF();
+            }
+        }
+
+        HubDescription tmp = knownHubs.add(address);
+
+        if (isNewer(tmp, name, hops, state)) {
+
+            if (base == HubProtocol.FULL_STATE) {
+                tmp.update(changed, (a == null ? new String[0] : a), name,
+                        state, color);
+            } else if (base == tmp.getHomeState()) {
+                tmp.updateDelta(changed, removed, a, name, state, color);
+            } else {
+                // We've missed a change, so the delta is useless.
+                if (goslogger.isInfoEnabled()) {
+                    goslogger.info("Gossip gap for " + tmp.hubAddressAsString
+                            + " (have " + tmp.getHomeState() + ", got "
+                            + base + "-" + state + "), requesting resync from "
+                            + peer.hubAddressAsString);
                 }
+
+                enqueueControl(new ResyncMessage(address));
             }
         }
 
         peer.setContactTimeStamp(false);
     }
 
+    private void handleResync() throws IOException {
+
+        DirectSocketAddress address = DirectSocketAddress.read(in);
+
+        if (goslogger.isInfoEnabled()) {
+            goslogger.info("Got resync request for " + address + " from "
+                    + peer.hubAddressAsString);
+        }
+
+        synchronized (sent) {
+            // The next description we send will be a complete one.
+            sent.remove(address);
+            resync.add(address);
+        }
+    }
+
     private void handlePing() {
         if (goslogger.isInfoEnabled()) {
             goslogger.debug("Got ping from " + peer.hubAddress);
@@ -251,21 +670,166 @@ public class HubConnection extends MessageForwardingConnection {
         peer.setContactTimeStamp(false);
     }
 
+    private void handleTimedPing() throws IOException {
+
+        long received = System.nanoTime();
+        long time = in.readLong();
+
+        peer.setContactTimeStamp(false);
+
+        enqueueControl(new PongMessage(time, received));
+    }
+
+    private void handlePong() throws IOException {
+
+        long now = System.nanoTime();
+        long sample = now - in.readLong() - in.readLong();
+
+        if (sample < 0) {
+            return;
+        }
+
+        synchronized (this) {
+            if (rttSamples < RTT_WARMUP) {
+                // The first samples are often taken while the hubs are still
+                // busy starting up, so we start from the smallest one.
+                rtt = (rtt < 0 ? sample : Math.min(rtt, sample));
+                rttSamples++;
+            } else {
+                rtt += (sample - rtt) / 8;
+            }
+        }
+
+        if (goslogger.isDebugEnabled()) {
+            goslogger.debug("RTT to " + peer.hubAddressAsString + " is "
+                    + getRTT() + " us (sample " + (sample / 1000) + " us)");
+        }
+
+        publishMetrics();
+    }
+
+    // Returns true if 'value' is outside the band around 'published' in which
+    // changes are considered to be noise.
+    private static boolean changed(long value, long published, long floor) {
+        return Math.abs(value - published) > Math.max(published / 4, floor);
+    }
+
+    // Puts the metrics of this link in the local description, so they are
+    // gossiped to the other hubs. Since each change triggers a gossip round,
+    // the first value of a metric is published right away, but after that
+    // only changes of more than 25% are, and no more than once every
+    // METRICS_INTERVAL.
+    private void publishMetrics() {
+
+        long r = getRTT();
+        long b = getBandwidth();
+
+        synchronized (this) {
+
+            boolean first = (r >= 0 && publishedRTT < 0)
+                || (b > 0 && publishedBandwidth <= 0);
+
+            if (!first) {
+
+                long now = System.currentTimeMillis();
+
+                if (now - lastPublished < METRICS_INTERVAL) {
+                    return;
+                }
+
+                if (!(r >= 0 && changed(r, publishedRTT, MIN_RTT_CHANGE))
+                        && !(b > 0 && changed(b, publishedBandwidth, 0))) {
+                    return;
+                }
+            }
+
+            publishedRTT = r;
+            publishedBandwidth = b;
+            lastPublished = System.currentTimeMillis();
+        }
+
+        local.setLinkMetrics(peer.hubAddressAsString, r, b);
+    }
+
+    /**
+     * Returns the smoothed round trip time to the peer in microseconds, or -1
+     * if it has not been measured yet.
+     *
+     * @return the round trip time to the peer.
+     */
+    public synchronized long getRTT() {
+        return rttSamples < RTT_WARMUP ? -1 : rtt / 1000;
+    }
+
     protected String getName() {
         return "HubConnection(" + peer.hubAddress + ")";
     }
 
+    DirectSocketAddress getPeerAddress() {
+        return peer.hubAddress;
+    }
+
+    public void addLink(HubDataConnection c) {
+        synchronized (links) {
+            links.add(c);
+        }
+    }
+
+    void removeLink(HubDataConnection c) {
+        synchronized (links) {
+            links.remove(c);
+        }
+    }
+
+    // Returns the connection that should carry virtual connection 'index'.
+    MessageForwardingConnection selectLink(long index) {
+        synchronized (links) {
+            if (links.size() == 0) {
+                return this;
+            }
+
+            int i = (int) ((index & Long.MAX_VALUE) % (links.size() + 1));
+
+            if (i == links.size()) {
+                return this;
+            }
+
+            return links.get(i);
+        }
+    }
+
     private void disconnect() {
 
-        // Update the administration
-        connections.removeHub(peer.hubAddress);
+        synchronized (this) {
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+        }
+
+        // Update the administration, unless we have already been replaced
+        // by a newer connection to the same hub.
+        if (connections.removeHub(peer.hubAddress, this)) {
+            local.removeConnectedTo(peer.hubAddressAsString);
+        }
 
-        local.removeConnectedTo(peer.hubAddressAsString);
-        peer.removeConnection();
+        peer.removeConnection(this);
 
         DirectSocketFactory.close(s, out, in);
 
-        closeAllVirtualConnections(uniquePrefix);
+        closeAllVirtualConnections();
+
+        // The other links of the bundle go down with us.
+        HubDataConnection [] tmp;
+
+        synchronized (links) {
+            tmp = links.toArray(new HubDataConnection[links.size()]);
+            links.clear();
+        }
+
+        for (HubDataConnection c : tmp) {
+            c.handleDisconnect(null);
+        }
     }
 
     protected boolean handleOpcode(int opcode) {
@@ -280,6 +844,24 @@ public class HubConnection extends MessageForwardingConnection {
                 readHub();
                 return true;
 
+            case HubProtocol.GOSSIP_DELTA:
+                if (goslogger.isInfoEnabled()) {
+                    goslogger.info("HubConnection got delta gossip!");
+                }
+                readHubDelta();
+                return true;
+
+            case HubProtocol.GOSSIP_RESYNC:
+                handleResync();
+                return true;
+
+            case HubProtocol.GOSSIP_METRICS:
+                if (goslogger.isInfoEnabled()) {
+                    goslogger.info("HubConnection got link metrics!");
+                }
+                readMetrics();
+                return true;
+
             case HubProtocol.PING:
                 if (goslogger.isInfoEnabled()) {
                     goslogger.info("HubConnection got ping!");
@@ -287,6 +869,14 @@ public class HubConnection extends MessageForwardingConnection {
                 handlePing();
                 return true;
 
+            case HubProtocol.PING_TIMED:
+                handleTimedPing();
+                return true;
+
+            case HubProtocol.PONG:
+                handlePong();
+                return true;
+
             default:
                 conlogger.warn("HubConnection got junk!");
                 disconnect();
@@ -302,6 +892,14 @@ public class HubConnection extends MessageForwardingConnection {
     }
 
     protected void handleDisconnect(Exception e) {
-        vclogger.warn("Hub lost connection to " + peer.hubAddressAsString + " (disconnect not implemented!)", e);
+
+        if (e != null) {
+            conlogger.warn("Hub lost connection to " + peer.hubAddressAsString,
+                    e);
+        } else if (conlogger.isInfoEnabled()) {
+            conlogger.info("Hub disconnected from " + peer.hubAddressAsString);
+        }
+
+        disconnect();
     }
 }
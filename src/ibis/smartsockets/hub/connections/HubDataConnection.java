@@ -0,0 +1,84 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.hub.Connections;
+import ibis.smartsockets.hub.StatisticsCallback;
+import ibis.smartsockets.hub.state.HubList;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Additional connection between two hubs that only carries virtual
+ * connections.
+ *
+ * Together with the HubConnection it belongs to, it forms a bundle of TCP
+ * connections between the two hubs. The virtual connections between the hubs
+ * are spread over the bundle, which allows them to fill links that a single
+ * TCP connection cannot. The bundle shares the index space of the
+ * HubConnection. Only the HubConnection is known to the rest of the hub, and
+ * is used for the gossiping.
+ */
+public class HubDataConnection extends MessageForwardingConnection {
+
+    private static Logger conlogger =
+        LoggerFactory.getLogger("ibis.smartsockets.hub.connections.hub");
+
+    private final HubConnection primary;
+    private final int link;
+
+    public HubDataConnection(HubConnection primary, int link,
+            DirectSocket s, DataInputStream in, DataOutputStream out,
+            Connections connections, HubList hubs, VirtualConnections vcs,
+            StatisticsCallback callback, long statisticsInterval) {
+
+        super(s, in, out, connections, hubs, vcs, primary.index,
+                "Hub(" + primary.getPeerAddress() + ", " + link + ")",
+                callback, statisticsInterval);
+
+        this.primary = primary;
+        this.link = link;
+
+        if (conlogger.isDebugEnabled()) {
+            conlogger.debug("Created link " + link + " to hub: "
+                    + primary.getPeerAddress());
+        }
+    }
+
+    // The links of a bundle share the capabilities of the HubConnection.
+    boolean peerSupports(int capability) {
+        return primary.peerSupports(capability);
+    }
+
+    protected void handleDisconnect(Exception e) {
+
+        if (conlogger.isDebugEnabled()) {
+            conlogger.debug("Removed link " + link + " to hub "
+                    + primary.getPeerAddress());
+        }
+
+        primary.removeLink(this);
+        DirectSocketFactory.close(s, out, in);
+
+        // Close all connections that have an endpoint at our side
+        closeAllVirtualConnections();
+    }
+
+    protected String getName() {
+        return "HubDataConnection(" + primary.getPeerAddress() + ", " + link
+            + ")";
+    }
+
+    protected boolean handleOpcode(int opcode) {
+
+        conlogger.warn("Link " + link + " to hub " + primary.getPeerAddress()
+                + " got unknown opcode " + opcode + " -- disconnecting");
+
+        handleDisconnect(null);
+        return false;
+    }
+}
@@ -14,7 +14,52 @@ public interface MessageForwarderProtocol extends ConnectionProtocol {
     public static final byte MESSAGE_VIRTUAL         = 65;
     public static final byte MESSAGE_VIRTUAL_ACK     = 66;
 
+    // Unreliable datagram. Followed by an int length and that many bytes:
+    // a hop count (1 byte), the target hub, target, source and source hub
+    // (in coded form, see DirectSocketAddress.write), an int module id, the
+    // module name (UTF) and the data.
     public static final byte DATA_MESSAGE            = 68;
+
+    // Maximum size of a datagram (including its header) and the maximum
+    // number of hubs it may pass.
+    public static final int MAX_DATAGRAM             = 64*1024;
+    public static final int MAX_DATAGRAM_HOPS        = 16;
+
+    // Old format of a message between clients. Hubs still accept it, but
+    // forward it as a CLIENT_MESSAGE. It is only sent to clients and hubs
+    // that do not accept CLIENT_MESSAGE (see ConnectionProtocol).
     public static final byte INFO_MESSAGE            = 69;
 
+    // Message between clients. Followed by an int length and that many
+    // bytes: the hash of the hub the message is heading for (int, 0 if
+    // unknown), the hops left (1 byte), flags (1 byte), the source, source
+    // hub, target and target hub (in coded form), an int module id, the
+    // module name (UTF), an int opcode and the message. See ClientMessage.
+    public static final byte CLIENT_MESSAGE          = 70;
+
+    // Flag of a CLIENT_MESSAGE that is returned to its sender.
+    public static final int RETURN_TO_SENDER         = 1;
+
+    // Message for all clients that have a property with a given tag (or all
+    // clients if the tag is empty). Followed by an int length and that many
+    // bytes: the hops left (1 byte), the number of hubs the message must
+    // still reach (int, -1 if not known yet) and their addresses, the source
+    // and source hub (in coded form), the tag (in the same form, as UTF-8),
+    // an int module id, the module name (UTF), an int opcode and the message.
+    // Only sent to hubs with CAPABILITY_BROADCAST (see ConnectionProtocol).
+    // See BroadcastMessage.
+    public static final byte BROADCAST_MESSAGE       = 71;
+
+    // Maximum number of hubs a broadcast may pass.
+    public static final int MAX_BROADCAST_HOPS       = 16;
+
+    // CREATE_VIRTUAL followed by the number of hubs the request may still
+    // pass (1 byte). Only sent to hubs with CAPABILITY_VIRTUAL_HOPS (see
+    // ConnectionProtocol). Others get a CREATE_VIRTUAL, which starts out
+    // with MAX_VIRTUAL_HOPS at the next hub.
+    public static final byte CREATE_VIRTUAL_HOPS     = 72;
+
+    // Maximum number of hubs a virtual connection setup may pass.
+    public static final int MAX_VIRTUAL_HOPS         = 16;
+
 }
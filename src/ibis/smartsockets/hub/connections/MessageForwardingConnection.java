@@ -9,10 +9,13 @@ import ibis.smartsockets.hub.Statistics;
 import ibis.smartsockets.hub.StatisticsCallback;
 
 import ibis.smartsockets.hub.servicelink.ServiceLinkProtocol;
+import ibis.smartsockets.hub.state.ClientDescription;
 import ibis.smartsockets.hub.state.DirectionsSelector;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
 import ibis.smartsockets.hub.state.HubsForClientSelector;
+import ibis.smartsockets.hub.state.HubsForTagSelector;
+import ibis.smartsockets.util.LongHashMap;
 import ibis.smartsockets.util.MalformedAddressException;
 
 import java.io.DataInputStream;
@@ -20,7 +23,11 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +46,18 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
     protected final VirtualConnectionIndex index;
 
+    // All virtual connection traffic is send through this queue.
+    private final SendQueue sendQueue;
+
+    // The extensions of the protocol the peer supports (see
+    // ConnectionProtocol). Set during the connection setup.
+    private volatile int capabilities = 0;
+
+    // The virtual connections that use this connection. Only accessed by
+    // VirtualConnections, which uses it as a lock.
+    final LongHashMap<VirtualConnection> virtualConnectionTable =
+        new LongHashMap<VirtualConnection>();
+
     /*
      * private long connectionsTotal; private long connectionsFailed;
      *
@@ -69,12 +88,25 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             VirtualConnections vcs, boolean master, String name,
             StatisticsCallback callback, long statisticsInterval) {
 
+        this(s, in, out, connections, hubs, vcs,
+                new VirtualConnectionIndex(master), name, callback,
+                statisticsInterval);
+    }
+
+    // Used by connections that must share their index space with another
+    // connection to the same client.
+    protected MessageForwardingConnection(DirectSocket s, DataInputStream in,
+            DataOutputStream out, Connections connections, HubList hubs,
+            VirtualConnections vcs, VirtualConnectionIndex index, String name,
+            StatisticsCallback callback, long statisticsInterval) {
+
         super(s, in, out, connections, hubs, callback, statisticsInterval);
 
         this.name = name;
         this.virtualConnections = vcs;
+        this.index = index;
 
-        index = new VirtualConnectionIndex(master);
+        sendQueue = new SendQueue(this, out, "SendQueue(" + name + ")");
 
         stats = new MessageForwardingConnectionStatistics("Connection(" + name
                 + ")");
@@ -111,7 +143,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             return;
         }
 
-        if (cm.hopsLeft == 0) {
+        if (cm.getHopsLeft() == 0) {
             if (meslogger.isInfoEnabled()) {
                 meslogger
                         .info("Failed to forward message to hub "
@@ -132,7 +164,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // We don't have a direct connection, but we should be able to reach the
         // proxy indirectly
-        HubDescription p2 = p.getIndirection();
+        HubDescription p2 = route(p);
 
         if (p2 == null) {
             // Oh dear, we don't have an indirection!
@@ -175,7 +207,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         if (meslogger.isDebugEnabled()) {
 
-            if (cm.returnToSender) {
+            if (cm.getReturnToSender()) {
                 meslogger
                         .debug("Attempting to directly return message to sender "
                                 + cm.sourceAsString());
@@ -196,7 +228,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         }
 
         if (meslogger.isDebugEnabled()) {
-            if (cm.returnToSender) {
+            if (cm.getReturnToSender()) {
                 meslogger.debug("Directly return message to sender "
                         + cm.sourceAsString()
                         + (result ? " succeeded!" : "failed!"));
@@ -210,37 +242,27 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         return result;
     }
 
-    private boolean forwardToHub(ClientMessage cm, boolean setHops) {
-
-        DirectSocketAddress hub = cm.getTargetHub();
-
-        // Lets see if we directly know the targetHub and if it knows the target
-        if (hub == null) {
-            if (meslogger.isDebugEnabled()) {
-                meslogger.debug("Target hub not set!");
-            }
-            return false;
-        }
-
-        HubDescription p = knownHubs.get(hub);
+    private boolean forwardToHub(ClientMessage cm, HubDescription p,
+            boolean setHops) {
 
         if (p == null) {
             if (meslogger.isDebugEnabled()) {
-                meslogger.debug("Target hub " + hub + " does not know client "
-                        + cm.getTarget());
+                meslogger.debug("Target hub " + cm.getTargetHub()
+                        + " does not know client " + cm.getTarget());
             }
             return false;
         }
 
         // The targetHub exists so forward the message.
         if (setHops) {
-            cm.hopsLeft = p.getHops();
+            cm.setHopsLeft(p.getHops());
         }
 
         forwardMessageToHub(p, cm);
 
         if (meslogger.isDebugEnabled()) {
-            meslogger.debug("Directly forwarded message to hub: " + hub);
+            meslogger.debug("Directly forwarded message to hub: "
+                    + p.hubAddressAsString);
         }
 
         return true;
@@ -251,9 +273,26 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         stats.infoMessages++;
         stats.infoMessagesBytes += m.messageSize();
 
-        if (m.getSourceHub() == null) {
-            // should never happen, but we like to program defensively
-            m.setSourceHub(getLocalHub());
+        // should never be needed, but we like to program defensively
+        m.setSourceHub(getLocalHub());
+
+        if (m.targetHubHash() != 0) {
+
+            // Find the target hub using the hash in the routing prefix, so we
+            // don't have to decode its address.
+            HubDescription p = knownHubs.get(m.targetHubHash());
+
+            if (p != null && m.isTargetHub(p.hubAddress)) {
+
+                if (p.isLocal()) {
+                    if (!deliverLocally(m)) {
+                        returnToSender(m);
+                    }
+                } else {
+                    forwardToHub(m, p, setHops);
+                }
+                return;
+            }
         }
 
         DirectSocketAddress hub = m.getTargetHub();
@@ -280,7 +319,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             if (result.size() == 0) {
                 // No hubs were found that known the client, so lets return the
                 // message to the sender...
-                if (m.returnToSender) {
+                if (m.getReturnToSender()) {
                     if (meslogger.isDebugEnabled()) {
                         meslogger
                                 .debug("Cannot return message to sender, since it "
@@ -306,7 +345,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             for (HubDescription h : result) {
 
                 if (setHops) {
-                    m.hopsLeft = h.getHops();
+                    m.setHopsLeft(h.getHops());
                 }
 
                 forwardMessageToHub(h, m);
@@ -324,7 +363,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
             } else {
 
-                if (forwardToHub(m, setHops)) {
+                if (forwardToHub(m, knownHubs.get(hub), setHops)) {
                     return;
                 } else {
                     returnToSender(m);
@@ -337,43 +376,50 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // System.out.println("**** Returning to sender....");
 
-        if (m.returnToSender) {
+        if (m.getReturnToSender()) {
             // should never happen!
             // System.out.println("**** Returning to sender says EEK");
             return;
         }
 
         // System.out.println("**** Returning to sender says her I go!");
-        m.returnToSender = true;
+        m.returnToSender();
         forward(m, true);
     }
 
+    // Queues a client message for this connection. Returns false if the
+    // connection is dead. The message is copied, since the caller may still
+    // change it (for example, to send it elsewhere as well).
     protected final boolean forwardClientMessage(ClientMessage m) {
 
-        try {
-            synchronized (out) {
-                out.writeByte(MessageForwarderProtocol.INFO_MESSAGE);
-                m.write(out);
-                out.flush();
-            }
+        boolean result = sendQueue.enqueue(new ClientMessageOut(this,
+                    m.copy()));
 
-            return true;
-        } catch (Exception e) {
-            handleDisconnect(e);
+        if (!result && meslogger.isDebugEnabled()) {
+            meslogger.debug("Forwarding message failed: " + m);
+        }
 
-            if (meslogger.isDebugEnabled()) {
-                meslogger.debug("Forwarding message failed: " + m, e);
-            } else {
-                // TODO: remove
-                meslogger.warn("Forwarding message failed: " + m, e);
-            }
+        return result;
+    }
 
-            return false;
+    // Queues a broadcast for this connection. Returns false if the
+    // connection is dead.
+    protected final boolean forwardBroadcastMessage(BroadcastMessage m) {
+
+        boolean result = sendQueue.enqueue(new BroadcastMessageOut(m));
+
+        if (!result && meslogger.isDebugEnabled()) {
+            meslogger.debug("Forwarding broadcast failed: " + m);
         }
+
+        return result;
     }
 
     // Virtual connection parts...
-    protected final void handleCreateVirtual() throws IOException {
+    // Handles a CREATE_VIRTUAL, or a CREATE_VIRTUAL_HOPS if 'hops' is set.
+    // Requests that do not carry a hop count may pass MAX_VIRTUAL_HOPS hubs
+    // from here.
+    protected final void handleCreateVirtual(boolean hops) throws IOException {
 
         DirectSocketAddress source = DirectSocketAddress.read(in);
         DirectSocketAddress sourceHub = DirectSocketAddress.read(in);
@@ -388,6 +434,12 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         int fragment = in.readInt();
         int buffer = in.readInt();
 
+        int hopsLeft = MessageForwarderProtocol.MAX_VIRTUAL_HOPS;
+
+        if (hops) {
+            hopsLeft = in.readByte();
+        }
+
         if (vclogger.isInfoEnabled()) {
             vclogger.info("VC connection request for: " + index);
         }
@@ -398,7 +450,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         }
 
         processVirtualConnect(source, sourceHub, target, targetHub, index,
-                timeout, port, fragment, buffer);
+                timeout, port, fragment, buffer, hopsLeft);
     }
 
     protected final void handleCloseVirtual() throws IOException {
@@ -427,9 +479,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         stats.messages++;
         stats.messagesBytes += size;
 
-        String key = getUniqueID(index);
-
-        VirtualConnection vc = virtualConnections.find(key);
+        VirtualConnection vc = virtualConnections.find(this, index);
 
         if (vc == null) {
             // Connection doesn't exist. It may already be closed by the other
@@ -450,6 +500,47 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         // entries in the VC is ours. The easiest way is to simply compare the
         // 'mfX' references to 'this'. Note that we cannot compare the index
         // values, since they are not unique!
+        if (this != vc.mfc1 && this != vc.mfc2) {
+            stats.messagesError++;
+
+            skipBytes(size);
+
+            // This should never happen!
+            vclogger.error("Virtual connection error: forwarder not found, "
+                    + "message lost!!!", new Exception());
+            return;
+        }
+
+        // The message is queued by the connection that forwards it. A sender
+        // may never have more data in transit than it has credits, so this
+        // also limits the size of the queue.
+        if (!vc.reserve(this, size)) {
+            stats.messagesError++;
+
+            vclogger.warn("Virtual connection " + vc + " exceeded its "
+                    + "credits, closing it!");
+
+            skipBytes(size);
+
+            // Close both sides.
+            closeVirtualConnection(index);
+            forwardVirtualClose(index);
+            return;
+        }
+
+        // NOTE: the buffer is returned to the pool once the message has been
+        // written to the target.
+        ByteBuffer data = BufferPool.get(size);
+
+        try {
+            readFully(data);
+        } catch (IOException e) {
+            BufferPool.release(data);
+            throw e;
+        }
+
+        data.flip();
+
         if (this == vc.mfc1) {
 
             if (vclogger.isInfoEnabled()) {
@@ -457,29 +548,16 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                         + " (" + vc.index1 + ")");
             }
 
-            // Read the data into the (pre allocated) buffer.
-            in.readFully(vc.buffer1, 0, size);
-            vc.mfc2.forwardVirtualMessage(vc.index2, vc.buffer1, size);
+            vc.mfc2.forwardVirtualMessage(vc.index2, data);
 
-        } else if (this == vc.mfc2) {
+        } else {
 
             if (vclogger.isInfoEnabled()) {
                 vclogger.info("forward message " + index + " " + vc.index1
                         + " (" + vc.index2 + ")");
             }
 
-            // Read the data into the (pre allocated) buffer.
-            in.readFully(vc.buffer2, 0, size);
-            vc.mfc1.forwardVirtualMessage(vc.index1, vc.buffer2, size);
-
-        } else {
-            stats.messagesError++;
-
-            skipBytes(size);
-
-            // This should never happen!
-            vclogger.error("Virtual connection error: forwarder not found, "
-                    + "message lost!!!", new Exception());
+            vc.mfc1.forwardVirtualMessage(vc.index1, data);
         }
     }
 
@@ -519,212 +597,490 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         processVirtualConnectNACK(index, reason);
     }
 
-    protected final void handleClientMessage() throws IOException {
-        ClientMessage cm = new ClientMessage(in);
+    // Handles a CLIENT_MESSAGE, or an INFO_MESSAGE if 'info' is set.
+    protected final void handleClientMessage(boolean info) throws IOException {
+
+        ClientMessage cm;
+
+        if (info) {
+            cm = ClientMessage.readInfoMessage(in);
+        } else {
+            cm = ClientMessage.read(in);
+        }
 
         if (meslogger.isDebugEnabled()) {
             meslogger.debug("Got info message: " + cm);
         }
 
-        forward(cm, false);
+        try {
+            forward(cm, false);
+        } catch (MalformedAddressException e) {
+            meslogger.warn("Dropping client message with malformed address", e);
+            stats.infoMessagesDropped++;
+        }
     }
 
-    private void forwardData(byte[] data) throws UnknownHostException,
-            MalformedAddressException {
-
-        // DirectSocketAddress hub = DirectSocketAddress.fromBytes(data, 4);
-
-        // System.err.println("Hub is " + hub);
-
-        /*
-         * int off = 4 + (hub == null ? 4 : 4 + hub.getAddress().length);
-         *
-         * //System.err.println("Off is " + off);
-         *
-         * DirectSocketAddress node = DirectSocketAddress.fromBytes(data, off);
-         *
-         * //System.err.println("Node is " + node);
-         *
-         * off += node.getAddress().length;
-         */
-        // System.err.println("Dropping data for " + node + " @ " + hub + " :
-        // length " + (data.length-off));
+    protected final void handleBroadcastMessage() throws IOException {
+
+        BroadcastMessage bm = BroadcastMessage.read(in);
+
+        stats.broadcasts++;
+        stats.broadcastsBytes += bm.messageSize();
+
+        if (meslogger.isDebugEnabled()) {
+            meslogger.debug("Got broadcast: " + bm);
+        }
+
+        try {
+            broadcast(bm);
+        } catch (MalformedAddressException e) {
+            meslogger.warn("Dropping broadcast with malformed address", e);
+            stats.broadcastsDropped++;
+        }
     }
 
-    protected final void handleDataMessage() throws IOException {
+    // Delivers a broadcast to the local clients (if the local hub is one of
+    // its targets) and passes it on to the other targets. The targets are
+    // grouped by the hub they are routed through, and each of these hubs
+    // gets a single copy for its group, which it splits up again in the same
+    // way. Since every target ends up in exactly one group, the copies form
+    // a tree rooted at the source hub, and a link never carries the same
+    // broadcast twice.
+    private void broadcast(BroadcastMessage bm) {
 
-        int len = in.readInt();
+        HubDescription local = knownHubs.getLocalDescription();
 
-        byte[] data = new byte[len];
+        DirectSocketAddress [] targets = bm.getTargets();
 
-        in.readFully(data);
+        if (targets == null) {
 
-        if (meslogger.isDebugEnabled()) {
-            meslogger.debug("Got data message: [" + data.length + "]");
+            // The message comes from one of our clients, so we are the
+            // source hub and must find all hubs that should get it.
+            bm.setSourceHub(local.hubAddress);
+
+            HubsForTagSelector s = new HubsForTagSelector(bm.getTag());
+            knownHubs.select(s);
+
+            LinkedList<HubDescription> result = s.getResult();
+
+            targets = new DirectSocketAddress[result.size()];
+
+            int i = 0;
+
+            for (HubDescription d : result) {
+                targets[i++] = d.hubAddress;
+            }
         }
 
-        try {
-            forwardData(data);
-        } catch (Exception e) {
-            meslogger.warn("Failed to process data message: [" + data.length
-                    + "]", e);
+        HashMap<HubConnection, ArrayList<DirectSocketAddress>> groups =
+            new HashMap<HubConnection, ArrayList<DirectSocketAddress>>();
+
+        for (DirectSocketAddress t : targets) {
+
+            HubDescription d = knownHubs.get(t);
+
+            if (d == null) {
+                if (meslogger.isDebugEnabled()) {
+                    meslogger.debug("Dropping broadcast for unknown hub " + t);
+                }
+                stats.broadcastsDropped++;
+                continue;
+            }
+
+            if (d.isLocal()) {
+                deliverBroadcast(bm, d);
+                continue;
+            }
+
+            if (bm.getHopsLeft() <= 0) {
+                if (meslogger.isDebugEnabled()) {
+                    meslogger.debug("Dropping broadcast for hub " + t
+                            + ": hop limit reached");
+                }
+                stats.broadcastsDropped++;
+                continue;
+            }
+
+            HubConnection c = connections.getHub(t);
+
+            if (c == null) {
+                HubDescription next = route(d);
+
+                if (next != null) {
+                    c = connections.getHub(next.hubAddress);
+                }
+            }
+
+            if (c == null) {
+                if (meslogger.isDebugEnabled()) {
+                    meslogger.debug("Dropping broadcast for hub " + t
+                            + ": no route");
+                }
+                stats.broadcastsDropped++;
+                continue;
+            }
+
+            if (!c.peerSupports(ConnectionProtocol.CAPABILITY_BROADCAST)) {
+                // An older hub, which closes the connection on a
+                // BROADCAST_MESSAGE.
+                unicastBroadcast(bm, d, c);
+                continue;
+            }
+
+            ArrayList<DirectSocketAddress> group = groups.get(c);
+
+            if (group == null) {
+                group = new ArrayList<DirectSocketAddress>();
+                groups.put(c, group);
+            }
+
+            group.add(t);
+        }
+
+        for (Map.Entry<HubConnection, ArrayList<DirectSocketAddress>> e :
+                groups.entrySet()) {
+
+            ArrayList<DirectSocketAddress> group = e.getValue();
+
+            BroadcastMessage copy = bm.forward(
+                    group.toArray(new DirectSocketAddress[group.size()]));
+
+            if (e.getKey().forwardBroadcastMessage(copy)) {
+                stats.broadcastsForwarded++;
+            } else {
+                stats.broadcastsDropped++;
+            }
         }
     }
 
-    protected abstract void handleDisconnect(Exception e);
+    // Sends a broadcast to the clients of a remote hub as separate client
+    // messages, since the next hop does not accept broadcasts.
+    private void unicastBroadcast(BroadcastMessage bm, HubDescription target,
+            HubConnection c) {
 
-    protected abstract String getUniqueID(long index);
+        for (ClientDescription d : target.getClients(bm.getTag())) {
 
-    private final void forwardVirtualConnect(DirectSocketAddress source,
-            DirectSocketAddress sourceHub, DirectSocketAddress target,
-            DirectSocketAddress targetHub, long index, int timeout, int port,
-            int fragment, int buffer) {
+            boolean result;
 
-        // TODO: Should be asynchronous ???
+            try {
+                ClientMessage cm = bm.deliverTo(d.getAddress(),
+                        target.hubAddress);
+                cm.setHopsLeft(target.getHops());
+                result = c.forwardClientMessage(cm);
+            } catch (IOException e) {
+                meslogger.warn("Failed to forward broadcast: " + bm, e);
+                result = false;
+            }
 
-        // Send the connect request to the hub
-        try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.CREATE_VIRTUAL);
+            if (result) {
+                stats.broadcastsForwarded++;
+            } else {
+                stats.broadcastsDropped++;
+            }
+        }
+    }
+
+    // Delivers a broadcast to all local clients with its tag.
+    private void deliverBroadcast(BroadcastMessage bm, HubDescription local) {
 
-                DirectSocketAddress.write(source, out);
-                DirectSocketAddress.write(sourceHub, out);
+        for (ClientDescription d : local.getClients(bm.getTag())) {
 
-                DirectSocketAddress.write(target, out);
-                DirectSocketAddress.write(targetHub, out);
+            ClientConnection c = connections.getClient(d.getAddress());
 
-                out.writeLong(index);
+            if (c == null) {
+                continue;
+            }
 
-                out.writeInt(timeout);
-                out.writeInt(port);
-                out.writeInt(fragment);
-                out.writeInt(buffer);
+            boolean result;
 
-                out.flush();
+            try {
+                result = c.forwardClientMessage(
+                        bm.deliverTo(d.getAddress(), local.hubAddress));
+            } catch (IOException e) {
+                meslogger.warn("Failed to deliver broadcast: " + bm, e);
+                result = false;
+            }
+
+            if (result) {
+                stats.broadcastsDelivered++;
+            } else {
+                stats.broadcastsDropped++;
             }
-        } catch (Exception e) {
-            handleDisconnect(e);
         }
     }
 
-    private final void forwardVirtualConnectACK(long index, int fragment,
-            int buffer) {
+    // Returns the offset just beyond the coded address at offset 'off' in
+    // 'data', or -1 if the address does not fit.
+    private static int skipAddress(ByteBuffer data, int off) {
 
-        // TODO: Should be asynchronous ???
+        if (off + 4 > data.limit()) {
+            return -1;
+        }
 
-        // forward the ACK
-        try {
-            synchronized (out) {
-                out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK);
-                out.writeLong(index);
-                out.writeInt(fragment);
-                out.writeInt(buffer);
-                out.flush();
+        int len = data.getInt(off);
+
+        if (len < 0 || off + 4 + len > data.limit()) {
+            return -1;
+        }
+
+        return off + 4 + len;
+    }
+
+    private static DirectSocketAddress readAddress(ByteBuffer data, int off)
+        throws UnknownHostException, MalformedAddressException {
+
+        int len = data.getInt(off);
+
+        if (len == 0) {
+            return null;
+        }
+
+        byte [] tmp = new byte[len];
+
+        ByteBuffer b = data.duplicate();
+        b.position(off + 4);
+        b.get(tmp);
+
+        return DirectSocketAddress.fromBytes(tmp);
+    }
+
+    // Forwards a datagram to the target client, or to the next hub on the
+    // route to its hub. Returns false if the datagram was dropped.
+    private boolean forwardDatagram(ByteBuffer data)
+        throws UnknownHostException, MalformedAddressException {
+
+        int targetOff = skipAddress(data, 1);
+        int end = targetOff < 0 ? -1 : skipAddress(data, targetOff);
+
+        if (end < 0) {
+            meslogger.warn("Dropping malformed datagram");
+            return false;
+        }
+
+        DirectSocketAddress targetHub = readAddress(data, 1);
+        DirectSocketAddress target = readAddress(data, targetOff);
+
+        HubDescription local = knownHubs.getLocalDescription();
+
+        if (targetHub == null || targetHub.equals(local.hubAddress)) {
+
+            ClientConnection c = connections.getClient(target);
+
+            if (c == null) {
+                if (meslogger.isDebugEnabled()) {
+                    meslogger.debug("Dropping datagram for unknown client "
+                            + target);
+                }
+                return false;
             }
-        } catch (Exception e) {
-            handleDisconnect(e);
+
+            c.enqueueDatagram(data);
+            stats.datagramsDelivered++;
+            return true;
+        }
+
+        int hops = data.get(0);
+
+        if (hops <= 0) {
+            if (meslogger.isDebugEnabled()) {
+                meslogger.debug("Dropping datagram for " + target + " @ "
+                        + targetHub + ": hop limit reached");
+            }
+            return false;
         }
+
+        data.put(0, (byte) (hops-1));
+
+        MessageForwardingConnection mf = connections.getHub(targetHub);
+
+        if (mf == null) {
+            HubDescription d = knownHubs.get(targetHub);
+
+            if (d != null) {
+                HubDescription next = route(d);
+
+                if (next != null) {
+                    mf = connections.getHub(next.hubAddress);
+                }
+            }
+        }
+
+        if (mf == null) {
+            if (meslogger.isDebugEnabled()) {
+                meslogger.debug("Dropping datagram for " + target + " @ "
+                        + targetHub + ": no route");
+            }
+            return false;
+        }
+
+        mf.enqueueDatagram(data);
+        stats.datagramsForwarded++;
+        return true;
     }
 
-    private final void forwardVirtualConnectACKACK(long index, boolean succes) {
+    protected final void handleDataMessage() throws IOException {
 
-        // TODO: Should be asynchronous ???
+        int len = in.readInt();
 
-        // System.err.println("****** ACK ACK OUT " + index + " " + succes);
+        stats.datagrams++;
+        stats.datagramsBytes += len;
+
+        if (len <= 0 || len > MessageForwarderProtocol.MAX_DATAGRAM) {
+            meslogger.warn("Dropping datagram of " + len + " bytes");
+            stats.datagramsDropped++;
+            skipBytes(Math.max(len, 0));
+            return;
+        }
+
+        // NOTE: the buffer is returned to the pool once the datagram has been
+        // written to the next hop.
+        ByteBuffer data = BufferPool.get(len);
 
-        // forward the ACK
         try {
-            synchronized (out) {
-                out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK);
-                out.writeLong(index);
-                out.writeBoolean(succes);
-                out.flush();
-            }
+            readFully(data);
+        } catch (IOException e) {
+            BufferPool.release(data);
+            throw e;
+        }
+
+        data.flip();
+
+        if (meslogger.isDebugEnabled()) {
+            meslogger.debug("Got datagram: [" + len + "]");
+        }
+
+        boolean forwarded = false;
+
+        try {
+            forwarded = forwardDatagram(data);
         } catch (Exception e) {
-            handleDisconnect(e);
+            meslogger.warn("Failed to process datagram: [" + len + "]", e);
+        }
+
+        if (!forwarded) {
+            stats.datagramsDropped++;
+            BufferPool.release(data);
         }
+    }
+
+    // Queues a datagram for this connection. It may be dropped if the queue
+    // is full.
+    final void enqueueDatagram(ByteBuffer data) {
+        sendQueue.enqueue(new DatagramMessage(data));
+    }
+
+    // Queues a message in the control lane of this connection. Returns false
+    // if the connection is dead.
+    //
+    // NOTE: all messages must be written to the connection using the send
+    // queue. When the NIO engine is used, the message handlers run on a
+    // selector thread, which must never wait for the socket of a peer.
+    final boolean enqueueControl(SendQueue.Message m) {
+        return sendQueue.enqueue(m);
+    }
+
+    final void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    // Returns true if the peer announced 'capability' during the connection
+    // setup.
+    boolean peerSupports(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    // Holds all messages queued for this connection until 'releaseMessages'
+    // is called. Used while the connection is being set up, since nothing
+    // may be sent before the connect reply.
+    final void holdMessages() {
+        sendQueue.hold();
+    }
+
+    final void releaseMessages() {
+        sendQueue.release();
+    }
+
+    final void discardMessages() {
+        sendQueue.discard();
+    }
+
+    protected abstract void handleDisconnect(Exception e);
 
-        // System.err.println("****** ACK ACK OUT DONE " + index + " " +
-        // succes);
+    /**
+     * Returns the estimated bandwidth of this connection in bytes per second,
+     * or 0 if it is not known yet.
+     *
+     * @return the estimated bandwidth.
+     */
+    public long getBandwidth() {
+        return sendQueue.getBandwidth();
+    }
+
+    private final void forwardVirtualConnect(DirectSocketAddress source,
+            DirectSocketAddress sourceHub, DirectSocketAddress target,
+            DirectSocketAddress targetHub, long index, int timeout, int port,
+            int fragment, int buffer, int hopsLeft) {
+
+        // Send the connect request to the hub
+        sendQueue.enqueue(new VirtualConnectMessage(this, source, sourceHub,
+                target, targetHub, index, timeout, port, fragment, buffer,
+                hopsLeft));
+    }
+
+    private final void forwardVirtualConnectACK(long index, int fragment,
+            int buffer) {
+
+        // forward the ACK
+        sendQueue.enqueue(new VirtualControlMessage(
+                MessageForwarderProtocol.CREATE_VIRTUAL_ACK, index, fragment,
+                buffer));
+    }
+
+    private final void forwardVirtualConnectACKACK(long index, boolean succes) {
+
+        // forward the ACK
+        sendQueue.enqueue(new VirtualControlMessage(
+                MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK, index,
+                succes ? 1 : 0, 0));
     }
 
     private final void forwardVirtualConnectNACK(long index, byte reason) {
-        // TODO: Should be asynchronous ???
 
         // forward the NACK
-        try {
-            synchronized (out) {
-                out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_NACK);
-                out.writeLong(index);
-                out.writeByte(reason);
-                out.flush();
-            }
-        } catch (Exception e) {
-            handleDisconnect(e);
-        }
+        sendQueue.enqueue(new VirtualControlMessage(
+                MessageForwarderProtocol.CREATE_VIRTUAL_NACK, index, reason,
+                0));
     }
 
     private final void forwardVirtualClose(long index) {
 
-        // TODO: Should be asynchronous ???
-
         if (vclogger.isInfoEnabled()) {
             vclogger.info("Sending closing connection: " + index);
         }
+
         // forward the close
-        try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.CLOSE_VIRTUAL);
-                out.writeLong(index);
-                out.flush();
-            }
-        } catch (Exception e) {
-            handleDisconnect(e);
-        }
+        sendQueue.enqueue(new VirtualControlMessage(
+                MessageForwarderProtocol.CLOSE_VIRTUAL, index, 0, 0));
     }
 
-    private final void forwardVirtualMessage(long index, byte[] data, int size) {
-
-        // TODO: Should be asynchronous ???
+    private final void forwardVirtualMessage(long index, ByteBuffer data) {
 
         // forward the message
-        try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
-                out.writeLong(index);
-                out.writeInt(size);
-                out.write(data, 0, size);
-                out.flush();
-            }
-        } catch (Exception e) {
-            handleDisconnect(e);
-        }
+        sendQueue.enqueue(new VirtualDataMessage(index, data));
     }
 
     private final void forwardVirtualMessageAck(long index, int data) {
 
-        // TODO: Should be asynchronous ???
-
         // forward the message ack
-        try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK);
-                out.writeLong(index);
-                out.writeInt(data);
-                out.flush();
-            }
-        } catch (Exception e) {
-            handleDisconnect(e);
-        }
+        sendQueue.enqueue(new VirtualControlMessage(
+                MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK, index, data, 0));
     }
 
     private void processMessageACK(long index, int data) {
 
         stats.messageACK++;
 
-        String key = getUniqueID(index);
-
-        VirtualConnection vc = virtualConnections.find(key);
+        VirtualConnection vc = virtualConnections.find(this, index);
 
         if (vc == null) {
 
@@ -747,6 +1103,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                 vclogger.info("forward connect ACK for 2: " + vc.index2);
             }
 
+            vc.ack(this, data);
             vc.mfc2.forwardVirtualMessageAck(vc.index2, data);
 
         } else if (this == vc.mfc2) {
@@ -755,6 +1112,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                 vclogger.info("forward connect ACK for 1: " + vc.index1);
             }
 
+            vc.ack(this, data);
             vc.mfc1.forwardVirtualMessageAck(vc.index1, data);
 
         } else {
@@ -771,9 +1129,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         stats.closeTotal++;
 
-        String id = getUniqueID(index);
-
-        VirtualConnection vc = virtualConnections.remove(id);
+        VirtualConnection vc = virtualConnections.remove(this, index);
 
         if (vc == null) {
             // Connection doesn't exist. It may already be closed (this can
@@ -819,20 +1175,42 @@ public abstract class MessageForwardingConnection extends BaseConnection {
     }
 
     private VirtualConnection createConnection(
-            MessageForwardingConnection mfc1, String id1, long index1,
-            int fragment1) {
+            MessageForwardingConnection mfc1, long index1, int buffer1) {
 
         long index2 = index.nextIndex();
-        String id2 = getUniqueID(index2);
 
-        return new VirtualConnection(mfc1, id1, index1, fragment1, this, id2,
-                index2);
+        return new VirtualConnection(mfc1, index1, buffer1, this, index2);
+    }
+
+    // Returns the hub to forward messages for hub 'd' to if we don't have a
+    // connection to it. The shortest route is used if there is one, otherwise
+    // we fall back to the hub that told us about 'd'.
+    private HubDescription route(HubDescription d) {
+
+        HubDescription next = knownHubs.nextHop(d);
+
+        if (next == null) {
+            next = d.getIndirection();
+        }
+
+        return next;
+    }
+
+    // Selects the link to hub 'c' that should carry virtual connection 'index'.
+    private static MessageForwardingConnection selectLink(HubConnection c,
+            long index) {
+
+        if (c == null) {
+            return null;
+        }
+
+        return c.selectLink(index);
     }
 
     private void processVirtualConnect(DirectSocketAddress source,
             DirectSocketAddress sourceHub, DirectSocketAddress target,
             DirectSocketAddress targetHub, long index, int timeout, int port,
-            int fragment, int buffer) {
+            int fragment, int buffer, int hopsLeft) {
 
         stats.connectionsTotal++;
 
@@ -848,7 +1226,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         if (tmp != null) {
 
-            if (tmp == this) {
+            if (tmp == this || tmp.hasDataLink(this)) {
                 // connecting to oneself over a hub is generally not a good idea
                 // although it should work ?
                 forwardVirtualConnectNACK(index,
@@ -858,12 +1236,26 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                 return;
             }
 
-            mf = tmp;
+            // If the client has data links, the connection goes there.
+            mf = tmp.selectDataLink(index);
+        }
+
+        if (mf == null && hopsLeft <= 0) {
+            // Hubs with a different view of the network may otherwise pass
+            // the request around until it times out.
+            vclogger.info("Hop limit reached during virtual connection setup ("
+                    + source + " -> " + target + ") : " + index);
+
+            forwardVirtualConnectNACK(index,
+                    ServiceLinkProtocol.ERROR_UNKNOWN_HOST);
+
+            stats.connectionsFailed++;
+            return;
         }
 
         if (mf == null && targetHub != null) {
 
-            mf = connections.getHub(targetHub);
+            mf = selectLink(connections.getHub(targetHub), index);
 
             if (mf == null) {
                 // Failed to get a connection to the specified hub. Maybe there
@@ -871,10 +1263,11 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                 HubDescription d = knownHubs.get(targetHub);
 
                 if (d != null) {
-                    HubDescription indirect = d.getIndirection();
+                    HubDescription indirect = route(d);
 
                     if (indirect != null && indirect.haveConnection()) {
-                        mf = connections.getHub(indirect.hubAddress);
+                        mf = selectLink(connections.getHub(indirect.hubAddress),
+                                index);
                     } else {
                         vclogger.info("Failed to find indirection for hub: "
                                 + targetHub
@@ -898,7 +1291,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
             if (result.size() > 0) {
                 // TODO: send in Multiple directions.... ?
-                mf = connections.getHub(result.get(0));
+                mf = selectLink(connections.getHub(result.get(0)), index);
             }
 
             // NOTE: we may not be able to find the client here, since we don't
@@ -919,12 +1312,9 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         // We found a target connection, so let's create the necessary
         // connection administration....
 
-        // Get a unique id so that we can find the connection again later...
-        String id = getUniqueID(index);
-
         // We now delegate the actual creation of the connection object to
         // the target (since it has the rest of the required info).
-        VirtualConnection vc = mf.createConnection(this, id, index, fragment);
+        VirtualConnection vc = mf.createConnection(this, index, buffer);
 
         // Register the virtual connection, so everyone can find it
         virtualConnections.register(vc);
@@ -933,7 +1323,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         // represents (a client or a hub). This should be an asynchronous
         // call to prevent deadlocks!!
         mf.forwardVirtualConnect(source, sourceHub, target, targetHub,
-                vc.index2, timeout, port, fragment, buffer);
+                vc.index2, timeout, port, fragment, buffer, hopsLeft - 1);
     }
 
     private void processVirtualConnectNACK(long index, byte reason) {
@@ -947,7 +1337,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // It's a NACK so we remove the connection, since it's no
         // longer used after we forwarded the reply
-        VirtualConnection vc = virtualConnections.remove(getUniqueID(index));
+        VirtualConnection vc = virtualConnections.remove(this, index);
 
         if (vc == null) {
             // Connection doesn't exist. It may already be closed by the other
@@ -995,10 +1385,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                     + buffer + ")");
         }
 
-        String key = getUniqueID(index);
-
         // It's an ACK, so we just retrieve the connection...
-        VirtualConnection vc = virtualConnections.find(key);
+        VirtualConnection vc = virtualConnections.find(this, index);
 
         if (vc == null) {
             // Connection doesn't exist. It may already be closed by the other
@@ -1009,7 +1397,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             return;
         }
 
-        vc.setSecondBuffer(fragment);
+        vc.setSecondBuffer(buffer);
 
         // The second connection in VC should be the one sending the ACK. Check
         // to make sure...
@@ -1039,10 +1427,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             vclogger.debug("Got connect ACK ACK: " + index + ")");
         }
 
-        String key = getUniqueID(index);
-
         // It's an ACK, so we just retrieve the connection...
-        VirtualConnection vc = virtualConnections.find(key);
+        VirtualConnection vc = virtualConnections.find(this, index);
 
         if (vc == null) {
 
@@ -1077,9 +1463,9 @@ public abstract class MessageForwardingConnection extends BaseConnection {
     }
 
     // Called when a connection to a client/hub is lost....
-    protected void closeAllVirtualConnections(String prefix) {
+    protected void closeAllVirtualConnections() {
 
-        LinkedList<VirtualConnection> l = virtualConnections.removeAll(prefix);
+        LinkedList<VirtualConnection> l = virtualConnections.removeAll(this);
 
         for (VirtualConnection vc : l) {
 
@@ -1154,6 +1540,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         stats.setEndTime();
 
+        sendQueue.addStatistics(stats);
+
         MessageForwardingConnectionStatistics tmp = stats;
         stats = new MessageForwardingConnectionStatistics("Connection("
                 + name + ")");
@@ -1181,7 +1569,21 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                 if (meslogger.isInfoEnabled()) {
                     meslogger.info("HubConnection got info message!");
                 }
-                handleClientMessage();
+                handleClientMessage(true);
+                return true;
+
+            case MessageForwarderProtocol.CLIENT_MESSAGE:
+                if (meslogger.isInfoEnabled()) {
+                    meslogger.info("HubConnection got client message!");
+                }
+                handleClientMessage(false);
+                return true;
+
+            case MessageForwarderProtocol.BROADCAST_MESSAGE:
+                if (meslogger.isInfoEnabled()) {
+                    meslogger.info("HubConnection got broadcast message!");
+                }
+                handleBroadcastMessage();
                 return true;
 
             case MessageForwarderProtocol.DATA_MESSAGE:
@@ -1196,7 +1598,15 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                     meslogger.info("HubConnection got virtual connect!");
                 }
 
-                handleCreateVirtual();
+                handleCreateVirtual(false);
+                return true;
+
+            case MessageForwarderProtocol.CREATE_VIRTUAL_HOPS:
+                if (meslogger.isInfoEnabled()) {
+                    meslogger.info("HubConnection got virtual connect!");
+                }
+
+                handleCreateVirtual(true);
                 return true;
 
             case MessageForwarderProtocol.CREATE_VIRTUAL_ACK:
@@ -1263,4 +1673,262 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         return false;
     }
 
+    // The create message of a virtual connection.
+    // A connect request. The hop count is only sent to hubs that accept it.
+    private static final class VirtualConnectMessage extends SendQueue.Message {
+
+        private final MessageForwardingConnection connection;
+
+        private final DirectSocketAddress source;
+        private final DirectSocketAddress sourceHub;
+        private final DirectSocketAddress target;
+        private final DirectSocketAddress targetHub;
+        private final long index;
+        private final int timeout;
+        private final int port;
+        private final int fragment;
+        private final int buffer;
+        private final int hopsLeft;
+
+        VirtualConnectMessage(MessageForwardingConnection connection,
+                DirectSocketAddress source, DirectSocketAddress sourceHub,
+                DirectSocketAddress target, DirectSocketAddress targetHub,
+                long index, int timeout, int port, int fragment, int buffer,
+                int hopsLeft) {
+
+            this.connection = connection;
+            this.source = source;
+            this.sourceHub = sourceHub;
+            this.target = target;
+            this.targetHub = targetHub;
+            this.index = index;
+            this.timeout = timeout;
+            this.port = port;
+            this.fragment = fragment;
+            this.buffer = buffer;
+            this.hopsLeft = hopsLeft;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+
+            boolean hops = connection.peerSupports(
+                    ConnectionProtocol.CAPABILITY_VIRTUAL_HOPS);
+
+            if (hops) {
+                out.write(MessageForwarderProtocol.CREATE_VIRTUAL_HOPS);
+            } else {
+                out.write(MessageForwarderProtocol.CREATE_VIRTUAL);
+            }
+
+            DirectSocketAddress.write(source, out);
+            DirectSocketAddress.write(sourceHub, out);
+
+            DirectSocketAddress.write(target, out);
+            DirectSocketAddress.write(targetHub, out);
+
+            out.writeLong(index);
+
+            out.writeInt(timeout);
+            out.writeInt(port);
+            out.writeInt(fragment);
+            out.writeInt(buffer);
+
+            if (hops) {
+                out.writeByte(hopsLeft);
+            }
+        }
+    }
+
+    // All other virtual connection messages that do not contain data. These
+    // consist of an opcode, the index, and (depending on the opcode) at most
+    // two small values.
+    private static final class VirtualControlMessage extends SendQueue.Message {
+
+        private final int opcode;
+        private final long index;
+        private final int value1;
+        private final int value2;
+
+        VirtualControlMessage(int opcode, long index, int value1, int value2) {
+            this.opcode = opcode;
+            this.index = index;
+            this.value1 = value1;
+            this.value2 = value2;
+        }
+
+        // A close must stay behind the data of its connection.
+        boolean bulk() {
+            return opcode == MessageForwarderProtocol.CLOSE_VIRTUAL;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+
+            out.write(opcode);
+            out.writeLong(index);
+
+            switch (opcode) {
+            case MessageForwarderProtocol.CREATE_VIRTUAL_ACK:
+                out.writeInt(value1);
+                out.writeInt(value2);
+                break;
+
+            case MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK:
+                out.writeBoolean(value1 != 0);
+                break;
+
+            case MessageForwarderProtocol.CREATE_VIRTUAL_NACK:
+                out.writeByte(value1);
+                break;
+
+            case MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK:
+                out.writeInt(value1);
+                break;
+
+            default:
+                // CLOSE_VIRTUAL only has the index.
+                break;
+            }
+        }
+    }
+
+    // A message between clients. The format is chosen when the message is
+    // written, since the capabilities of a hub are not known until its
+    // connection is ready.
+    private static final class ClientMessageOut extends SendQueue.Message {
+
+        private final MessageForwardingConnection connection;
+        private final ClientMessage m;
+
+        ClientMessageOut(MessageForwardingConnection connection,
+                ClientMessage m) {
+            this.connection = connection;
+            this.m = m;
+        }
+
+        int length() {
+            return 5 + (int) m.messageSize();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+
+            if (connection.peerSupports(
+                    ConnectionProtocol.CAPABILITY_CLIENT_MESSAGE)) {
+                out.write(MessageForwarderProtocol.CLIENT_MESSAGE);
+                m.write(out);
+            } else {
+                out.write(MessageForwarderProtocol.INFO_MESSAGE);
+                m.writeInfoMessage(out);
+            }
+        }
+    }
+
+    // A broadcast.
+    private static final class BroadcastMessageOut extends SendQueue.Message {
+
+        private final BroadcastMessage m;
+
+        BroadcastMessageOut(BroadcastMessage m) {
+            this.m = m;
+        }
+
+        int length() {
+            return 5 + (int) m.messageSize();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(MessageForwarderProtocol.BROADCAST_MESSAGE);
+            m.write(out);
+        }
+    }
+
+    // A message that has already been written to a buffer.
+    static final class EncodedMessage extends SendQueue.Message {
+
+        private final byte [] data;
+        private final int size;
+
+        EncodedMessage(byte [] data, int size) {
+            this.data = data;
+            this.size = size;
+        }
+
+        int length() {
+            return size;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(data, 0, size);
+        }
+    }
+
+    // A datagram. It holds on to its (pooled) buffer until it has been written
+    // or dropped.
+    private static final class DatagramMessage extends SendQueue.Message {
+
+        private final ByteBuffer data;
+        private final int size;
+
+        DatagramMessage(ByteBuffer data) {
+            this.data = data;
+            this.size = data.remaining();
+        }
+
+        void done() {
+            BufferPool.release(data);
+        }
+
+        ByteBuffer payload() {
+            return data;
+        }
+
+        boolean datagram() {
+            return true;
+        }
+
+        int length() {
+            return 5 + size;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(MessageForwarderProtocol.DATA_MESSAGE);
+            out.writeInt(size);
+        }
+    }
+
+    // A data message of a virtual connection. It holds on to its (pooled)
+    // buffer until it has been written.
+    private static final class VirtualDataMessage extends SendQueue.Message {
+
+        private final long index;
+        private final ByteBuffer data;
+        private final int size;
+
+        VirtualDataMessage(long index, ByteBuffer data) {
+            this.index = index;
+            this.data = data;
+            this.size = data.remaining();
+        }
+
+        void done() {
+            BufferPool.release(data);
+        }
+
+        ByteBuffer payload() {
+            return data;
+        }
+
+        boolean bulk() {
+            return true;
+        }
+
+        int length() {
+            return 13 + size;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
+            out.writeLong(index);
+            out.writeInt(size);
+        }
+    }
 }
@@ -36,6 +36,36 @@ public class MessageForwardingConnectionStatistics extends Statistics {
     long infoMessagesDelivered;
     long infoMessagesFailed;
 
+    long sendQueueMessages;
+    long sendQueueWrites;
+
+    long sendQueueControl;
+    long sendQueueBulk;
+
+    // Queue depth of the lanes at the end of the interval, and the maximum
+    // depth during the interval.
+    int sendQueueControlDepth;
+    int sendQueueBulkDepth;
+    int sendQueueControlMaxDepth;
+    int sendQueueBulkMaxDepth;
+
+    long sendQueueDatagrams;
+    long sendQueueDatagramsDropped;
+    int sendQueueDatagramDepth;
+    int sendQueueDatagramMaxDepth;
+
+    long datagrams;
+    long datagramsBytes;
+    long datagramsDelivered;
+    long datagramsForwarded;
+    long datagramsDropped;
+
+    long broadcasts;
+    long broadcastsBytes;
+    long broadcastsDelivered;
+    long broadcastsForwarded;
+    long broadcastsDropped;
+
     public MessageForwardingConnectionStatistics(String name) {
         super(name);
     }
@@ -74,6 +104,38 @@ public class MessageForwardingConnectionStatistics extends Statistics {
         infoMessagesReturned += other.infoMessagesReturned;
         infoMessagesDelivered += other.infoMessagesDelivered;
         infoMessagesFailed += other.infoMessagesFailed;
+
+        sendQueueMessages += other.sendQueueMessages;
+        sendQueueWrites += other.sendQueueWrites;
+
+        sendQueueControl += other.sendQueueControl;
+        sendQueueBulk += other.sendQueueBulk;
+
+        sendQueueControlDepth += other.sendQueueControlDepth;
+        sendQueueBulkDepth += other.sendQueueBulkDepth;
+
+        sendQueueControlMaxDepth = Math.max(sendQueueControlMaxDepth,
+                other.sendQueueControlMaxDepth);
+        sendQueueBulkMaxDepth = Math.max(sendQueueBulkMaxDepth,
+                other.sendQueueBulkMaxDepth);
+
+        sendQueueDatagrams += other.sendQueueDatagrams;
+        sendQueueDatagramsDropped += other.sendQueueDatagramsDropped;
+        sendQueueDatagramDepth += other.sendQueueDatagramDepth;
+        sendQueueDatagramMaxDepth = Math.max(sendQueueDatagramMaxDepth,
+                other.sendQueueDatagramMaxDepth);
+
+        datagrams += other.datagrams;
+        datagramsBytes += other.datagramsBytes;
+        datagramsDelivered += other.datagramsDelivered;
+        datagramsForwarded += other.datagramsForwarded;
+        datagramsDropped += other.datagramsDropped;
+
+        broadcasts += other.broadcasts;
+        broadcastsBytes += other.broadcastsBytes;
+        broadcastsDelivered += other.broadcastsDelivered;
+        broadcastsForwarded += other.broadcastsForwarded;
+        broadcastsDropped += other.broadcastsDropped;
     }
 
     public void print(PrintStream out, String prefix) {
@@ -99,5 +161,27 @@ public class MessageForwardingConnectionStatistics extends Statistics {
         out.println(prefix + " - forwarded: " + infoMessagesForwarded);
         out.println(prefix + " - failed fw: " + infoMessagesFailed);
         out.println(prefix + " - returned : " + infoMessagesReturned);
+        out.println(prefix + "Datagrams   : " + datagrams);
+        out.println(prefix + " - bytes    : " + datagramsBytes);
+        out.println(prefix + " - delivered: " + datagramsDelivered);
+        out.println(prefix + " - forwarded: " + datagramsForwarded);
+        out.println(prefix + " - dropped  : " + datagramsDropped);
+        out.println(prefix + "Broadcasts  : " + broadcasts);
+        out.println(prefix + " - bytes    : " + broadcastsBytes);
+        out.println(prefix + " - delivered: " + broadcastsDelivered);
+        out.println(prefix + " - forwarded: " + broadcastsForwarded);
+        out.println(prefix + " - dropped  : " + broadcastsDropped);
+        out.println(prefix + "Queued mess.: " + sendQueueMessages);
+        out.println(prefix + " - writes   : " + sendQueueWrites);
+        out.println(prefix + " - control  : " + sendQueueControl);
+        out.println(prefix + "   - depth  : " + sendQueueControlDepth
+                + " (max " + sendQueueControlMaxDepth + ")");
+        out.println(prefix + " - bulk     : " + sendQueueBulk);
+        out.println(prefix + "   - depth  : " + sendQueueBulkDepth
+                + " (max " + sendQueueBulkMaxDepth + ")");
+        out.println(prefix + " - datagram : " + sendQueueDatagrams);
+        out.println(prefix + "   - depth  : " + sendQueueDatagramDepth
+                + " (max " + sendQueueDatagramMaxDepth + ")");
+        out.println(prefix + "   - dropped: " + sendQueueDatagramsDropped);
     }
 }
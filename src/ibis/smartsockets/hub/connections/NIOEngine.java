@@ -0,0 +1,398 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.util.ThreadPool;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Alternative engine for the hub connections.
+ *
+ * Instead of using a thread per connection, this engine multiplexes all
+ * connections over a small number of selector threads. The wire format is
+ * not changed. Incoming data is collected in a buffer per connection until
+ * a complete message is available (see {@link FrameScanner}), after which the
+ * regular message handler of the connection is invoked on that message.
+ *
+ * Connections whose socket does not have a channel (e.g., SSH tunnels) are
+ * still handled by a thread of their own.
+ */
+public class NIOEngine {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.hub.engine");
+
+    private static final int DEFAULT_BUFFER_SIZE = 16*1024;
+
+    private final SelectorThread [] selectors;
+
+    private int next = 0;
+
+    private boolean done = false;
+
+    public NIOEngine(int threads) throws IOException {
+
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        selectors = new SelectorThread[threads];
+
+        for (int i=0;i<threads;i++) {
+            selectors[i] = new SelectorThread(Selector.open());
+            ThreadPool.createNew(selectors[i], "HubSelector-" + i);
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Started NIO hub engine with " + threads
+                    + " selector threads");
+        }
+    }
+
+    /**
+     * Returns the stream that should be used to write to this socket. It
+     * remains usable after the socket has been handed to the engine.
+     */
+    public OutputStream getOutputStream(DirectSocket s) throws IOException {
+
+        SocketChannel channel = s.getChannel();
+
+        if (channel == null) {
+            return s.getOutputStream();
+        }
+
+        return new ChannelOutputStream(channel);
+    }
+
+    /**
+     * Starts servicing the connection. Any data that was already read from
+     * the socket during connection setup, but not used yet, is preserved.
+     */
+    public void activate(BaseConnection c) {
+
+        SocketChannel channel = c.s.getChannel();
+
+        if (channel == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("No channel for " + c.getName()
+                        + ", using a dedicated thread");
+            }
+
+            c.activate();
+            return;
+        }
+
+        Registration r;
+
+        try {
+            // The stream used during connection setup may still hold some
+            // data, so drain it before we start reading from the channel.
+            byte [] pending = new byte[c.in.available()];
+            c.in.readFully(pending);
+
+            channel.configureBlocking(false);
+
+            r = new Registration(c, channel, pending);
+        } catch (IOException e) {
+            logger.warn("Failed to hand " + c.getName() + " to the NIO "
+                    + "engine, using a dedicated thread", e);
+            c.activate();
+            return;
+        }
+
+        nextSelector().add(r);
+    }
+
+    private synchronized SelectorThread nextSelector() {
+        SelectorThread result = selectors[next];
+        next = (next + 1) % selectors.length;
+        return result;
+    }
+
+    private synchronized boolean getDone() {
+        return done;
+    }
+
+    public void end() {
+
+        synchronized (this) {
+            done = true;
+        }
+
+        for (SelectorThread s : selectors) {
+            s.selector.wakeup();
+        }
+    }
+
+    // Presents the current message in the buffer of a registration as a
+    // stream, so it can be read by the message handlers of the connection.
+    static final class FrameInputStream extends InputStream {
+
+        private ByteBuffer buffer;
+        private int end;
+
+        void set(ByteBuffer buffer, int end) {
+            this.buffer = buffer;
+            this.end = end;
+        }
+
+        public int available() {
+            return end - buffer.position();
+        }
+
+        public int read() {
+
+            if (buffer.position() >= end) {
+                return -1;
+            }
+
+            return buffer.get() & 0xFF;
+        }
+
+        public int read(byte [] b, int off, int len) {
+
+            if (len == 0) {
+                return 0;
+            }
+
+            int left = available();
+
+            if (left <= 0) {
+                return -1;
+            }
+
+            if (len > left) {
+                len = left;
+            }
+
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        void readFully(ByteBuffer dst) throws EOFException {
+
+            if (dst.remaining() > available()) {
+                throw new EOFException();
+            }
+
+            ByteBuffer tmp = buffer.duplicate();
+            tmp.limit(tmp.position() + dst.remaining());
+            dst.put(tmp);
+
+            buffer.position(tmp.position());
+        }
+
+        public long skip(long n) {
+
+            int left = available();
+
+            if (n > left) {
+                n = left;
+            }
+
+            if (n <= 0) {
+                return 0;
+            }
+
+            buffer.position(buffer.position() + (int) n);
+            return n;
+        }
+    }
+
+    private static final class Registration {
+
+        private final BaseConnection connection;
+        private final SocketChannel channel;
+
+        private final FrameScanner scanner = new FrameScanner();
+        private final FrameInputStream stream = new FrameInputStream();
+
+        // NOTE: the buffer is in 'fill' mode between invocations.
+        private ByteBuffer buffer;
+
+        Registration(BaseConnection connection, SocketChannel channel,
+                byte [] pending) {
+
+            this.connection = connection;
+            this.channel = channel;
+
+            buffer = ByteBuffer.allocate(
+                    Math.max(DEFAULT_BUFFER_SIZE, 2*pending.length));
+            buffer.put(pending);
+
+            connection.in = new DataInputStream(stream);
+            connection.frameIn = stream;
+            connection.channelOut = new ChannelOutputStream(channel);
+        }
+
+        // Reads the available data and processes all complete messages.
+        // Returns false if the connection should no longer be serviced.
+        boolean handleRead() {
+
+            boolean eof = false;
+
+            try {
+                eof = (channel.read(buffer) < 0);
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Read failed on " + connection.getName(), e);
+                }
+                eof = true;
+            }
+
+            return process(eof);
+        }
+
+        boolean process(boolean eof) {
+
+            buffer.flip();
+
+            try {
+                while (true) {
+
+                    int len = scanner.scan(buffer);
+
+                    if (len == FrameScanner.INCOMPLETE) {
+                        break;
+                    }
+
+                    int end = buffer.position() + len;
+
+                    stream.set(buffer, end);
+
+                    boolean cont = connection.handleNextMessage();
+
+                    // Don't trust the handler to read exactly one message.
+                    buffer.limit(Math.max(buffer.limit(), end));
+                    buffer.position(end);
+
+                    if (!cont) {
+                        return false;
+                    }
+                }
+
+                if (eof) {
+                    // Any partial message is useless now. Let the connection
+                    // see the end of the stream, so it cleans up.
+                    buffer.position(buffer.limit());
+                    stream.set(buffer, buffer.limit());
+                    connection.handleNextMessage();
+                    return false;
+                }
+
+            } finally {
+                buffer.compact();
+            }
+
+            if (!buffer.hasRemaining()) {
+                // A single message does not fit in the buffer. Grow it.
+                ByteBuffer tmp = ByteBuffer.allocate(2*buffer.capacity());
+                buffer.flip();
+                tmp.put(buffer);
+                buffer = tmp;
+            }
+
+            return true;
+        }
+    }
+
+    private final class SelectorThread implements Runnable {
+
+        private final Selector selector;
+
+        private final LinkedList<Registration> added =
+            new LinkedList<Registration>();
+
+        SelectorThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        void add(Registration r) {
+
+            synchronized (added) {
+                added.addLast(r);
+            }
+
+            selector.wakeup();
+        }
+
+        private void registerAdded() {
+
+            while (true) {
+
+                Registration r;
+
+                synchronized (added) {
+                    if (added.size() == 0) {
+                        return;
+                    }
+
+                    r = added.removeFirst();
+                }
+
+                try {
+                    SelectionKey key =
+                        r.channel.register(selector, SelectionKey.OP_READ, r);
+
+                    // Handle any data left over from the connection setup.
+                    if (!r.process(false)) {
+                        key.cancel();
+                    }
+                } catch (ClosedChannelException e) {
+                    // The connection was closed before we got to it.
+                    r.process(true);
+                }
+            }
+        }
+
+        public void run() {
+
+            while (!getDone()) {
+
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.error("Selector failed, NIO engine thread stopped!",
+                            e);
+                    return;
+                }
+
+                registerAdded();
+
+                Iterator<SelectionKey> itt = selector.selectedKeys().iterator();
+
+                while (itt.hasNext()) {
+
+                    SelectionKey key = itt.next();
+                    itt.remove();
+
+                    Registration r = (Registration) key.attachment();
+
+                    if (!key.isValid() || !r.handleRead()) {
+                        key.cancel();
+                    }
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
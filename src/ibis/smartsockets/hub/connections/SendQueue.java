@@ -0,0 +1,536 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.util.ThreadPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Outgoing message queue of a MessageForwardingConnection.
+ *
+ * Messages are written to the connection by a separate writer thread, so the
+ * thread that is forwarding a message (usually the reader of some other
+ * connection) never blocks on a slow peer. Everything a connection sends once
+ * it has been set up goes through its queue. The writer writes all messages
+ * that are queued at that point in one go, followed by a single flush.
+ *
+ * When the connection is handled by the NIO engine, the messages are written
+ * using a single gathering write on the channel. The payload of a message
+ * (a pooled direct buffer) is then passed to the channel as is.
+ *
+ * The writer thread is only active while there is something to write.
+ *
+ * The amount of virtual connection data in the queue is bounded by the credit
+ * scheme used by the virtual connections (see VirtualConnection.reserve).
+ *
+ * Messages are queued in one of two lanes. The control lane contains the
+ * small messages, such as gossip, client messages, replies to requests and
+ * the messages that set up and acknowledge virtual connections. The bulk
+ * lane contains the virtual connection data (and the closes, which must not
+ * overtake the data of their connection). Each write round takes up to
+ * CONTROL_QUANTUM bytes from the control lane, followed by up to BULK_QUANTUM
+ * bytes from the bulk lane, so a control message never waits for more than
+ * one round of bulk data.
+ *
+ * Datagrams are queued in a third lane, which is served between the control
+ * and bulk lanes. Since datagrams are unreliable, and not bounded by any
+ * flow control, this lane is bounded to DATAGRAM_QUEUE bytes. Any datagram
+ * that does not fit is dropped.
+ */
+final class SendQueue implements Runnable {
+
+    // Number of bytes of the bulk lane written in one round.
+    private static final int BULK_QUANTUM = 64*1024;
+
+    // Number of bytes of the control lane written in one round.
+    private static final int CONTROL_QUANTUM = 4*BULK_QUANTUM;
+
+    // Maximum number of bytes in the datagram lane. Also the number of bytes
+    // of the datagram lane written in one round.
+    private static final int DATAGRAM_QUEUE = 256*1024;
+
+    // Number of bytes written while backlogged that make up a single
+    // bandwidth sample. The first sample of each backlog is dropped, since it
+    // (partly) fills the send buffer of the socket instead of the link.
+    private static final int BANDWIDTH_SAMPLE = 1024*1024;
+
+    abstract static class Message {
+
+        // Returns true if the message belongs in the bulk lane.
+        boolean bulk() {
+            return false;
+        }
+
+        // Returns true if the message belongs in the datagram lane.
+        boolean datagram() {
+            return false;
+        }
+
+        // Returns the (approximate) number of bytes the message occupies on
+        // the connection.
+        int length() {
+            return 16;
+        }
+
+        // Writes the message to the stream. If the message has a payload,
+        // only the part in front of the payload is written.
+        abstract void write(DataOutputStream out) throws IOException;
+
+        // Returns the data that should be written after the message (if any).
+        ByteBuffer payload() {
+            return null;
+        }
+
+        // Called when the message has been taken from the queue.
+        void dequeued() {
+            // default: do nothing
+        }
+
+        // Called when the message has been written (or dropped).
+        void done() {
+            // default: do nothing
+        }
+    }
+
+    // Allows us to wrap the collected headers without copying them.
+    private static final class HeaderStream extends ByteArrayOutputStream {
+
+        HeaderStream() {
+            super(4096);
+        }
+
+        byte [] getBuffer() {
+            return buf;
+        }
+    }
+
+    private final MessageForwardingConnection owner;
+    private final DataOutputStream out;
+    private final String name;
+
+    private final LinkedList<Message> control = new LinkedList<Message>();
+    private final LinkedList<Message> bulk = new LinkedList<Message>();
+    private final LinkedList<Message> datagrams = new LinkedList<Message>();
+
+    // Number of bytes in the datagram lane.
+    private int datagramBytes;
+
+    private boolean active = false;
+    private boolean failed = false;
+
+    // Set while the connection is being set up. Messages are queued, but not
+    // written, until 'release' is called.
+    private boolean held = false;
+
+    private long batches;
+    private long messages;
+
+    private long controlMessages;
+    private long bulkMessages;
+
+    private int controlMaxDepth;
+    private int bulkMaxDepth;
+
+    private long datagramMessages;
+    private long datagramsDropped;
+    private int datagramMaxDepth;
+
+    // Smoothed bandwidth of the connection in bytes per second (0 if not
+    // known yet). See 'run'.
+    private long bandwidth;
+
+    // Set by 'getBatch' if the lanes still contained data after the batch
+    // was taken. Only used by the writer thread.
+    private boolean backlogged;
+
+    // Only used by the writer thread.
+    private final HeaderStream headers = new HeaderStream();
+    private final DataOutputStream headersOut = new DataOutputStream(headers);
+    private byte [] scratch;
+
+    SendQueue(MessageForwardingConnection owner, DataOutputStream out,
+            String name) {
+        this.owner = owner;
+        this.out = out;
+        this.name = name;
+    }
+
+    // Queues a message. Returns false if the connection is dead, in which
+    // case the message is dropped.
+    boolean enqueue(Message m) {
+
+        synchronized (this) {
+
+            if (failed) {
+                // The connection is dead. Just drop the message.
+                m.dequeued();
+                m.done();
+                return false;
+            }
+
+            if (m.datagram()) {
+
+                if (datagramBytes + m.length() > DATAGRAM_QUEUE) {
+                    // Drop tail.
+                    datagramsDropped++;
+                    m.dequeued();
+                    m.done();
+                    return true;
+                }
+
+                datagrams.addLast(m);
+                datagramBytes += m.length();
+                datagramMessages++;
+
+                if (datagrams.size() > datagramMaxDepth) {
+                    datagramMaxDepth = datagrams.size();
+                }
+            } else if (m.bulk()) {
+                bulk.addLast(m);
+                bulkMessages++;
+
+                if (bulk.size() > bulkMaxDepth) {
+                    bulkMaxDepth = bulk.size();
+                }
+            } else {
+                control.addLast(m);
+                controlMessages++;
+
+                if (control.size() > controlMaxDepth) {
+                    controlMaxDepth = control.size();
+                }
+            }
+
+            if (active || held) {
+                return true;
+            }
+
+            active = true;
+        }
+
+        ThreadPool.createNew(this, name);
+        return true;
+    }
+
+    // Holds all messages until 'release' is called.
+    synchronized void hold() {
+        held = true;
+    }
+
+    // Starts writing the messages queued since 'hold' was called.
+    void release() {
+
+        synchronized (this) {
+
+            held = false;
+
+            if (active || failed || (control.size() == 0 && bulk.size() == 0
+                    && datagrams.size() == 0)) {
+                return;
+            }
+
+            active = true;
+        }
+
+        ThreadPool.createNew(this, name);
+    }
+
+    // Drops all queued messages, and any message queued later. Used when the
+    // connection could not be set up.
+    void discard() {
+        for (Message m : fail()) {
+            m.dequeued();
+            m.done();
+        }
+    }
+
+    // Adds the statistics gathered since the last call to 'stats'.
+    synchronized void addStatistics(
+            MessageForwardingConnectionStatistics stats) {
+        stats.sendQueueMessages += messages;
+        stats.sendQueueWrites += batches;
+
+        stats.sendQueueControl += controlMessages;
+        stats.sendQueueBulk += bulkMessages;
+
+        stats.sendQueueControlMaxDepth = Math.max(
+                stats.sendQueueControlMaxDepth, controlMaxDepth);
+        stats.sendQueueBulkMaxDepth = Math.max(
+                stats.sendQueueBulkMaxDepth, bulkMaxDepth);
+
+        stats.sendQueueControlDepth = control.size();
+        stats.sendQueueBulkDepth = bulk.size();
+
+        stats.sendQueueDatagrams += datagramMessages;
+        stats.sendQueueDatagramsDropped += datagramsDropped;
+        stats.sendQueueDatagramDepth = datagrams.size();
+        stats.sendQueueDatagramMaxDepth = Math.max(
+                stats.sendQueueDatagramMaxDepth, datagramMaxDepth);
+
+        messages = 0;
+        batches = 0;
+
+        controlMessages = 0;
+        bulkMessages = 0;
+
+        controlMaxDepth = control.size();
+        bulkMaxDepth = bulk.size();
+
+        datagramMessages = 0;
+        datagramsDropped = 0;
+        datagramMaxDepth = datagrams.size();
+    }
+
+    // Moves up to 'quantum' bytes (but at least one message) from 'lane' to
+    // 'batch'.
+    private static void take(LinkedList<Message> lane,
+            LinkedList<Message> batch, int quantum) {
+
+        int bytes = 0;
+
+        while (lane.size() > 0
+                && (bytes == 0 || bytes + lane.getFirst().length() <= quantum)) {
+            Message m = lane.removeFirst();
+            bytes += m.length();
+            batch.addLast(m);
+        }
+    }
+
+    private synchronized LinkedList<Message> getBatch() {
+
+        if (failed || (control.size() == 0 && bulk.size() == 0
+                    && datagrams.size() == 0)) {
+            active = false;
+            return null;
+        }
+
+        LinkedList<Message> result = new LinkedList<Message>();
+
+        take(control, result, CONTROL_QUANTUM);
+
+        int size = result.size();
+
+        take(datagrams, result, DATAGRAM_QUEUE);
+
+        for (int i=size;i<result.size();i++) {
+            datagramBytes -= result.get(i).length();
+        }
+
+        take(bulk, result, BULK_QUANTUM);
+
+        backlogged = control.size() > 0 || bulk.size() > 0
+            || datagrams.size() > 0;
+
+        batches++;
+        messages += result.size();
+
+        return result;
+    }
+
+    private synchronized LinkedList<Message> fail() {
+
+        failed = true;
+        active = false;
+
+        LinkedList<Message> result = new LinkedList<Message>(control);
+        result.addAll(bulk);
+        result.addAll(datagrams);
+
+        control.clear();
+        bulk.clear();
+        datagrams.clear();
+        datagramBytes = 0;
+
+        return result;
+    }
+
+    synchronized long getBandwidth() {
+        return bandwidth;
+    }
+
+    private synchronized void addBandwidthSample(long bytes, long time) {
+
+        if (time <= 0) {
+            return;
+        }
+
+        long sample = (bytes * 1000000000L) / time;
+
+        if (bandwidth == 0) {
+            bandwidth = sample;
+        } else {
+            bandwidth += (sample - bandwidth) / 8;
+        }
+    }
+
+    private void writeToStream(LinkedList<Message> batch) throws IOException {
+
+        for (Message m : batch) {
+
+            m.write(out);
+
+            ByteBuffer p = m.payload();
+
+            if (p != null) {
+                if (p.hasArray()) {
+                    out.write(p.array(), p.arrayOffset() + p.position(),
+                            p.remaining());
+                } else {
+                    // Copy the data out of the direct buffer.
+                    if (scratch == null) {
+                        scratch = new byte[8192];
+                    }
+
+                    p = p.duplicate();
+
+                    while (p.hasRemaining()) {
+                        int len = Math.min(p.remaining(), scratch.length);
+                        p.get(scratch, 0, len);
+                        out.write(scratch, 0, len);
+                    }
+                }
+            }
+        }
+
+        out.flush();
+    }
+
+    private void writeToChannel(LinkedList<Message> batch,
+            ChannelOutputStream channel) throws IOException {
+
+        ArrayList<ByteBuffer> payloads = new ArrayList<ByteBuffer>();
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+
+        headers.reset();
+
+        // First collect all headers, remembering where the payloads go.
+        for (Message m : batch) {
+
+            m.write(headersOut);
+
+            ByteBuffer p = m.payload();
+
+            if (p != null) {
+                offsets.add(headers.size());
+                payloads.add(p.duplicate());
+            }
+        }
+
+        byte [] h = headers.getBuffer();
+        int end = headers.size();
+
+        ByteBuffer [] tmp = new ByteBuffer[2*payloads.size() + 1];
+        int count = 0;
+        int prev = 0;
+
+        for (int i=0;i<payloads.size();i++) {
+
+            int off = offsets.get(i);
+
+            if (off > prev) {
+                tmp[count++] = ByteBuffer.wrap(h, prev, off - prev);
+            }
+
+            tmp[count++] = payloads.get(i);
+            prev = off;
+        }
+
+        if (end > prev) {
+            tmp[count++] = ByteBuffer.wrap(h, prev, end - prev);
+        }
+
+        ByteBuffer [] buffers = new ByteBuffer[count];
+        System.arraycopy(tmp, 0, buffers, 0, count);
+
+        // Anything written to 'out' by others must go first.
+        out.flush();
+        channel.write(buffers);
+    }
+
+    // The bandwidth is only measured while the queue is backlogged. The
+    // writes then only return once the link has made room in the send buffer
+    // of the socket, so the time they take reflects the speed of the link
+    // instead of the speed of the local copy.
+    public void run() {
+
+        // The data written while backlogged that is not part of a sample yet.
+        long sampleBytes = 0;
+        long sampleTime = 0;
+        boolean warmedUp = false;
+
+        while (true) {
+
+            LinkedList<Message> batch = getBatch();
+
+            if (batch == null) {
+                return;
+            }
+
+            boolean measure = backlogged;
+
+            for (Message m : batch) {
+                m.dequeued();
+            }
+
+            try {
+                long bytes = 0;
+
+                for (Message m : batch) {
+                    bytes += m.length();
+                }
+
+                long time;
+
+                synchronized (out) {
+
+                    time = System.nanoTime();
+
+                    ChannelOutputStream channel = owner.channelOut;
+
+                    if (channel == null) {
+                        writeToStream(batch);
+                    } else {
+                        writeToChannel(batch, channel);
+                    }
+
+                    time = System.nanoTime() - time;
+                }
+
+                if (!measure) {
+                    // The backlog is gone, so the next one starts over.
+                    sampleBytes = 0;
+                    sampleTime = 0;
+                    warmedUp = false;
+                } else {
+                    sampleBytes += bytes;
+                    sampleTime += time;
+
+                    if (sampleBytes >= BANDWIDTH_SAMPLE) {
+
+                        if (warmedUp) {
+                            addBandwidthSample(sampleBytes, sampleTime);
+                        }
+
+                        sampleBytes = 0;
+                        sampleTime = 0;
+                        warmedUp = true;
+                    }
+                }
+            } catch (Exception e) {
+
+                discard();
+                owner.handleDisconnect(e);
+                return;
+
+            } finally {
+                for (Message m : batch) {
+                    m.done();
+                }
+            }
+        }
+    }
+}
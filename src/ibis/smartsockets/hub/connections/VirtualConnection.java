@@ -3,31 +3,34 @@ package ibis.smartsockets.hub.connections;
 public class VirtualConnection {
 
     // The connection that created this virtual connection
-    public final String key1;
     public final MessageForwardingConnection mfc1;
     public final long index1;
-    public final byte [] buffer1;
 
     // The connection that we will forward messages to...
-    public final String key2;
     public final MessageForwardingConnection mfc2;
     public final long index2;
-    public byte [] buffer2;
+
+    // The credits of both sides, i.e., the amount of data each side may still
+    // send. They start at the receive buffer size of the other side, and grow
+    // with every message ACK the other side sends. As a sender may never have
+    // more data in transit than it has credits, this also limits how much data
+    // of this connection may be queued in the hub. Note that we cannot simply
+    // use the buffer sizes, as a receiver may hand out extra credits to grow
+    // its window.
+    private int credits1 = 0; // cannot be set yet...
+    private int credits2;
 
     private boolean removing = false;
 
-    VirtualConnection(MessageForwardingConnection mfc1, String key1, long index1,
-            int fragment1, MessageForwardingConnection mfc2, String key2, long index2) {
+    VirtualConnection(MessageForwardingConnection mfc1, long index1,
+            int buffer1, MessageForwardingConnection mfc2, long index2) {
 
-        this.key1 = key1;
         this.mfc1 = mfc1;
         this.index1 = index1;
-        this.buffer1 = new byte[fragment1];
+        this.credits2 = buffer1;
 
-        this.key2 = key2;
         this.mfc2 = mfc2;
         this.index2 = index2;
-        this.buffer2 = null; // cannot be set yet...
     }
 
     /*
@@ -38,26 +41,63 @@ public class VirtualConnection {
     }
     */
 
-    public void setSecondBuffer(int fragment2) {
-        buffer2 = new byte[fragment2];
+    public synchronized void setSecondBuffer(int buffer2) {
+        this.credits1 = buffer2;
     }
 
-    public void remove() {
+    // Uses the credits for a message of 'size' bytes send by 'from'. Returns
+    // false if this exceeds the credits of the sender, in which case the
+    // sender does not follow the protocol.
+    synchronized boolean reserve(MessageForwardingConnection from, int size) {
+
+        if (size < 0) {
+            return false;
+        }
 
-        synchronized (this) {
+        if (from == mfc1) {
+            if (size > credits1) {
+                return false;
+            }
 
-            if (removing) {
-                // The 'other' owner is already removing this connection!
-                return;
+            credits1 -= size;
+        } else {
+            if (size > credits2) {
+                return false;
             }
 
+            credits2 -= size;
+        }
+
+        return true;
+    }
+
+    // Adds the credits of a message ACK send by 'from' to the other side.
+    // NOTE: must be called before the ACK is forwarded.
+    synchronized void ack(MessageForwardingConnection from, int data) {
+
+        if (from == mfc1) {
+            credits2 += data;
+        } else {
+            credits1 += data;
         }
+    }
+
+    // Returns true for the first caller only. Both sides of a connection may
+    // be closing it at the same time, but only one may forward the close.
+    synchronized boolean remove() {
 
+        if (removing) {
+            // The 'other' owner is already removing this connection!
+            return false;
+        }
 
+        removing = true;
+        return true;
     }
 
     public String toString() {
-        return "VC(" + key1 + ", " + index1 + " <-> " + key2 + ", " + index2 + ")";
+        return "VC(" + mfc1.getName() + ", " + index1 + " <-> "
+            + mfc2.getName() + ", " + index2 + ")";
     }
 
     /*
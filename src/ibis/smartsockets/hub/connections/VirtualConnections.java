@@ -1,35 +1,46 @@
 package ibis.smartsockets.hub.connections;
 
-import java.util.HashMap;
+import ibis.smartsockets.util.LongHashMap;
+
 import java.util.LinkedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+// Keeps track of the virtual connections of all client and hub connections.
+//
+// Each MessageForwardingConnection has a table of its own, indexed by the
+// (primitive) index of the virtual connection on that connection, and guarded
+// by its own lock. A virtual connection is registered in the tables of both
+// connections it connects. Forwarding a message therefore does not require a
+// hub-wide lock, or any allocation to construct a key.
 public class VirtualConnections {
 
     private static Logger vclogger =
         LoggerFactory.getLogger("ibis.smartsockets.hub.connections.virtual");
 
-    private final HashMap<String, VirtualConnection> vcs =
-        new HashMap<String, VirtualConnection>();
-
-    public synchronized void register(VirtualConnection vc) {
+    public void register(VirtualConnection vc) {
 
         if (vclogger.isDebugEnabled()) {
             vclogger.debug("register VC: " + vc);
         }
 
-        vcs.put(vc.key1, vc);
-        vcs.put(vc.key2, vc);
+        put(vc.mfc1, vc.index1, vc);
+        put(vc.mfc2, vc.index2, vc);
     }
 
-    public synchronized VirtualConnection find(String key) {
+    public VirtualConnection find(MessageForwardingConnection mfc, long index) {
 
         if (vclogger.isDebugEnabled()) {
-            vclogger.debug("find VC: " + key);
+            vclogger.debug("find VC: " + mfc.getName() + " " + index);
         }
 
-        VirtualConnection vc = vcs.get(key);
+        VirtualConnection vc;
+
+        LongHashMap<VirtualConnection> table = mfc.virtualConnectionTable;
+
+        synchronized (table) {
+            vc = table.get(index);
+        }
 
         if (vclogger.isInfoEnabled()) {
             vclogger.info("found VC: " + vc);
@@ -38,16 +49,25 @@ public class VirtualConnections {
         return vc;
     }
 
-    public synchronized VirtualConnection remove(String key) {
+    public VirtualConnection remove(MessageForwardingConnection mfc,
+            long index) {
+
+        VirtualConnection vc;
 
-        VirtualConnection vc = vcs.get(key);
+        LongHashMap<VirtualConnection> table = mfc.virtualConnectionTable;
 
-        if (vc == null) {
+        synchronized (table) {
+            vc = table.get(index);
+        }
+
+        // NOTE: only one of the two connections may succeed in removing the
+        // virtual connection.
+        if (vc == null || !vc.remove()) {
             // This may happen, since a connection may be simultaneously closed
             // from both sides....
             if (vclogger.isInfoEnabled()) {
-                vclogger.info("cannot remove VC: " + key
-                        + " since it doesn't exist!");
+                vclogger.info("cannot remove VC: " + mfc.getName() + " "
+                        + index + " since it doesn't exist!");
             }
             return null;
         }
@@ -56,28 +76,63 @@ public class VirtualConnections {
             vclogger.info("removing VC: " + vc);
         }
 
-        vcs.remove(vc.key1);
-        vcs.remove(vc.key2);
+        delete(vc.mfc1, vc.index1, vc);
+        delete(vc.mfc2, vc.index2, vc);
 
         return vc;
     }
 
-    public synchronized LinkedList<VirtualConnection> removeAll(String prefix) {
+    public LinkedList<VirtualConnection> removeAll(
+            MessageForwardingConnection mfc) {
 
-        LinkedList<String> remove = new LinkedList<String>();
-        LinkedList<VirtualConnection> result = new LinkedList<VirtualConnection>();
+        LinkedList<VirtualConnection> tmp;
 
-        for (String key : vcs.keySet()) {
+        LongHashMap<VirtualConnection> table = mfc.virtualConnectionTable;
 
-            if (key.startsWith(prefix)) {
-                remove.add(key);
-            }
+        synchronized (table) {
+            tmp = table.removeAll();
         }
 
-        for (String key : remove) {
-            result.add(vcs.remove(key));
+        LinkedList<VirtualConnection> result =
+            new LinkedList<VirtualConnection>();
+
+        for (VirtualConnection vc : tmp) {
+
+            if (vc.remove()) {
+                // Also remove the entry on the other side.
+                if (vc.mfc1 == mfc) {
+                    delete(vc.mfc2, vc.index2, vc);
+                } else {
+                    delete(vc.mfc1, vc.index1, vc);
+                }
+
+                result.add(vc);
+            }
         }
 
         return result;
     }
+
+    private void put(MessageForwardingConnection mfc, long index,
+            VirtualConnection vc) {
+
+        LongHashMap<VirtualConnection> table = mfc.virtualConnectionTable;
+
+        synchronized (table) {
+            table.put(index, vc);
+        }
+    }
+
+    private void delete(MessageForwardingConnection mfc, long index,
+            VirtualConnection vc) {
+
+        LongHashMap<VirtualConnection> table = mfc.virtualConnectionTable;
+
+        synchronized (table) {
+            // Don't remove an entry that has already been reused.
+            if (table.get(index) == vc) {
+                table.remove(index);
+            }
+        }
+    }
  }
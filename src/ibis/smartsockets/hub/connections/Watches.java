@@ -0,0 +1,197 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.hub.servicelink.ServiceLinkProtocol;
+import ibis.smartsockets.hub.state.HubDescription;
+import ibis.smartsockets.hub.state.HubList;
+import ibis.smartsockets.hub.state.Selector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The watches the clients of this hub have placed (see
+ * ServiceLinkProtocol.WATCH).
+ *
+ * A watch on a tag covers the clients of all known hubs that have a property
+ * with that tag (or all clients if the tag is empty). For each watched tag, we
+ * remember the clients we last told the watchers about. Whenever the state of
+ * the hub changes, the hub calls update, which compares these with the
+ * current clients, and sends the differences to the watchers. A client that
+ * starts watching a tag gets the clients we last told the others about, so it
+ * will see the same changes from then on.
+ */
+public final class Watches {
+
+    private static Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.hub.request");
+
+    // A client covered by a watch.
+    private static final class Member {
+
+        final String hub;
+        final String info;
+
+        Member(String hub, String info) {
+            this.hub = hub;
+            this.info = info;
+        }
+
+        boolean sameAs(Member other) {
+            return hub.equals(other.hub) && info.equals(other.info);
+        }
+    }
+
+    private static final class Watch {
+
+        final String tag;
+
+        final ArrayList<ClientConnection> watchers =
+            new ArrayList<ClientConnection>();
+
+        HashMap<DirectSocketAddress, Member> members;
+
+        Watch(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private static final class MemberSelector extends Selector {
+
+        private final String tag;
+
+        private final HashMap<DirectSocketAddress, Member> result =
+            new HashMap<DirectSocketAddress, Member>();
+
+        MemberSelector(String tag) {
+            this.tag = tag;
+        }
+
+        public boolean needAll() {
+            return true;
+        }
+
+        public void select(HubDescription d) {
+
+            HashMap<DirectSocketAddress, String> tmp =
+                new HashMap<DirectSocketAddress, String>();
+
+            d.getClientsAsString(tmp, tag);
+
+            for (Map.Entry<DirectSocketAddress, String> e : tmp.entrySet()) {
+                result.put(e.getKey(), new Member(d.hubAddressAsString,
+                        e.getValue()));
+            }
+        }
+    }
+
+    private final HubList hubs;
+
+    private final HashMap<String, Watch> watches = new HashMap<String, Watch>();
+
+    public Watches(HubList hubs) {
+        this.hubs = hubs;
+    }
+
+    private HashMap<DirectSocketAddress, Member> select(String tag) {
+        MemberSelector s = new MemberSelector(tag);
+        hubs.select(s);
+        return s.result;
+    }
+
+    synchronized void add(ClientConnection c, String tag) {
+
+        Watch w = watches.get(tag);
+
+        if (w == null) {
+            w = new Watch(tag);
+            w.members = select(tag);
+            watches.put(tag, w);
+        }
+
+        if (!w.watchers.contains(c)) {
+            w.watchers.add(c);
+        }
+
+        // The client may already have been watching this tag (if it lost its
+        // connection to us in the mean time), so it always gets all members.
+        for (Member m : w.members.values()) {
+            c.sendWatchEvent(tag, ServiceLinkProtocol.CLIENT_JOINED, m.hub,
+                    m.info);
+        }
+
+        c.sendWatchEvent(tag, ServiceLinkProtocol.WATCH_SYNCED, "", "");
+    }
+
+    synchronized void remove(ClientConnection c, String tag) {
+
+        Watch w = watches.get(tag);
+
+        if (w != null && w.watchers.remove(c) && w.watchers.isEmpty()) {
+            watches.remove(tag);
+        }
+    }
+
+    synchronized void removeAll(ClientConnection c) {
+
+        ArrayList<String> tmp = new ArrayList<String>(watches.keySet());
+
+        for (String tag : tmp) {
+            remove(c, tag);
+        }
+    }
+
+    private static void send(Watch w, byte type, Member m) {
+        for (ClientConnection c : w.watchers) {
+            c.sendWatchEvent(w.tag, type, m.hub, m.info);
+        }
+    }
+
+    /**
+     * Sends the changes in the watched clients to the watchers. Must be
+     * called whenever the state of the hub has changed.
+     */
+    public synchronized void update() {
+
+        for (Watch w : watches.values()) {
+
+            HashMap<DirectSocketAddress, Member> current = select(w.tag);
+
+            int changes = 0;
+
+            for (Map.Entry<DirectSocketAddress, Member> e : current.entrySet()) {
+
+                Member m = e.getValue();
+                Member old = w.members.get(e.getKey());
+
+                if (old == null) {
+                    send(w, ServiceLinkProtocol.CLIENT_JOINED, m);
+                    changes++;
+                } else if (!old.sameAs(m)) {
+                    send(w, ServiceLinkProtocol.CLIENT_CHANGED, m);
+                    changes++;
+                }
+            }
+
+            for (Map.Entry<DirectSocketAddress, Member> e :
+                    w.members.entrySet()) {
+
+                if (!current.containsKey(e.getKey())) {
+                    send(w, ServiceLinkProtocol.CLIENT_LEFT, e.getValue());
+                    changes++;
+                }
+            }
+
+            w.members = current;
+
+            if (changes > 0 && logger.isDebugEnabled()) {
+                logger.debug("Watch \"" + w.tag + "\": sent " + changes
+                        + " changes to " + w.watchers.size() + " watchers");
+            }
+        }
+    }
+}
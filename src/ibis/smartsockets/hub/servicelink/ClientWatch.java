@@ -0,0 +1,172 @@
+package ibis.smartsockets.hub.servicelink;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A watch placed by a ServiceLink (see ServiceLinkProtocol.WATCH).
+ *
+ * Keeps track of the clients covered by the watch, so the events of the hub
+ * can be checked against them. Each time the watch is sent to a hub (which
+ * happens again after the ServiceLink has reconnected), the hub sends all
+ * clients it covers, followed by WATCH_SYNCED. Any client we knew of that is
+ * not among them has left in the mean time.
+ */
+final class ClientWatch {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger("ibis.smartsockets.hub.servicelink");
+
+    private static final class Member {
+
+        final DirectSocketAddress hub;
+        final String hubAsString;
+        final String info;
+        final ClientInfo client;
+
+        Member(String hub, String info) throws Exception {
+            this.hub = DirectSocketAddress.getByAddress(hub);
+            this.hubAsString = hub;
+            this.info = info;
+            this.client = new ClientInfo(info);
+        }
+
+        boolean sameAs(Member other) {
+            return hubAsString.equals(other.hubAsString)
+                && info.equals(other.info);
+        }
+    }
+
+    // A change that must be delivered to the callback.
+    private static final class Change {
+
+        final byte type;
+        final Member member;
+
+        Change(byte type, Member member) {
+            this.type = type;
+            this.member = member;
+        }
+    }
+
+    final String tag;
+
+    private final WatchCallBack callback;
+
+    private final HashMap<DirectSocketAddress, Member> members =
+        new HashMap<DirectSocketAddress, Member>();
+
+    // The clients the hub has sent since the watch was sent to it, or null if
+    // we are not waiting for WATCH_SYNCED.
+    private HashSet<DirectSocketAddress> seen;
+
+    ClientWatch(String tag, WatchCallBack callback) {
+        this.tag = tag;
+        this.callback = callback;
+    }
+
+    // Must be called whenever the watch is sent to the hub.
+    synchronized void sent() {
+        seen = new HashSet<DirectSocketAddress>();
+    }
+
+    // NOTE: only called by the thread that reads from the hub, so the changes
+    // are delivered in order.
+    void handleEvent(byte type, String hub, String info) {
+
+        ArrayList<Change> changes = new ArrayList<Change>();
+
+        if (type == ServiceLinkProtocol.WATCH_SYNCED) {
+            synced(changes);
+        } else {
+
+            Member m;
+
+            try {
+                m = new Member(hub, info);
+            } catch (Exception e) {
+                logger.warn("ServiceLink: Watch " + tag + " got malformed "
+                        + "client " + info + "@" + hub, e);
+                return;
+            }
+
+            update(type, m, changes);
+        }
+
+        for (Change c : changes) {
+
+            Member m = c.member;
+
+            switch (c.type) {
+            case ServiceLinkProtocol.CLIENT_JOINED:
+                callback.clientJoined(tag, m.hub, m.client);
+                break;
+
+            case ServiceLinkProtocol.CLIENT_CHANGED:
+                callback.clientChanged(tag, m.hub, m.client);
+                break;
+
+            default:
+                callback.clientLeft(tag, m.hub, m.client);
+                break;
+            }
+        }
+    }
+
+    private synchronized void update(byte type, Member m,
+            ArrayList<Change> changes) {
+
+        DirectSocketAddress a = m.client.getClientAddress();
+
+        if (type == ServiceLinkProtocol.CLIENT_LEFT) {
+
+            Member old = members.remove(a);
+
+            if (old != null) {
+                changes.add(new Change(type, old));
+            }
+
+            return;
+        }
+
+        if (seen != null) {
+            seen.add(a);
+        }
+
+        Member old = members.put(a, m);
+
+        if (old == null) {
+            changes.add(new Change(ServiceLinkProtocol.CLIENT_JOINED, m));
+        } else if (!old.sameAs(m)) {
+            changes.add(new Change(ServiceLinkProtocol.CLIENT_CHANGED, m));
+        }
+    }
+
+    private synchronized void synced(ArrayList<Change> changes) {
+
+        if (seen == null) {
+            return;
+        }
+
+        Iterator<Member> itt = members.values().iterator();
+
+        while (itt.hasNext()) {
+
+            Member m = itt.next();
+
+            if (!seen.contains(m.client.getClientAddress())) {
+                itt.remove();
+                changes.add(new Change(ServiceLinkProtocol.CLIENT_LEFT, m));
+            }
+        }
+
+        seen = null;
+    }
+}
@@ -0,0 +1,14 @@
+package ibis.smartsockets.hub.servicelink;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+/**
+ * Receives the datagrams send to a module using ServiceLink.sendDataMessage.
+ *
+ * The datagrams are delivered by the thread that reads from the hub, so the
+ * implementation should not block.
+ */
+public interface DatagramCallBack {
+    void gotDatagram(DirectSocketAddress src, DirectSocketAddress srcHub,
+            byte [] data);
+}
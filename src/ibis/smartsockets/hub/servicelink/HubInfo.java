@@ -2,6 +2,8 @@ package ibis.smartsockets.hub.servicelink;
 
 import ibis.smartsockets.direct.DirectSocketAddress;
 
+import java.util.Arrays;
+
 public class HubInfo {
 
     public final DirectSocketAddress hubAddress;
@@ -15,6 +17,12 @@ public class HubInfo {
     public final DirectSocketAddress [] connectedTo;
     public final boolean [] usingSSH;
 
+    // The round trip time (in microseconds, -1 if unknown) and bandwidth (in
+    // bytes per second, 0 if unknown) of the links to the hubs in
+    // connectedTo. Only hubs that measure them report them.
+    public final long [] rtt;
+    public final long [] bandwidth;
+
     public HubInfo(String info) {
 
         if (!info.startsWith("HubInfo(") || !info.endsWith(")")) {
@@ -53,6 +61,34 @@ public class HubInfo {
 
                 connectedTo[i] = DirectSocketAddress.getByAddress(address);
             }
+
+            rtt = new long[tmp];
+            bandwidth = new long[tmp];
+
+            Arrays.fill(rtt, -1);
+
+            // The connections may be followed by the metrics of the links, as
+            // "<address> <rtt> <bandwidth>".
+            int off = 6 + tmp;
+
+            if (strings.length > off) {
+
+                int metrics = Integer.parseInt(strings[off]);
+
+                for (int i=0;i<metrics;i++) {
+
+                    String [] m = strings[off + 1 + i].split(" ");
+
+                    DirectSocketAddress a = DirectSocketAddress.getByAddress(m[0]);
+
+                    for (int c=0;c<connectedTo.length;c++) {
+                        if (a.equals(connectedTo[c])) {
+                            rtt[c] = Long.parseLong(m[1]);
+                            bandwidth[c] = Long.parseLong(m[2]);
+                        }
+                    }
+                }
+            }
         } catch (Exception e) {
             throw new IllegalArgumentException("String does not contain HubInfo"
                     + ": \"" + info + "\"", e);
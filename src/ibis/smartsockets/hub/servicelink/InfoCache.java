@@ -0,0 +1,110 @@
+package ibis.smartsockets.hub.servicelink;
+
+import java.util.HashMap;
+
+/**
+ * Cache of the replies to the info requests of a ServiceLink.
+ *
+ * The hub tells the ServiceLink whenever its state changes (see
+ * ServiceLinkProtocol.STATE_CHANGED). Every change starts a new epoch, which
+ * empties the cache. A reply is only stored if its request was sent in the
+ * current epoch, so a reply that was overtaken by a change of the state is
+ * never cached. As a result, a cached reply is as up to date as the hub
+ * itself, apart from the time it takes to deliver the notification.
+ *
+ * Until the hub has told us its state (or after the connection to the hub is
+ * lost) nothing is cached.
+ */
+final class InfoCache {
+
+    private final HashMap<String, Object> replies =
+        new HashMap<String, Object>();
+
+    private long epoch = 0;
+
+    // The last state of the hub we heard of.
+    private boolean known = false;
+    private long state;
+
+    private long hits;
+    private long misses;
+
+    // Returns the key of the reply to a request.
+    static String key(int opcode, String ... args) {
+
+        StringBuilder b = new StringBuilder();
+
+        b.append(opcode);
+
+        for (String a : args) {
+            b.append(' ').append(a.length()).append(':').append(a);
+        }
+
+        return b.toString();
+    }
+
+    synchronized long epoch() {
+        return epoch;
+    }
+
+    synchronized Object get(String key) {
+
+        if (!known) {
+            return null;
+        }
+
+        Object tmp = replies.get(key);
+
+        if (tmp == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return tmp;
+    }
+
+    synchronized void put(String key, long epoch, Object reply) {
+        if (known && epoch == this.epoch) {
+            replies.put(key, reply);
+        }
+    }
+
+    private void newEpoch() {
+        epoch++;
+        replies.clear();
+    }
+
+    // The hub has told us its (new) state.
+    synchronized void stateChanged(long state) {
+
+        if (known && state == this.state) {
+            return;
+        }
+
+        this.state = state;
+        known = true;
+        newEpoch();
+    }
+
+    // We have changed the state of the hub ourselves (for example, by
+    // registering a property). The hub will tell us its new state later, but
+    // until then our own change should already be visible.
+    synchronized void flush() {
+        newEpoch();
+    }
+
+    // The connection to the hub is lost, so we will not hear of any changes.
+    synchronized void invalidate() {
+        known = false;
+        newEpoch();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
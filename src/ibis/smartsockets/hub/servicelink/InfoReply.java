@@ -0,0 +1,204 @@
+package ibis.smartsockets.hub.servicelink;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The reply to a request that a ServiceLink has sent to its hub.
+ *
+ * The asynchronous variants of the ServiceLink requests (such as
+ * ServiceLink.clientsAsync) return an InfoReply as soon as the request has
+ * been written. This way, many requests can be outstanding at the same time,
+ * without a thread for each of them. The caller can wait for the reply using
+ * get, or use addListener to have it handled when it arrives.
+ *
+ * If the connection to the hub is lost before the reply has arrived, get
+ * throws an ExecutionException caused by an IOException.
+ */
+public abstract class InfoReply<T> implements Future<T> {
+
+    private static final class Failure extends ExecutionException {
+
+        private static final long serialVersionUID = 2735092458290147381L;
+
+        Failure(Throwable cause) {
+            super("Request failed", cause);
+        }
+    }
+
+    final int id;
+
+    private boolean done = false;
+    private T result;
+    private IOException failure;
+
+    private LinkedList<Runnable> listeners;
+
+    // Where to store the reply once it arrives (if anywhere).
+    private InfoCache cache;
+    private String key;
+    private long epoch;
+
+    InfoReply(int id) {
+        this.id = id;
+    }
+
+    // Converts the reply of the hub into the result.
+    abstract T convert(Object reply) throws IOException;
+
+    // Must be called before the request is sent.
+    void cacheIn(InfoCache cache, String key) {
+        this.cache = cache;
+        this.key = key;
+        this.epoch = cache.epoch();
+    }
+
+    void complete(Object reply) {
+
+        T tmp = null;
+        IOException e = null;
+
+        try {
+            tmp = convert(reply);
+        } catch (IOException x) {
+            e = x;
+        } catch (RuntimeException x) {
+            e = new IOException("Received malformed reply: " + x);
+        }
+
+        // The raw reply is cached, so every user gets its own result.
+        if (e == null && cache != null) {
+            cache.put(key, epoch, reply);
+        }
+
+        done(tmp, e);
+    }
+
+    void fail(IOException e) {
+        done(null, e);
+    }
+
+    private void done(T result, IOException failure) {
+
+        LinkedList<Runnable> tmp;
+
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+
+            this.result = result;
+            this.failure = failure;
+
+            done = true;
+            notifyAll();
+
+            tmp = listeners;
+            listeners = null;
+        }
+
+        if (tmp != null) {
+            for (Runnable r : tmp) {
+                r.run();
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that is run once the reply has arrived (or the request
+     * has failed). The listener is run by the thread that receives the reply,
+     * so it should not block. If the reply has already arrived, the listener is
+     * run immediately.
+     *
+     * @param r the listener
+     */
+    public void addListener(Runnable r) {
+
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new LinkedList<Runnable>();
+                }
+
+                listeners.add(r);
+                return;
+            }
+        }
+
+        r.run();
+    }
+
+    // Waits for the reply, like the blocking ServiceLink requests always did.
+    synchronized T await() throws IOException {
+
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        return result;
+    }
+
+    /**
+     * Requests cannot be cancelled, so this method always returns false.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized T get() throws InterruptedException,
+            ExecutionException {
+
+        while (!done) {
+            wait();
+        }
+
+        if (failure != null) {
+            throw new Failure(failure);
+        }
+
+        return result;
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+        while (!done) {
+
+            long left = deadline - System.currentTimeMillis();
+
+            if (left <= 0) {
+                throw new TimeoutException("No reply from hub");
+            }
+
+            wait(left);
+        }
+
+        if (failure != null) {
+            throw new Failure(failure);
+        }
+
+        return result;
+    }
+}
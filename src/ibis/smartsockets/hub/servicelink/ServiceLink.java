@@ -5,8 +5,10 @@ import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.hub.ConnectionProtocol;
+import ibis.smartsockets.hub.connections.ClientMessage;
 import ibis.smartsockets.hub.connections.MessageForwarderProtocol;
 import ibis.smartsockets.hub.connections.VirtualConnectionIndex;
+import ibis.smartsockets.util.LongHashMap;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.util.ThreadPool;
 
@@ -15,6 +17,8 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -35,11 +39,22 @@ public class ServiceLink implements Runnable {
 
     private static final int DEFAULT_WAIT_TIME = 10000;
 
+    private static final int OUTPUT_BUFFER = 64*1024;
+
     private final HashMap<String, Object> callbacks
         = new HashMap<String, Object>();
 
-    private final HashMap<Integer, Object> infoRequests
-        = new HashMap<Integer, Object>();
+    private final HashMap<Integer, InfoReply<?>> infoRequests
+        = new HashMap<Integer, InfoReply<?>>();
+
+    // The watches we have placed, indexed by their tag. Also used to make sure
+    // every watch is sent exactly once to each hub we connect to.
+    private final HashMap<String, ClientWatch> watches
+        = new HashMap<String, ClientWatch>();
+
+    // The datagram callbacks, indexed by the name of their module.
+    private final HashMap<String, DatagramCallBack> datagramCallbacks
+        = new HashMap<String, DatagramCallBack>();
 
     private final DirectSocketFactory factory;
 
@@ -49,6 +64,10 @@ public class ServiceLink implements Runnable {
 
     private DirectSocketAddress hubAddress;
 
+    // The extensions of the protocol the hub supports (see
+    // ConnectionProtocol).
+    private volatile int hubCapabilities = 0;
+
     private boolean connected = false;
 
     private boolean done = false;
@@ -72,6 +91,20 @@ public class ServiceLink implements Runnable {
 
     private int receiveBuffer = -1;
 
+    // Additional connections to the hub that carry the virtual connections, so
+    // they do not hold up each other or the control traffic on 'hub'. Empty if
+    // they are not used (or could not be created).
+    private final int dataLinkCount;
+
+    private DataLink [] dataLinks = new DataLink[0];
+
+    // The replies to info requests we have cached (null if we do not cache).
+    private final InfoCache cache;
+
+    // The data link used by each virtual connection. Also used as a lock for
+    // 'dataLinks'.
+    private final LongHashMap<DataLink> linkOf = new LongHashMap<DataLink>();
+
     // Some statistics
     private long incomingConnections;
 
@@ -109,7 +142,8 @@ public class ServiceLink implements Runnable {
 
     private ServiceLink(List<DirectSocketAddress> hubs,
             DirectSocketAddress myAddress, int sendBuffer, int receiveBuffer,
-            int virtualHubPort, long maxReconnect, boolean forceConnection) throws IOException {
+            int virtualHubPort, long maxReconnect, boolean forceConnection,
+            int dataLinkCount, boolean cacheInfo) throws IOException {
 
         this.hubs = hubs;
         this.sendBuffer = sendBuffer;
@@ -120,6 +154,8 @@ public class ServiceLink implements Runnable {
         this.forceConnection = forceConnection;
 
         this.virtualHubPort = virtualHubPort;
+        this.dataLinkCount = dataLinkCount;
+        this.cache = cacheInfo ? new InfoCache() : null;
 
         factory = DirectSocketFactory.getSocketFactory();
 
@@ -163,6 +199,101 @@ public class ServiceLink implements Runnable {
         }
     }
 
+    public void registerDatagramCallBack(String module, DatagramCallBack cb) {
+
+        synchronized (datagramCallbacks) {
+            if (datagramCallbacks.containsKey(module)) {
+                logger.warn("ServiceLink: refusing to override datagram "
+                        + "callback " + module, new Exception());
+                return;
+            }
+
+            datagramCallbacks.put(module, cb);
+        }
+    }
+
+    /**
+     * Watches the clients that have a property with the given tag (or all
+     * clients if the tag is empty). The callback is told about all clients
+     * that are covered by the watch right away, and about any changes after
+     * that. The watch is placed again if the connection to the hub is
+     * restored. Hubs that do not support watches never report any clients.
+     *
+     * @param tag the tag of the property
+     * @param cb the callback that receives the changes
+     */
+    public void watch(String tag, WatchCallBack cb) {
+
+        synchronized (watches) {
+            if (watches.containsKey(tag)) {
+                logger.warn("ServiceLink: refusing to override watch " + tag,
+                        new Exception());
+                return;
+            }
+
+            ClientWatch w = new ClientWatch(tag, cb);
+            watches.put(tag, w);
+
+            // Otherwise, it is sent once we are connected.
+            if (getConnected()) {
+                try {
+                    sendWatch(w);
+                } catch (IOException e) {
+                    logger.warn("ServiceLink: Exception while writing to hub!",
+                            e);
+                    closeConnectionToHub();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the watch on the given tag.
+     *
+     * @param tag the tag of the property
+     */
+    public void unwatch(String tag) {
+
+        synchronized (watches) {
+            if (watches.remove(tag) == null || !getConnected()
+                    || !hubSupports(ConnectionProtocol.CAPABILITY_WATCH)) {
+                return;
+            }
+
+            try {
+                synchronized (out) {
+                    out.write(ServiceLinkProtocol.UNWATCH);
+                    out.writeUTF(tag);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                logger.warn("ServiceLink: Exception while writing to hub!", e);
+                closeConnectionToHub();
+            }
+        }
+    }
+
+    // NOTE: must be called while holding the lock on 'watches'.
+    private void sendWatch(ClientWatch w) throws IOException {
+
+        if (!hubSupports(ConnectionProtocol.CAPABILITY_WATCH)) {
+            // Older hubs close the connection on a WATCH.
+            if (logger.isInfoEnabled()) {
+                logger.info("ServiceLink: hub does not support watch "
+                        + w.tag);
+            }
+            return;
+        }
+
+        w.sent();
+
+        synchronized (out) {
+            out.write(ServiceLinkProtocol.WATCH);
+            out.writeUTF(w.tag);
+            out.flush();
+        }
+    }
+
     protected Object findCallback(String identifier) {
         synchronized (callbacks) {
             return callbacks.get(identifier);
@@ -175,17 +306,17 @@ public class ServiceLink implements Runnable {
         }
     }
 
-    protected void registerInfoRequest(Integer identifier) {
+    protected void registerInfoRequest(InfoReply<?> reply) {
 
         synchronized (infoRequests) {
-            if (infoRequests.containsKey(identifier)) {
+            if (infoRequests.containsKey(reply.id)) {
                 logger.warn("ServiceLink: refusing to override simple callback "
-                        + identifier, new Exception());
+                        + reply.id, new Exception());
 
                 return;
             }
 
-            infoRequests.put(identifier, null);
+            infoRequests.put(reply.id, reply);
         }
     }
 
@@ -196,50 +327,140 @@ public class ServiceLink implements Runnable {
     }
 
     protected void storeInfoReply(Integer identifier, Object value) {
+
+        InfoReply<?> reply;
+
         synchronized (infoRequests) {
-            if (infoRequests.containsKey(identifier)) {
-                infoRequests.put(identifier, value);
-                infoRequests.notifyAll();
-            } else {
-                if (logger.isInfoEnabled()) {
-                    logger.info("Dropped info reply for: " + identifier + " ("
-                        + value + ")");
-                }
+            reply = infoRequests.remove(identifier);
+        }
+
+        if (reply == null) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Dropped info reply for: " + identifier + " ("
+                    + value + ")");
             }
+            return;
         }
+
+        reply.complete(value);
     }
 
-    protected Object getInfoReply(Integer identifier) {
+    // Fails all requests that are still waiting for a reply.
+    private void failInfoRequests() {
+
+        InfoReply<?> [] tmp;
 
         synchronized (infoRequests) {
+            tmp = infoRequests.values().toArray(
+                    new InfoReply<?>[infoRequests.size()]);
+            infoRequests.clear();
+        }
 
-            Object result = infoRequests.get(identifier);
+        for (InfoReply<?> reply : tmp) {
+            reply.fail(new IOException("Connection to hub lost!"));
+        }
+    }
 
-            while (result == null) {
-                try {
-                    infoRequests.wait();
-                } catch (InterruptedException e) {
-                    // ignore
+    // Sends a request to the hub, consisting of the opcode, the id of the
+    // reply and the arguments.
+    private <T> InfoReply<T> sendInfoRequest(int opcode, InfoReply<T> reply,
+            String ... args) throws IOException {
+
+        waitConnected(maxWaitTime);
+
+        registerInfoRequest(reply);
+
+        try {
+            synchronized (out) {
+                out.write(opcode);
+                out.writeInt(reply.id);
+
+                for (String a : args) {
+                    out.writeUTF(a);
                 }
 
-                result = infoRequests.get(identifier);
+                out.flush();
             }
+        } catch (IOException e) {
+            removeInfoRequest(reply.id);
+            logger.warn("ServiceLink: Exception while writing to hub!", e);
+            closeConnectionToHub();
+            throw new IOException("Connection to hub lost!");
+        }
 
-            infoRequests.remove(identifier);
+        return reply;
+    }
+
+    // Sends a request of which the reply can be cached, or answers it from
+    // the cache right away.
+    private <T> InfoReply<T> cachedInfoRequest(int opcode, InfoReply<T> reply,
+            String ... args) throws IOException {
+
+        if (cache != null) {
+
+            String key = InfoCache.key(opcode, args);
+            Object tmp = cache.get(key);
+
+            if (tmp != null) {
+                reply.complete(tmp);
+                return reply;
+            }
 
-            return result;
+            reply.cacheIn(cache, key);
         }
+
+        return sendInfoRequest(opcode, reply, args);
     }
 
-    protected boolean getInfoReply(Integer identifier, int value) {
+    // Sends a request that changes the state of the hub.
+    private InfoReply<Boolean> sendPropertyRequest(int opcode, String ... args)
+            throws IOException {
 
-        Object result = getInfoReply(identifier);
+        InfoReply<Boolean> reply = sendInfoRequest(opcode, propertyReply(),
+                args);
 
-        if (result instanceof Integer) {
-            return ((Integer) result).intValue() == value;
+        // Anything we have cached may not include our change. Any request
+        // that is sent from here on will be handled after it.
+        if (cache != null) {
+            cache.flush();
         }
 
-        return false;
+        return reply;
+    }
+
+    private InfoReply<ClientInfo []> clientInfoReply() {
+        return new InfoReply<ClientInfo []>(getNextSimpleCallbackID()) {
+            ClientInfo [] convert(Object reply) {
+                return convertToClientInfo((String[]) reply);
+            }
+        };
+    }
+
+    private InfoReply<DirectSocketAddress []> addressReply() {
+        return new InfoReply<DirectSocketAddress []>(getNextSimpleCallbackID()) {
+            DirectSocketAddress [] convert(Object reply)
+                throws IOException {
+                return DirectSocketAddress.convertToSocketAddressSet(
+                        (String[]) reply);
+            }
+        };
+    }
+
+    private InfoReply<HubInfo []> hubInfoReply() {
+        return new InfoReply<HubInfo []>(getNextSimpleCallbackID()) {
+            HubInfo [] convert(Object reply) {
+                return convertToHubInfo((String[]) reply);
+            }
+        };
+    }
+
+    private InfoReply<Boolean> propertyReply() {
+        return new InfoReply<Boolean>(getNextSimpleCallbackID()) {
+            Boolean convert(Object reply) {
+                return (reply instanceof Integer) && ((Integer) reply).intValue()
+                    == ServiceLinkProtocol.PROPERTY_ACCEPTED;
+            }
+        };
     }
 
     private synchronized void setConnected(boolean value) {
@@ -298,6 +519,16 @@ public class ServiceLink implements Runnable {
 
         DirectSocketFactory.close(hub, out, in);
 
+        closeDataLinks();
+
+        // The replies to any outstanding requests will never arrive.
+        failInfoRequests();
+
+        // Nor will we hear of any changes.
+        if (cache != null) {
+            cache.invalidate();
+        }
+
         // Should close virtual connections here ?
 
         /*      Long [] tmp = credits.keySet().toArray(new Long[0]);
@@ -309,6 +540,18 @@ public class ServiceLink implements Runnable {
     }
 
     private void connectToHub(DirectSocketAddress address) throws IOException {
+
+        // Hubs that do not know the extended request close the connection, so
+        // we have to try again with the old request.
+        if (!connectToHub(address, true)) {
+            connectToHub(address, false);
+        }
+    }
+
+    // Returns false if the hub did not understand the extended request.
+    private boolean connectToHub(DirectSocketAddress address, boolean extended)
+        throws IOException {
+
         try {
             if (logger.isInfoEnabled()) {
                 logger.info("Service link attempting to connect to hub: "
@@ -328,19 +571,49 @@ public class ServiceLink implements Runnable {
                     + hub.getReceiveBufferSize());
             }
 
+            // NOTE: the buffer is large enough to combine a batch of virtual
+            // messages into a few large writes.
             out = new DataOutputStream(new BufferedOutputStream(hub
-                    .getOutputStream()));
+                    .getOutputStream(), OUTPUT_BUFFER));
 
             in = new DataInputStream(new BufferedInputStream(hub
                     .getInputStream()));
 
             // Ask if we are allowed to join
-            out.write(ConnectionProtocol.SERVICELINK_CONNECT);
-            out.writeUTF(myAddress.toString());
+            if (extended) {
+                out.write(ConnectionProtocol.SERVICELINK_CONNECT_EXTENDED);
+                out.writeUTF(myAddress.toString());
+                out.writeInt(ConnectionProtocol.CLIENT_CAPABILITIES);
+            } else {
+                out.write(ConnectionProtocol.SERVICELINK_CONNECT);
+                out.writeUTF(myAddress.toString());
+            }
+
             out.flush();
 
             // Get the result
-            int reply = in.read();
+            int reply;
+
+            try {
+                reply = in.read();
+            } catch (IOException e) {
+                if (!extended) {
+                    throw e;
+                }
+
+                // An old hub may reset the connection instead of closing it.
+                reply = -1;
+            }
+
+            if (reply == -1 && extended) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("Hub at " + address + " does not understand "
+                            + "the extended request, retrying");
+                }
+
+                DirectSocketFactory.close(hub, out, in);
+                return false;
+            }
 
             // Throw an exception if the hub refuses our conenction
             if (reply != ConnectionProtocol.CONNECTION_ACCEPTED) {
@@ -352,6 +625,8 @@ public class ServiceLink implements Runnable {
             // address (since the user supplied one may be a partial).
             hubAddress = DirectSocketAddress.getByAddress(in.readUTF());
 
+            hubCapabilities = extended ? in.readInt() : 0;
+
             if (logger.isInfoEnabled()) {
                 logger.info("Hub at " + address + " accepted connection, "
                         + "it's real address is: " + hubAddress);
@@ -359,16 +634,44 @@ public class ServiceLink implements Runnable {
 
             hub.setSoTimeout(0);
 
-            setConnected(true);
+            if (cache != null
+                    && hubSupports(ConnectionProtocol.CAPABILITY_STATE)) {
+                // Ask the hub to tell us about any changes, so we can cache
+                // its replies. Hubs that cannot tell us never let the cache
+                // learn their state, so nothing is cached for them.
+                out.write(ServiceLinkProtocol.SUBSCRIBE_STATE);
+                out.flush();
+            }
+
+            openDataLinks(address);
+
+            synchronized (watches) {
+                // Place our watches at this hub. Any watch placed after this
+                // is sent by watch itself.
+                for (ClientWatch w : watches.values()) {
+                    sendWatch(w);
+                }
+
+                setConnected(true);
+            }
+
+            startDataLinks();
         } catch (IOException e) {
             logger.info("Connection setup to hub at " + address + " failed: ",
                     e);
             closeConnectionToHub();
             throw e;
         }
+
+        return true;
+    }
+
+    // Returns true if the hub announced 'capability' when we connected.
+    private boolean hubSupports(int capability) {
+        return (hubCapabilities & capability) != 0;
     }
 
-    private final void skip(int bytes) throws IOException {
+    private final void skip(DataInputStream in, int bytes) throws IOException {
         while (bytes > 0) {
             bytes -= in.skip(bytes);
         }
@@ -381,7 +684,7 @@ public class ServiceLink implements Runnable {
 
         // since we have reached our destination, the hop count and
         // target addresses are not used anymore..
-        skip(4);
+        skip(in, 4);
 
         boolean returnedToSender = in.readBoolean();
 
@@ -409,6 +712,109 @@ public class ServiceLink implements Runnable {
         incomingMetaMessages++;
     }
 
+    private void handleClientMessage() throws IOException {
+
+        // The length, target hub hash and hops left are not used anymore,
+        // since we have reached our destination.
+        skip(in, 4 + 4 + 1);
+
+        boolean returnedToSender = (in.readByte()
+                & MessageForwarderProtocol.RETURN_TO_SENDER) != 0;
+
+        DirectSocketAddress source = DirectSocketAddress.read(in);
+        DirectSocketAddress sourceHub = DirectSocketAddress.read(in);
+
+        DirectSocketAddress.skip(in);
+        DirectSocketAddress.skip(in);
+
+        // The module id is only a check on the name. Different names may
+        // share an id, so the message is delivered by name.
+        int id = in.readInt();
+        String targetModule = in.readUTF();
+
+        int opcode = in.readInt();
+
+        byte[][] message = readMessageBlob();
+
+        if (id != ClientMessage.moduleID(targetModule)) {
+            logger.warn("ServiceLink: dropping message for " + targetModule
+                    + ", module id " + id + " does not match");
+            incomingMetaMessages++;
+            return;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("ServiceLink: Received message for " + targetModule
+                    + " (returnToSender: " + returnedToSender + ")");
+        }
+
+        CallBack cb = (CallBack) findCallback(targetModule);
+
+        if (cb == null) {
+            logger.warn("ServiceLink: Callback " + targetModule + " not found");
+        } else {
+            cb.gotMessage(source, sourceHub, opcode, returnedToSender, message);
+        }
+
+        incomingMetaMessages++;
+    }
+
+    private void handleDatagram() throws IOException {
+
+        int len = in.readInt();
+
+        // Skip the hop count and the target.
+        in.readByte();
+
+        int skip = in.readInt();
+        skip(in, skip);
+        len -= 5 + skip;
+
+        skip = in.readInt();
+        skip(in, skip);
+        len -= 4 + skip;
+
+        DirectSocketAddress source = DirectSocketAddress.read(in);
+        DirectSocketAddress sourceHub = DirectSocketAddress.read(in);
+
+        len -= codedLength(source) + codedLength(sourceHub);
+
+        int id = in.readInt();
+        String module = in.readUTF();
+        len -= 4 + utfLength(module);
+
+        if (len < 0) {
+            throw new IOException("Received malformed datagram");
+        }
+
+        byte [] data = new byte[len];
+        in.readFully(data);
+
+        incomingMetaMessages++;
+
+        if (id != ClientMessage.moduleID(module)) {
+            logger.warn("ServiceLink: dropping datagram for " + module
+                    + ", module id " + id + " does not match");
+            return;
+        }
+
+        DatagramCallBack cb;
+
+        synchronized (datagramCallbacks) {
+            cb = datagramCallbacks.get(module);
+        }
+
+        if (cb == null) {
+            if (logger.isInfoEnabled()) {
+                logger.info("ServiceLink: dropping datagram for unknown "
+                        + "module " + module);
+            }
+            return;
+        }
+
+        cb.gotDatagram(source, sourceHub, data);
+    }
+
     private void handleInfo() throws IOException {
 
         int id = in.readInt();
@@ -448,7 +854,45 @@ public class ServiceLink implements Runnable {
         storeInfoReply(id, value);
     }
 
-    private void handleIncomingConnection() throws IOException {
+    private void handleStateChanged() throws IOException {
+
+        long state = in.readLong();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("ServiceLink: Hub state changed to " + state);
+        }
+
+        if (cache != null) {
+            cache.stateChanged(state);
+        }
+    }
+
+    private void handleWatchEvent() throws IOException {
+
+        String tag = in.readUTF();
+        byte type = in.readByte();
+        String hub = in.readUTF();
+        String info = in.readUTF();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("ServiceLink: Watch " + tag + " got event " + type
+                    + ": " + info + "@" + hub);
+        }
+
+        ClientWatch w;
+
+        synchronized (watches) {
+            w = watches.get(tag);
+        }
+
+        // The watch may have been removed already.
+        if (w != null) {
+            w.handleEvent(type, hub, info);
+        }
+    }
+
+    private void handleIncomingConnection(DataInputStream in, DataLink link)
+        throws IOException {
 
         incomingConnections++;
 
@@ -483,6 +927,14 @@ public class ServiceLink implements Runnable {
             return;
         }
 
+        // The hub only accepts the replies for this connection on the link
+        // that the request arrived on.
+        if (link != null) {
+            synchronized (linkOf) {
+                linkOf.put(index, link);
+            }
+        }
+
         // Forward the connect call to the module responsible. This call will
         // result in an invocation of (n)ackVirtualConnection.
         vcb.connect(source, sourceHub, port, fragment, buffer, timeout, index);
@@ -494,7 +946,8 @@ public class ServiceLink implements Runnable {
         }
     }
 
-    private void handleIncomingConnectionACK() throws IOException {
+    private void handleIncomingConnectionACK(DataInputStream in)
+        throws IOException {
 
         long index = in.readLong();
 
@@ -524,7 +977,8 @@ public class ServiceLink implements Runnable {
         vcb.connectACK(index, fragment, buffer);
     }
 
-    private void handleIncomingConnectionACKACK() throws IOException {
+    private void handleIncomingConnectionACKACK(DataInputStream in)
+        throws IOException {
 
         long index = in.readLong();
         boolean succes = in.readBoolean();
@@ -553,7 +1007,8 @@ public class ServiceLink implements Runnable {
         vcb.connectACKACK(index, succes);
     }
 
-    private void handleIncomingConnectionNACK() throws IOException {
+    private void handleIncomingConnectionNACK(DataInputStream in)
+        throws IOException {
 
         long index = in.readLong();
         byte reason = in.readByte();
@@ -574,6 +1029,8 @@ public class ServiceLink implements Runnable {
             logger.info("Delivering NACK: " + index);
         }
 
+        removeLink(index);
+
         vcb.connectNACK(index, reason);
     }
 
@@ -690,7 +1147,8 @@ public class ServiceLink implements Runnable {
      disconnectCallback(index);
      }*/
 
-    private void handleIncomingClose() throws IOException {
+    private void handleIncomingClose(DataInputStream in)
+        throws IOException {
 
         long index = in.readLong();
 
@@ -700,10 +1158,13 @@ public class ServiceLink implements Runnable {
 
         //   System.err.println("***** CLOSE " + index);
 
+        removeLink(index);
+
         disconnectCallback(index);
     }
 
-    private void handleIncomingMessage() throws IOException {
+    private void handleIncomingMessage(DataInputStream in)
+        throws IOException {
 
         long index = in.readLong();
         int len = in.readInt();
@@ -723,7 +1184,7 @@ public class ServiceLink implements Runnable {
                     + ") for connection: " + index + " which doesn't exist!!");
 
             // Remove the message from the stream!
-            skip(len);
+            skip(in, len);
             closeVirtualConnection(index);
             return;
         }
@@ -737,11 +1198,12 @@ public class ServiceLink implements Runnable {
             if (logger.isInfoEnabled()) {
                 logger.debug("Message for " + index + " not read!");
             }
-            skip(len);
+            skip(in, len);
         }
     }
 
-    private void handleIncomingAck() throws IOException {
+    private void handleIncomingAck(DataInputStream in)
+        throws IOException {
 
         long index = in.readLong();
         int data = in.readInt();
@@ -786,32 +1248,12 @@ public class ServiceLink implements Runnable {
                     handleInfoMessage();
                     break;
 
-                case MessageForwarderProtocol.CREATE_VIRTUAL:
-                    handleIncomingConnection();
-                    break;
-
-                case MessageForwarderProtocol.CREATE_VIRTUAL_ACK:
-                    handleIncomingConnectionACK();
-                    break;
-
-                case MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK:
-                    handleIncomingConnectionACKACK();
-                    break;
-
-                case MessageForwarderProtocol.CREATE_VIRTUAL_NACK:
-                    handleIncomingConnectionNACK();
-                    break;
-
-                case MessageForwarderProtocol.CLOSE_VIRTUAL:
-                    handleIncomingClose();
-                    break;
-
-                case MessageForwarderProtocol.MESSAGE_VIRTUAL:
-                    handleIncomingMessage();
+                case MessageForwarderProtocol.CLIENT_MESSAGE:
+                    handleClientMessage();
                     break;
 
-                case MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK:
-                    handleIncomingAck();
+                case MessageForwarderProtocol.DATA_MESSAGE:
+                    handleDatagram();
                     break;
 
                 case ServiceLinkProtocol.INFO_REPLY:
@@ -822,11 +1264,21 @@ public class ServiceLink implements Runnable {
                     handlePropertyAck();
                     break;
 
+                case ServiceLinkProtocol.STATE_CHANGED:
+                    handleStateChanged();
+                    break;
+
+                case ServiceLinkProtocol.WATCH_EVENT:
+                    handleWatchEvent();
+                    break;
+
                 default:
-                    logger.warn("ServiceLink: Received unknown opcode!: "
-                            + header);
+                    if (!handleVirtualMessage(header, in, null)) {
+                        logger.warn("ServiceLink: Received unknown opcode!: "
+                                + header);
 
-                    closeConnectionToHub();
+                        closeConnectionToHub();
+                    }
                     break;
                 }
 
@@ -841,30 +1293,177 @@ public class ServiceLink implements Runnable {
         }
     }
 
-    private byte[][] readMessageBlob() throws IOException {
+    // Handles the messages of the virtual connections, which may arrive on the
+    // servicelink itself or on one of the data links. Returns false if the
+    // header is not one of those messages.
+    private boolean handleVirtualMessage(int header, DataInputStream in,
+            DataLink link) throws IOException {
 
-        byte[][] message = null;
+        switch (header) {
+        case MessageForwarderProtocol.CREATE_VIRTUAL:
+            handleIncomingConnection(in, link);
+            return true;
 
-        int bytes = in.readInt();
+        case MessageForwarderProtocol.CREATE_VIRTUAL_ACK:
+            handleIncomingConnectionACK(in);
+            return true;
 
-        if (bytes > 0) {
-            int len = in.readInt();
-            message = new byte[len][];
+        case MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK:
+            handleIncomingConnectionACKACK(in);
+            return true;
 
-            for (int i = 0; i < len; i++) {
+        case MessageForwarderProtocol.CREATE_VIRTUAL_NACK:
+            handleIncomingConnectionNACK(in);
+            return true;
 
-                int tmp = in.readInt();
-                message[i] = new byte[tmp];
+        case MessageForwarderProtocol.CLOSE_VIRTUAL:
+            handleIncomingClose(in);
+            return true;
 
-                if (tmp > 0) {
-                    in.readFully(message[i]);
-                }
-            }
+        case MessageForwarderProtocol.MESSAGE_VIRTUAL:
+            handleIncomingMessage(in);
+            return true;
+
+        case MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK:
+            handleIncomingAck(in);
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+    // Opens the data links to the hub at 'address'. A link that cannot be
+    // created is simply left out, since the virtual connections can always use
+    // the servicelink itself.
+    private void openDataLinks(DirectSocketAddress address) {
+
+        ArrayList<DataLink> tmp = new ArrayList<DataLink>();
+
+        for (int i=0;i<dataLinkCount;i++) {
+            try {
+                tmp.add(new DataLink(tmp.size(), address));
+            } catch (IOException e) {
+                logger.info("Failed to create data link to hub at " + address
+                        + ": ", e);
+            }
+        }
+
+        synchronized (linkOf) {
+            dataLinks = tmp.toArray(new DataLink[tmp.size()]);
+        }
+
+        if (logger.isInfoEnabled() && dataLinkCount > 0) {
+            logger.info("Created " + tmp.size() + " of " + dataLinkCount
+                    + " data links to hub at " + address);
+        }
+    }
+
+    private void startDataLinks() {
+
+        DataLink [] tmp;
+
+        synchronized (linkOf) {
+            tmp = dataLinks;
+        }
+
+        for (DataLink link : tmp) {
+            ThreadPool.createNew(link, "ServiceLink Data Link Reader "
+                    + link.number);
+        }
+    }
+
+    private void closeDataLinks() {
+
+        DataLink [] tmp;
+
+        synchronized (linkOf) {
+            tmp = dataLinks;
+            dataLinks = new DataLink[0];
+            linkOf.removeAll();
+        }
+
+        for (DataLink link : tmp) {
+            link.close();
+        }
+    }
+
+    // Selects the data link for a new outgoing virtual connection.
+    private void selectLink(long index) {
+
+        synchronized (linkOf) {
+            if (dataLinks.length > 0) {
+                linkOf.put(index, dataLinks[(int)
+                        ((index & Long.MAX_VALUE) % dataLinks.length)]);
+            }
+        }
+    }
+
+    private void removeLink(long index) {
+        synchronized (linkOf) {
+            linkOf.remove(index);
+        }
+    }
+
+    // Returns the stream that carries the virtual connection 'index'.
+    private DataOutputStream getOutput(long index) {
+
+        synchronized (linkOf) {
+            DataLink link = linkOf.get(index);
+
+            if (link == null) {
+                return out;
+            }
+
+            return link.out;
+        }
+    }
+
+    private byte[][] readMessageBlob() throws IOException {
+
+        byte[][] message = null;
+
+        int bytes = in.readInt();
+
+        if (bytes > 0) {
+            int len = in.readInt();
+            message = new byte[len][];
+
+            for (int i = 0; i < len; i++) {
+
+                int tmp = in.readInt();
+                message[i] = new byte[tmp];
+
+                if (tmp > 0) {
+                    in.readFully(message[i]);
+                }
+            }
         }
 
         return message;
     }
 
+    // Returns the number of bytes writeMessageBlob writes for 'message'.
+    private static int messageBlobSize(byte[][] message) {
+
+        if (message == null) {
+            return 4;
+        }
+
+        int totalBytes = 4 + 4;
+
+        for (byte[] b : message) {
+
+            totalBytes += 4;
+
+            if (b != null) {
+                totalBytes += b.length;
+            }
+        }
+
+        return totalBytes;
+    }
+
     private void writeMessageBlob(byte[][] message) throws IOException {
 
         if (message == null) {
@@ -912,6 +1511,54 @@ public class ServiceLink implements Runnable {
                     + Arrays.deepToString(message) + "]");
         }
 
+        if (!hubSupports(ConnectionProtocol.CAPABILITY_CLIENT_MESSAGE)) {
+            sendInfoMessage(target, targetHub, targetModule, opcode, message);
+            return;
+        }
+
+        int len = 4 + 1 + 1 + codedLength(myAddress) + codedLength(hubAddress)
+            + codedLength(target) + codedLength(targetHub) + 4
+            + utfLength(targetModule) + 4 + messageBlobSize(message);
+
+        try {
+            synchronized (out) {
+                out.write(MessageForwarderProtocol.CLIENT_MESSAGE);
+                out.writeInt(len);
+
+                // The routing prefix. The hops left are not used here, and
+                // return to sender is not set.
+                out.writeInt(ClientMessage.hubHash(targetHub));
+                out.write(-1);
+                out.write(0);
+
+                DirectSocketAddress.write(myAddress, out);
+                DirectSocketAddress.write(hubAddress, out); // may be null
+
+                DirectSocketAddress.write(target, out);
+                DirectSocketAddress.write(targetHub, out); // may be null
+
+                out.writeInt(ClientMessage.moduleID(targetModule));
+                out.writeUTF(targetModule);
+                out.writeInt(opcode);
+
+                writeMessageBlob(message);
+
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.warn("ServiceLink: Exception while writing to hub!", e);
+            closeConnectionToHub();
+        }
+
+        outgoingMetaMessages++;
+    }
+
+    // Sends a message in the old format, for hubs that do not accept
+    // CLIENT_MESSAGE.
+    private void sendInfoMessage(DirectSocketAddress target,
+            DirectSocketAddress targetHub, String targetModule, int opcode,
+            byte[][] message) {
+
         try {
             synchronized (out) {
                 out.write(MessageForwarderProtocol.INFO_MESSAGE);
@@ -943,6 +1590,169 @@ public class ServiceLink implements Runnable {
         outgoingMetaMessages++;
     }
 
+    /**
+     * Sends a message to 'targetModule' of all clients that have a property
+     * with the given tag (or all clients if the tag is empty), including this
+     * one if it has such a property.
+     *
+     * The hubs pass the message along a tree, so each link between two hubs
+     * carries it only once, no matter how many clients receive it. The
+     * clients are those the hubs know of when the message arrives, and the
+     * message is delivered like any other message sent with send.
+     *
+     * Hubs that do not support broadcasts get a separate message for each of
+     * the clients instead, like the broadcasts that were done by hand before.
+     *
+     * @param tag the tag of the property the clients must have
+     * @param targetModule the module that should receive the message
+     * @param opcode the opcode of the message
+     * @param message the message
+     */
+    public void broadcast(String tag, String targetModule, int opcode,
+            byte[][] message) {
+
+        if (!getConnected()) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Cannot broadcast message: not connected to hub");
+            }
+            return;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Broadcasting message: [" + tag + ", "
+                    + targetModule + ", " + opcode + ", "
+                    + Arrays.deepToString(message) + "]");
+        }
+
+        if (!hubSupports(ConnectionProtocol.CAPABILITY_BROADCAST)) {
+            // Older hubs close the connection on a BROADCAST_MESSAGE.
+            unicast(tag, targetModule, opcode, message);
+            return;
+        }
+
+        byte [] coded;
+
+        try {
+            coded = tag.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new RuntimeException(e);
+        }
+
+        int len = 1 + 4 + codedLength(myAddress) + codedLength(hubAddress)
+            + 4 + coded.length + 4 + utfLength(targetModule) + 4
+            + messageBlobSize(message);
+
+        try {
+            synchronized (out) {
+                out.write(MessageForwarderProtocol.BROADCAST_MESSAGE);
+                out.writeInt(len);
+                out.write(MessageForwarderProtocol.MAX_BROADCAST_HOPS);
+
+                // Our hub determines which hubs should get the message.
+                out.writeInt(-1);
+
+                DirectSocketAddress.write(myAddress, out);
+                DirectSocketAddress.write(hubAddress, out); // may be null
+
+                out.writeInt(coded.length);
+                out.write(coded);
+
+                out.writeInt(ClientMessage.moduleID(targetModule));
+                out.writeUTF(targetModule);
+                out.writeInt(opcode);
+
+                writeMessageBlob(message);
+
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.warn("ServiceLink: Exception while writing to hub!", e);
+            closeConnectionToHub();
+        }
+
+        outgoingMetaMessages++;
+    }
+
+    // Sends a broadcast as separate messages to the clients of each hub. The
+    // hubs and clients are requested asynchronously, so this does not block
+    // when it is used by the thread that receives the replies.
+    private void unicast(final String tag, final String targetModule,
+            final int opcode, final byte[][] message) {
+
+        final InfoReply<DirectSocketAddress[]> hubs;
+
+        try {
+            hubs = hubsAsync();
+        } catch (IOException e) {
+            logger.warn("ServiceLink: Failed to broadcast message!", e);
+            return;
+        }
+
+        hubs.addListener(new Runnable() {
+            public void run() {
+                try {
+                    for (DirectSocketAddress hub : hubs.await()) {
+                        unicast(hub, tag, targetModule, opcode, message);
+                    }
+                } catch (IOException e) {
+                    logger.warn("ServiceLink: Failed to broadcast message!",
+                            e);
+                }
+            }
+        });
+    }
+
+    private void unicast(final DirectSocketAddress hub, String tag,
+            final String targetModule, final int opcode,
+            final byte[][] message) throws IOException {
+
+        final InfoReply<ClientInfo[]> clients = clientsAsync(hub, tag);
+
+        clients.addListener(new Runnable() {
+            public void run() {
+                try {
+                    for (ClientInfo c : clients.await()) {
+                        send(c.getClientAddress(), hub, targetModule, opcode,
+                                message);
+                    }
+                } catch (IOException e) {
+                    logger.warn("ServiceLink: Failed to broadcast message to "
+                            + "clients of " + hub + "!", e);
+                }
+            }
+        });
+    }
+
+    private static int codedLength(DirectSocketAddress a) {
+        return 4 + (a == null ? 0 : a.getAddress().length);
+    }
+
+    // Returns the number of bytes writeUTF writes for 's'.
+    private static int utfLength(String s) {
+
+        int len = 2;
+
+        for (int i=0;i<s.length();i++) {
+
+            char c = s.charAt(i);
+
+            if (c >= 0x0001 && c <= 0x007F) {
+                len++;
+            } else if (c > 0x07FF) {
+                len += 3;
+            } else {
+                len += 2;
+            }
+        }
+
+        return len;
+    }
+
+    // Sends an unreliable datagram to 'targetModule' of 'target' (at hub
+    // 'targetHub', or our own hub if null). The datagram is dropped silently
+    // if it cannot be delivered, for example because a queue on the way is
+    // full.
     public void sendDataMessage(DirectSocketAddress target, DirectSocketAddress targetHub,
             String targetModule, byte [] message) {
 
@@ -953,21 +1763,30 @@ public class ServiceLink implements Runnable {
             return;
         }
 
+        int len = 1 + codedLength(targetHub) + codedLength(target)
+            + codedLength(myAddress) + codedLength(hubAddress) + 4
+            + utfLength(targetModule) + (message == null ? 0 : message.length);
+
+        if (len > MessageForwarderProtocol.MAX_DATAGRAM) {
+            throw new IllegalArgumentException("Datagram too large: "
+                    + len + " bytes");
+        }
+
         try {
             synchronized (out) {
                 out.write(MessageForwarderProtocol.DATA_MESSAGE);
+                out.writeInt(len);
+                out.write(MessageForwarderProtocol.MAX_DATAGRAM_HOPS);
 
-                out.writeInt(4 + targetHub.getAddress().length +
-                        4 + target.getAddress().length +
-                        4 + (message == null ? 0 : message.length));
-
-                DirectSocketAddress.write(targetHub, out); // may be null ?
+                DirectSocketAddress.write(targetHub, out);
                 DirectSocketAddress.write(target, out);
+                DirectSocketAddress.write(myAddress, out);
+                DirectSocketAddress.write(hubAddress, out);
 
-                if (message == null) {
-                    out.writeInt(0);
-                } else {
-                    out.writeInt(message.length);
+                out.writeInt(ClientMessage.moduleID(targetModule));
+                out.writeUTF(targetModule);
+
+                if (message != null) {
                     out.write(message);
                 }
 
@@ -1035,34 +1854,23 @@ public class ServiceLink implements Runnable {
 
     public ClientInfo[] clients(DirectSocketAddress hub, String tag)
             throws IOException {
+        return clientsAsync(hub, tag).await();
+    }
+
+    public InfoReply<ClientInfo[]> clientsAsync(DirectSocketAddress hub)
+            throws IOException {
+        return clientsAsync(hub, "");
+    }
+
+    public InfoReply<ClientInfo[]> clientsAsync(DirectSocketAddress hub,
+            String tag) throws IOException {
 
         if (logger.isInfoEnabled()) {
             logger.info("Requesting client list from hub");
         }
 
-        waitConnected(maxWaitTime);
-
-        Integer id = getNextSimpleCallbackID();
-
-        registerInfoRequest(id);
-
-        try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.CLIENTS_FOR_HUB);
-                out.writeInt(id);
-                out.writeUTF(hub.toString());
-                out.writeUTF(tag);
-                out.flush();
-            }
-
-            return convertToClientInfo((String[]) getInfoReply(id));
-        } catch (IOException e) {
-            logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
-            throw new IOException("Connection to hub lost!");
-        } finally {
-            removeInfoRequest(id);
-        }
+        return cachedInfoRequest(ServiceLinkProtocol.CLIENTS_FOR_HUB,
+                clientInfoReply(), hub.toString(), tag);
     }
 
     public ClientInfo[] clients() throws IOException {
@@ -1070,64 +1878,31 @@ public class ServiceLink implements Runnable {
     }
 
     public ClientInfo[] clients(String tag) throws IOException {
+        return clientsAsync(tag).await();
+    }
+
+    public InfoReply<ClientInfo[]> clientsAsync(String tag)
+            throws IOException {
 
         if (logger.isInfoEnabled()) {
             logger.info("Requesting client list from hub");
         }
 
-        waitConnected(maxWaitTime);
-
-        Integer id = getNextSimpleCallbackID();
-
-        registerInfoRequest(id);
-
-        try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.ALL_CLIENTS);
-                out.writeInt(id);
-                out.writeUTF(tag);
-                out.flush();
-            }
-
-            return convertToClientInfo((String[]) getInfoReply(id));
-        } catch (IOException e) {
-            logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
-            throw new IOException("Connection to hub lost!");
-        } finally {
-            removeInfoRequest(id);
-        }
+        return cachedInfoRequest(ServiceLinkProtocol.ALL_CLIENTS,
+                clientInfoReply(), tag);
     }
 
     public DirectSocketAddress[] hubs() throws IOException {
+        return hubsAsync().await();
+    }
+
+    public InfoReply<DirectSocketAddress[]> hubsAsync() throws IOException {
 
         if (logger.isInfoEnabled()) {
             logger.info("Requesting hub list from hub");
         }
 
-        waitConnected(maxWaitTime);
-
-        Integer id = getNextSimpleCallbackID();
-
-        registerInfoRequest(id);
-
-        try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.HUBS);
-                out.writeInt(id);
-                out.flush();
-            }
-
-            return DirectSocketAddress
-                    .convertToSocketAddressSet((String[]) getInfoReply(id));
-
-        } catch (IOException e) {
-            logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
-            throw new IOException("Connection to hub lost!");
-        } finally {
-            removeInfoRequest(id);
-        }
+        return cachedInfoRequest(ServiceLinkProtocol.HUBS, addressReply());
     }
 
     public void addHubs(DirectSocketAddress... hubs) {
@@ -1139,65 +1914,33 @@ public class ServiceLink implements Runnable {
     }
 
     public HubInfo[] hubDetails() throws IOException {
+        return hubDetailsAsync().await();
+    }
+
+    public InfoReply<HubInfo[]> hubDetailsAsync() throws IOException {
 
         if (logger.isInfoEnabled()) {
             logger.info("Requesting hub details from hub");
         }
 
-        waitConnected(maxWaitTime);
-
-        Integer id = getNextSimpleCallbackID();
-
-        registerInfoRequest(id);
-
-        try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.HUB_DETAILS);
-                out.writeInt(id);
-                out.flush();
-            }
-
-            return convertToHubInfo((String[]) getInfoReply(id));
-
-        } catch (IOException e) {
-            logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
-            throw new IOException("Connection to hub lost!");
-        } finally {
-            removeInfoRequest(id);
-        }
+        return cachedInfoRequest(ServiceLinkProtocol.HUB_DETAILS,
+                hubInfoReply());
     }
 
     public DirectSocketAddress[] locateClient(String client) throws IOException {
+        return locateClientAsync(client).await();
+    }
 
-        waitConnected(maxWaitTime);
+    public InfoReply<DirectSocketAddress[]> locateClientAsync(String client)
+            throws IOException {
 
         if (logger.isInfoEnabled()) {
             logger.info("Requesting direction to client " + client
                     + " from hub");
         }
 
-        Integer id = getNextSimpleCallbackID();
-        registerInfoRequest(id);
-
-        try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.DIRECTION);
-                out.writeInt(id);
-                out.writeUTF(client);
-                out.flush();
-            }
-
-            return DirectSocketAddress
-                    .convertToSocketAddressSet((String[]) getInfoReply(id));
-
-        } catch (IOException e) {
-            logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
-            throw new IOException("Connection to hub lost!");
-        } finally {
-            removeInfoRequest(id);
-        }
+        return cachedInfoRequest(ServiceLinkProtocol.DIRECTION, addressReply(),
+                client);
     }
 
     public DirectSocketAddress getAddress() throws IOException {
@@ -1344,6 +2087,10 @@ public class ServiceLink implements Runnable {
             logger.debug("Creating virtual connection: " + index);
         }
 
+        selectLink(index);
+
+        DataOutputStream out = getOutput(index);
+
         try {
             synchronized (out) {
                 out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL);
@@ -1382,6 +2129,8 @@ public class ServiceLink implements Runnable {
 
         //   System.err.println("#### ACK " + index);
 
+        DataOutputStream out = getOutput(index);
+
         try {
             synchronized (out) {
                 out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK);
@@ -1411,6 +2160,12 @@ public class ServiceLink implements Runnable {
 
         //   System.err.println("#### ACK ACK " + index);
 
+        DataOutputStream out = getOutput(index);
+
+        if (!success) {
+            removeLink(index);
+        }
+
         try {
             synchronized (out) {
                 out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK);
@@ -1439,6 +2194,9 @@ public class ServiceLink implements Runnable {
             return;
         }
 
+        DataOutputStream out = getOutput(index);
+        removeLink(index);
+
         try {
             synchronized (out) {
                 out.write(MessageForwarderProtocol.CREATE_VIRTUAL_NACK);
@@ -1468,6 +2226,9 @@ public class ServiceLink implements Runnable {
             throw new IOException("No connection to hub");
         }
 
+        DataOutputStream out = getOutput(index);
+        removeLink(index);
+
         try {
             synchronized (out) {
                 out.write(MessageForwarderProtocol.CLOSE_VIRTUAL);
@@ -1496,6 +2257,8 @@ public class ServiceLink implements Runnable {
             logger.info("Sending virtual message for connection: " + index);
         }
 
+        DataOutputStream out = getOutput(index);
+
         try {
             synchronized (out) {
                 out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
@@ -1514,6 +2277,59 @@ public class ServiceLink implements Runnable {
         //System.err.println("W");
     }
 
+    // Sends 'count' virtual messages (possibly for different connections)
+    // using a single flush. Message i contains len[i] bytes from message[i],
+    // starting at off[i], and is send over virtual connection index[i]. The
+    // caller must have the credits for all of them. When data links are used,
+    // each run of messages that share a link is written and flushed at once.
+    public void sendVirtualMessages(long [] index, byte [][] message,
+            int [] off, int [] len, int count, int timeout) throws IOException {
+
+        if (!getConnected()) {
+            throw new IOException("No connection to hub!");
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Sending " + count + " virtual messages");
+        }
+
+        long bytes = 0;
+
+        try {
+            int start = 0;
+
+            while (start < count) {
+
+                DataOutputStream out = getOutput(index[start]);
+
+                int end = start+1;
+
+                while (end < count && getOutput(index[end]) == out) {
+                    end++;
+                }
+
+                synchronized (out) {
+                    for (int i=start;i<end;i++) {
+                        out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
+                        out.writeLong(index[i]);
+                        out.writeInt(len[i]);
+                        out.write(message[i], off[i], len[i]);
+                        bytes += len[i];
+                    }
+                    out.flush();
+                }
+
+                start = end;
+            }
+        } catch (IOException e) {
+            logger.warn("ServiceLink: Exception while writing to hub!", e);
+            closeConnectionToHub();
+        }
+
+        outgoingDataMessages += count;
+        outgoingBytes += bytes;
+    }
+
     public void ackVirtualMessage(long index, int data) throws IOException {
 
         if (!getConnected()) {
@@ -1524,6 +2340,8 @@ public class ServiceLink implements Runnable {
             logger.info("Ack virtual message: " + index);
         }
 
+        DataOutputStream out = getOutput(index);
+
         try {
             synchronized (out) {
                 out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK);
@@ -1541,6 +2359,11 @@ public class ServiceLink implements Runnable {
 
     public boolean registerProperty(String tag, String value)
             throws IOException {
+        return registerPropertyAsync(tag, value).await();
+    }
+
+    public InfoReply<Boolean> registerPropertyAsync(String tag, String value)
+            throws IOException {
 
         if (logger.isInfoEnabled()) {
             logger.info("Requesting info registration: " + tag + " " + value);
@@ -1550,32 +2373,16 @@ public class ServiceLink implements Runnable {
             value = "";
         }
 
-        waitConnected(maxWaitTime);
-
-        Integer id = getNextSimpleCallbackID();
-
-        registerInfoRequest(id);
-
-        try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.REGISTER_PROPERTY);
-                out.writeInt(id);
-                out.writeUTF(tag);
-                out.writeUTF(value);
-                out.flush();
-            }
-
-            return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
-        } catch (IOException e) {
-            logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
-            throw new IOException("Connection to hub lost!");
-        } finally {
-            removeInfoRequest(id);
-        }
+        return sendPropertyRequest(ServiceLinkProtocol.REGISTER_PROPERTY, tag,
+                value);
     }
 
     public boolean updateProperty(String tag, String value) throws IOException {
+        return updatePropertyAsync(tag, value).await();
+    }
+
+    public InfoReply<Boolean> updatePropertyAsync(String tag, String value)
+            throws IOException {
 
         if (logger.isInfoEnabled()) {
             logger.info("Requesting info update: " + tag + " " + value);
@@ -1585,59 +2392,22 @@ public class ServiceLink implements Runnable {
             value = "";
         }
 
-        waitConnected(maxWaitTime);
-
-        Integer id = getNextSimpleCallbackID();
-
-        registerInfoRequest(id);
-
-        try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.UPDATE_PROPERTY);
-                out.writeInt(id);
-                out.writeUTF(tag);
-                out.writeUTF(value);
-                out.flush();
-            }
-
-            return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
-        } catch (IOException e) {
-            logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
-            throw new IOException("Connection to hub lost!");
-        } finally {
-            removeInfoRequest(id);
-        }
+        return sendPropertyRequest(ServiceLinkProtocol.UPDATE_PROPERTY, tag,
+                value);
     }
 
     public boolean removeProperty(String tag) throws IOException {
+        return removePropertyAsync(tag).await();
+    }
+
+    public InfoReply<Boolean> removePropertyAsync(String tag)
+            throws IOException {
 
         if (logger.isInfoEnabled()) {
             logger.info("Requesting info removal: " + tag);
         }
 
-        waitConnected(maxWaitTime);
-
-        Integer id = getNextSimpleCallbackID();
-
-        registerInfoRequest(id);
-
-        try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.REMOVE_PROPERTY);
-                out.writeInt(id);
-                out.writeUTF(tag);
-                out.flush();
-            }
-
-            return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
-        } catch (IOException e) {
-            logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
-            throw new IOException("Connection to hub lost!");
-        } finally {
-            removeInfoRequest(id);
-        }
+        return sendPropertyRequest(ServiceLinkProtocol.REMOVE_PROPERTY, tag);
     }
 
     public void printStatistics(String prefix) {
@@ -1658,6 +2428,10 @@ public class ServiceLink implements Runnable {
                     + outgoingDataMessages + "/" + outgoingBytes + "/"
                     + outgoingMetaMessages);
 */
+            if (cache != null) {
+                statslogger.info(prefix + " SL Cache: " + cache.getHits()
+                        + "/" + cache.getMisses());
+            }
         }
 
     }
@@ -1723,6 +2497,83 @@ public class ServiceLink implements Runnable {
 
     }
 
+    // An additional connection to the hub that carries virtual connections.
+    private class DataLink implements Runnable {
+
+        private final int number;
+
+        private final DirectSocket s;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        private volatile boolean closed = false;
+
+        DataLink(int number, DirectSocketAddress address) throws IOException {
+
+            this.number = number;
+
+            s = factory.createSocket(address, TIMEOUT, 0, sendBuffer,
+                    receiveBuffer, null, false, virtualHubPort);
+
+            try {
+                s.setTcpNoDelay(true);
+
+                out = new DataOutputStream(new BufferedOutputStream(
+                        s.getOutputStream(), OUTPUT_BUFFER));
+
+                in = new DataInputStream(new BufferedInputStream(
+                        s.getInputStream()));
+
+                out.write(ConnectionProtocol.SERVICELINK_DATA_CONNECT);
+                out.writeUTF(myAddress.toString());
+                out.writeInt(number);
+                out.flush();
+
+                int reply = in.read();
+
+                if (reply != ConnectionProtocol.CONNECTION_ACCEPTED) {
+                    throw new IOException("Hub denied data link (got: "
+                            + reply + ")");
+                }
+
+                s.setSoTimeout(0);
+            } catch (IOException e) {
+                DirectSocketFactory.close(s, null, null);
+                throw e;
+            }
+        }
+
+        void close() {
+            closed = true;
+            DirectSocketFactory.close(s, out, in);
+        }
+
+        public void run() {
+
+            while (!closed) {
+                try {
+                    int header = in.read();
+
+                    if (header == -1) {
+                        closeConnectionToHub();
+                    } else if (!handleVirtualMessage(header, in, this)) {
+                        logger.warn("ServiceLink: Received unknown opcode on "
+                                + "data link " + number + ": " + header);
+                        closeConnectionToHub();
+                    }
+                } catch (IOException e) {
+
+                    if (!closed && !getDone()) {
+                        logger.warn("ServiceLink: Exception while receiving "
+                                + "on data link " + number + "!", e);
+                    }
+
+                    closeConnectionToHub();
+                }
+            }
+        }
+    }
+
     public static ServiceLink getServiceLink(TypedProperties p,
             List<DirectSocketAddress> hubs, DirectSocketAddress myAddress) {
 
@@ -1744,11 +2595,17 @@ public class ServiceLink implements Runnable {
         boolean force = true;
         long maxReconnect = 0;
 
+        int dataLinks = 0;
+
+        boolean cache = true;
+
         if (p != null) {
             sendBuffer = p.getIntProperty(SmartSocketsProperties.SL_SEND_BUFFER, -1);
             receiveBuffer = p.getIntProperty(SmartSocketsProperties.SL_RECEIVE_BUFFER, -1);
             virtualHubPort = p.getIntProperty(SmartSocketsProperties.HUB_VIRTUAL_PORT, 42);
             force = p.booleanProperty(SmartSocketsProperties.SL_FORCE);
+            dataLinks = p.getIntProperty(SmartSocketsProperties.SL_DATA_LINKS, 0);
+            cache = p.booleanProperty(SmartSocketsProperties.SL_CACHE, true);
 
             if (force) {
                 maxReconnect = ((long) p.getIntProperty(SmartSocketsProperties.SL_RETRIES)) *
@@ -1758,7 +2615,8 @@ public class ServiceLink implements Runnable {
 
         try {
             return new ServiceLink(hubs, myAddress, sendBuffer,
-                    receiveBuffer, virtualHubPort, maxReconnect, force);
+                    receiveBuffer, virtualHubPort, maxReconnect, force,
+                    dataLinks, cache);
 
         } catch (Exception e) {
             logger.warn("ServiceLink: Failed to connect to hub!", e);
@@ -22,6 +22,32 @@ public interface ServiceLinkProtocol extends MessageForwarderProtocol {
     public static final byte DIRECTION         = 45;
     public static final byte INFO_REPLY        = 49;
 
+    // Client info cache opcodes. A client that caches the replies to its info
+    // requests sends SUBSCRIBE_STATE (without arguments). The hub then sends
+    // STATE_CHANGED (followed by its state as a long) right away, and again
+    // whenever its state changes.
+    public static final byte SUBSCRIBE_STATE   = 46;
+    public static final byte STATE_CHANGED     = 47;
+
+    // Watch opcodes. A client sends WATCH (followed by a tag) to be told about
+    // the clients that have a property with that tag (or about all clients if
+    // the tag is empty). The hub replies with a WATCH_EVENT of type
+    // CLIENT_JOINED for each of these clients, followed by one of type
+    // WATCH_SYNCED. After that, it sends an event whenever such a client
+    // joins, changes or leaves. UNWATCH (followed by the tag) ends the watch.
+    //
+    // A WATCH_EVENT consists of the tag, the type, the address of the hub of
+    // the client and the description of the client.
+    public static final byte WATCH             = 50;
+    public static final byte UNWATCH           = 51;
+    public static final byte WATCH_EVENT       = 52;
+
+    // Watch event types
+    public static final byte CLIENT_JOINED     = 1;
+    public static final byte CLIENT_CHANGED    = 2;
+    public static final byte CLIENT_LEFT       = 3;
+    public static final byte WATCH_SYNCED      = 4;
+
     // Virtual connection error codes (only used in combination with opcode)
     public static final byte ERROR_NO_CALLBACK        = 1;
     public static final byte ERROR_PORT_NOT_FOUND     = 2;
@@ -0,0 +1,20 @@
+package ibis.smartsockets.hub.servicelink;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+/**
+ * Receives the changes in the clients watched using ServiceLink.watch.
+ *
+ * A client joins a watch when it connects to a hub or registers a property
+ * with the watched tag, changes when its properties change, and leaves when
+ * it removes the property or disconnects. Right after the watch is placed,
+ * all clients that are already covered by it join.
+ *
+ * The changes are delivered by the thread that reads from the hub, so the
+ * implementation should not block.
+ */
+public interface WatchCallBack {
+    void clientJoined(String tag, DirectSocketAddress hub, ClientInfo client);
+    void clientChanged(String tag, DirectSocketAddress hub, ClientInfo client);
+    void clientLeft(String tag, DirectSocketAddress hub, ClientInfo client);
+}
@@ -119,6 +119,14 @@ public class ClientDescription {
     }
   */
 
+    public DirectSocketAddress getAddress() {
+        return clientAddress;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
     public boolean equals(Object other) {
         if (!(other instanceof ClientDescription)) {
             return false;
@@ -172,4 +180,57 @@ public class ClientDescription {
 
         return new ClientDescription(adress, version, m);
     }
+
+    /**
+     * Writes the description using the binary encoding of the address.
+     *
+     * @return the version that was written.
+     */
+    public long writeBinary(DataOutputStream out) throws IOException {
+
+        // Read the version first. If the services change while we are
+        // writing, the receiver gets a newer set of services with an older
+        // version number, which will be corrected by the next update.
+        long v = version;
+
+        DirectSocketAddress.write(clientAddress, out);
+        out.writeLong(v);
+
+        HashMap<String, String> tmp = services;
+
+        if (tmp == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(tmp.size());
+
+            for (String key : tmp.keySet()) {
+                String value = tmp.get(key);
+
+                if (value == null) {
+                    value = "";
+                }
+
+                out.writeUTF(key);
+                out.writeUTF(value);
+            }
+        }
+
+        return v;
+    }
+
+    public static ClientDescription readBinary(DataInputStream in)
+        throws IOException {
+
+        DirectSocketAddress adress = DirectSocketAddress.read(in);
+        long version = in.readLong();
+        int services = in.readInt();
+
+        HashMap<String, String> m = new HashMap<String, String>();
+
+        for (int s=0;s<services;s++) {
+            m.put(in.readUTF(), in.readUTF());
+        }
+
+        return new ClientDescription(adress, version, m);
+    }
 }
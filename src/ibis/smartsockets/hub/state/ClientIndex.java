@@ -0,0 +1,90 @@
+package ibis.smartsockets.hub.state;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index that maps each client to the hubs that claim to know it.
+ *
+ * The index is updated by the HubDescriptions whenever their client list
+ * changes, so the hubs for a client can be found using a single lookup,
+ * instead of checking every known hub.
+ *
+ * The hubs of a client are kept in an array that is never changed, but
+ * replaced on every update, so lookups do not need a lock.
+ */
+final class ClientIndex {
+
+    private static final HubDescription [] EMPTY = new HubDescription[0];
+
+    private final ConcurrentHashMap<DirectSocketAddress, HubDescription []>
+        index = new ConcurrentHashMap<DirectSocketAddress, HubDescription []>();
+
+    synchronized void add(DirectSocketAddress client, HubDescription hub) {
+
+        HubDescription [] hubs = index.get(client);
+
+        if (hubs == null) {
+            index.put(client, new HubDescription [] { hub });
+            return;
+        }
+
+        for (HubDescription d : hubs) {
+            if (d == hub) {
+                return;
+            }
+        }
+
+        HubDescription [] tmp = new HubDescription[hubs.length + 1];
+        System.arraycopy(hubs, 0, tmp, 0, hubs.length);
+        tmp[hubs.length] = hub;
+
+        index.put(client, tmp);
+    }
+
+    synchronized void remove(DirectSocketAddress client, HubDescription hub) {
+
+        HubDescription [] hubs = index.get(client);
+
+        if (hubs == null) {
+            return;
+        }
+
+        int pos = -1;
+
+        for (int i=0;i<hubs.length;i++) {
+            if (hubs[i] == hub) {
+                pos = i;
+                break;
+            }
+        }
+
+        if (pos < 0) {
+            return;
+        }
+
+        if (hubs.length == 1) {
+            index.remove(client);
+            return;
+        }
+
+        HubDescription [] tmp = new HubDescription[hubs.length - 1];
+        System.arraycopy(hubs, 0, tmp, 0, pos);
+        System.arraycopy(hubs, pos + 1, tmp, pos, hubs.length - pos - 1);
+
+        index.put(client, tmp);
+    }
+
+    // Returns the hubs that know the client. The array may not be changed!
+    HubDescription [] get(DirectSocketAddress client) {
+
+        HubDescription [] hubs = index.get(client);
+
+        if (hubs == null) {
+            return EMPTY;
+        }
+
+        return hubs;
+    }
+}
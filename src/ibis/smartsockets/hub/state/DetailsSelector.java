@@ -6,6 +6,14 @@ public class DetailsSelector extends Selector {
 
     private LinkedList<String> result = new LinkedList<String>();
 
+    // Should the metrics of the links be added ? Older clients cannot parse
+    // them.
+    private final boolean linkMetrics;
+
+    public DetailsSelector(boolean linkMetrics) {
+        this.linkMetrics = linkMetrics;
+    }
+
     public boolean needAll() {
         return true;
     }
@@ -45,6 +53,23 @@ public class DetailsSelector extends Selector {
             }
         }
 
+        if (linkMetrics) {
+
+            LinkMetrics [] m = description.linkMetrics();
+
+            tmp.append(",");
+            tmp.append(m.length);
+
+            for (int i=0;i<m.length;i++) {
+                tmp.append(",");
+                tmp.append(m[i].address);
+                tmp.append(" ");
+                tmp.append(m[i].rtt);
+                tmp.append(" ");
+                tmp.append(m[i].bandwidth);
+            }
+        }
+
         tmp.append(")");
 
         result.add(tmp.toString());
@@ -21,6 +21,10 @@ public class DirectionsAsStringSelector extends Selector {
         return true;
     }
 
+    public DirectSocketAddress needClient() {
+        return client;
+    }
+
     public void select(HubDescription description) {
 
         // Collect the addresses of all proxies that claim to known the client
@@ -22,6 +22,10 @@ public class DirectionsSelector extends Selector {
         return true;
     }
 
+    public DirectSocketAddress needClient() {
+        return client;
+    }
+
     public void select(HubDescription description) {
 
         // Collect the addresses of all proxies that claim to known the client
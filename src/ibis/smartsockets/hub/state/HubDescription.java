@@ -5,8 +5,11 @@ import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.hub.connections.HubConnection;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 
 
 public class HubDescription {
@@ -81,6 +84,25 @@ public class HubDescription {
     // the time.
     private ArrayList<String> connectedTo = new ArrayList<String>();
 
+    // The metrics of the links to the hubs in 'connectedTo', indexed by the
+    // address of the hub at the other end. They are kept apart from
+    // 'connectedTo', since that is also passed on to hubs and clients that do
+    // not know about them.
+    private final HashMap<String, LinkMetrics> linkMetrics =
+        new HashMap<String, LinkMetrics>();
+
+    // Value of the local state the last time the link metrics changed, and
+    // value of the remote state when they changed in the original copy.
+    private long lastMetricsUpdate;
+    private long metricsHomeState;
+
+    // Index of all clients in the hub list. Kept up to date with 'clients'.
+    private ClientIndex clientIndex;
+
+    // Routing table of the hub list. Informed of changes in 'connection' and
+    // 'connectedTo'.
+    private RoutingTable routes;
+
     public HubDescription(DirectSocketAddress address, StateCounter state) {
         this(null, address, state, false, null);
     }
@@ -107,6 +129,17 @@ public class HubDescription {
         this.clients = new HashMap<DirectSocketAddress, ClientDescription>();
     }
 
+    void setClientIndex(ClientIndex index) {
+
+        synchronized (clients) {
+            clientIndex = index;
+
+            for (DirectSocketAddress c : clients.keySet()) {
+                clientIndex.add(c, this);
+            }
+        }
+    }
+
     public boolean addClient(DirectSocketAddress client) {
 
         if (!local) {
@@ -119,8 +152,16 @@ public class HubDescription {
                 return false;
             }
 
-            lastLocalUpdate = state.increment();
             clients.put(client, new ClientDescription(client));
+
+            if (clientIndex != null) {
+                clientIndex.add(client, this);
+            }
+
+            // NOTE: the state is incremented after the change, so anyone that
+            // notices the new state will also see the new client.
+            lastLocalUpdate = state.increment();
+
             return true;
         }
     }
@@ -144,8 +185,14 @@ public class HubDescription {
                 return false;
             }
 
-            lastLocalUpdate = state.increment();
             clients.remove(client);
+
+            if (clientIndex != null) {
+                clientIndex.remove(client, this);
+            }
+
+            lastLocalUpdate = state.increment();
+
             return true;
         }
     }
@@ -159,18 +206,98 @@ public class HubDescription {
         }
 
         synchronized (this.clients) {
+
+            HashMap<DirectSocketAddress, ClientDescription> old =
+                new HashMap<DirectSocketAddress, ClientDescription>(this.clients);
+
             this.clients.clear();
 
             for (ClientDescription c : clients) {
                 this.clients.put(c.clientAddress, c);
+
+                if (old.remove(c.clientAddress) == null && clientIndex != null) {
+                    clientIndex.add(c.clientAddress, this);
+                }
+            }
+
+            // Whatever is left in 'old' is gone.
+            if (clientIndex != null) {
+                for (DirectSocketAddress c : old.keySet()) {
+                    clientIndex.remove(c, this);
+                }
             }
         }
 
-        synchronized (this.connectedTo) {
-            this.connectedTo.clear();
+        updateRest(connectedTo, name, remoteState, vizInfo);
+    }
 
-            for (String s : connectedTo) {
-                this.connectedTo.add(s);
+    /**
+     * Applies the changes in the client list of a remote hub.
+     *
+     * @param changed clients that are new or have changed.
+     * @param removed clients that are gone.
+     * @param connectedTo the new list of connected hubs, or null if it did not
+     * change.
+     */
+    public void updateDelta(ClientDescription [] changed,
+            DirectSocketAddress [] removed, String [] connectedTo,
+            String name, long remoteState, String vizInfo) {
+
+        if (local) {
+            throw new IllegalStateException("Cannot update the local"
+                    + " hub description!");
+        }
+
+        synchronized (clients) {
+
+            for (ClientDescription c : changed) {
+                if (clients.put(c.clientAddress, c) == null
+                        && clientIndex != null) {
+                    clientIndex.add(c.clientAddress, this);
+                }
+            }
+
+            for (DirectSocketAddress a : removed) {
+                if (clients.remove(a) != null && clientIndex != null) {
+                    clientIndex.remove(a, this);
+                }
+            }
+        }
+
+        updateRest(connectedTo, name, remoteState, vizInfo);
+    }
+
+    void setRoutingTable(RoutingTable routes) {
+        this.routes = routes;
+        topologyChanged();
+    }
+
+    private void topologyChanged() {
+        if (routes != null) {
+            routes.topologyChanged();
+        }
+    }
+
+    private void updateRest(String [] connectedTo, String name,
+            long remoteState, String vizInfo) {
+
+        if (connectedTo != null) {
+            boolean changed;
+
+            synchronized (this.connectedTo) {
+                changed = !this.connectedTo.equals(Arrays.asList(connectedTo));
+
+                if (changed) {
+                    this.connectedTo.clear();
+
+                    for (String s : connectedTo) {
+                        this.connectedTo.add(s);
+                    }
+                }
+            }
+
+            if (changed) {
+                topologyChanged();
             }
         }
 
@@ -250,11 +377,30 @@ public class HubDescription {
     }
 
     boolean containsClient(DirectSocketAddress client) {
-        synchronized (client) {
+        synchronized (clients) {
             return clients.containsKey(client);
         }
     }
 
+    // Checks if any of the clients has a property with the given tag (or if
+    // there are any clients at all if the tag is empty).
+    boolean containsClients(String tag) {
+
+        if (clients == null) {
+            return false;
+        }
+
+        synchronized (clients) {
+            for (ClientDescription c : clients.values()) {
+                if (c.containsService(tag)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     public int numberOfClients() {
         return clients.size();
     }
@@ -292,6 +438,22 @@ public class HubDescription {
         }
     }
 
+    public void getClientsAsString(Map<DirectSocketAddress, String> result,
+            String tag) {
+
+        if (clients == null) {
+            return;
+        }
+
+        synchronized (clients) {
+            for (ClientDescription c : clients.values()) {
+                if (c.containsService(tag)) {
+                    result.put(c.getAddress(), c.toString());
+                }
+            }
+        }
+    }
+
     public synchronized void setContactTimeStamp(boolean connect) {
         lastContact = System.currentTimeMillis();
 
@@ -419,6 +581,7 @@ public class HubDescription {
         }
 
         connection = c;
+        topologyChanged();
         return true;
     }
 
@@ -438,6 +601,13 @@ public class HubDescription {
 
     public synchronized void removeConnection() {
         connection = null;
+        topologyChanged();
+    }
+
+    public synchronized void removeConnection(HubConnection c) {
+        if (connection == c) {
+            removeConnection();
+        }
     }
 
     private String reachableToString(byte r) {
@@ -508,6 +678,14 @@ public class HubDescription {
             }
         }
 
+        synchronized (linkMetrics) {
+            for (LinkMetrics m : linkMetrics.values()) {
+                buffer.append("Link         : ");
+                buffer.append(m);
+                buffer.append("\n");
+            }
+        }
+
         synchronized (clients) {
             buffer.append("Clients      : ");
             buffer.append(clients.size());
@@ -529,10 +707,118 @@ public class HubDescription {
                     + " hub descriptions!");
         }
 
+        String hub = RoutingTable.address(address);
+
         synchronized (connectedTo) {
+            // There is only one entry per hub.
+            for (String s : connectedTo) {
+                if (RoutingTable.address(s).equals(hub)) {
+                    return;
+                }
+            }
+
             connectedTo.add(address);
             lastLocalUpdate = state.increment();
         }
+
+        topologyChanged();
+    }
+
+    /**
+     * Sets the metrics of the link to the hub with the given address. They
+     * are gossiped separately from the connectedTo list, and only to the hubs
+     * that accept them.
+     *
+     * @param address the address of the hub at the other end of the link
+     * @param rtt the round trip time in microseconds, or -1 if unknown
+     * @param bandwidth the bandwidth in bytes per second, or 0 if unknown
+     */
+    public void setLinkMetrics(String address, long rtt, long bandwidth) {
+
+        if (!local) {
+            throw new IllegalStateException("Cannot change connections of"
+                    + " remote hub descriptions!");
+        }
+
+        LinkMetrics m = new LinkMetrics(address, rtt, bandwidth);
+
+        synchronized (linkMetrics) {
+            if (m.equals(linkMetrics.get(address))) {
+                return;
+            }
+
+            linkMetrics.put(address, m);
+            lastMetricsUpdate = state.increment();
+        }
+
+        topologyChanged();
+    }
+
+    /**
+     * Replaces the link metrics of a remote hub.
+     *
+     * @param metrics the new metrics
+     * @param remoteState the state of the original copy of the description
+     * @return if the metrics were newer than the ones we had
+     */
+    public boolean updateLinkMetrics(LinkMetrics [] metrics, long remoteState) {
+
+        if (local) {
+            throw new IllegalStateException("Cannot update the local"
+                    + " hub description!");
+        }
+
+        synchronized (linkMetrics) {
+            if (remoteState <= metricsHomeState) {
+                return false;
+            }
+
+            linkMetrics.clear();
+
+            for (LinkMetrics m : metrics) {
+                linkMetrics.put(m.address, m);
+            }
+
+            metricsHomeState = remoteState;
+            lastMetricsUpdate = state.increment();
+        }
+
+        topologyChanged();
+        return true;
+    }
+
+    public LinkMetrics [] linkMetrics() {
+        synchronized (linkMetrics) {
+            return linkMetrics.values().toArray(
+                    new LinkMetrics[linkMetrics.size()]);
+        }
+    }
+
+    /**
+     * Returns the metrics of the link to the hub with the given address, or
+     * null if they are not known.
+     *
+     * @param address the address of the hub at the other end of the link
+     * @return the metrics of the link, or null.
+     */
+    public LinkMetrics getLinkMetrics(String address) {
+        synchronized (linkMetrics) {
+            return linkMetrics.get(address);
+        }
+    }
+
+    public long getLastMetricsUpdate() {
+        synchronized (linkMetrics) {
+            return lastMetricsUpdate;
+        }
+    }
+
+    // The state that identifies the current link metrics, as gossiped to
+    // other hubs.
+    public long getMetricsState() {
+        synchronized (linkMetrics) {
+            return local ? lastMetricsUpdate : metricsHomeState;
+        }
     }
 
     public void removeConnectedTo(String address) {
@@ -542,16 +828,33 @@ public class HubDescription {
                     " remote hub descriptions!");
         }
 
+        boolean changed = false;
+
         synchronized (connectedTo) {
 
-            lastLocalUpdate = state.increment();
+            // Removes all entries for the hub, whatever remark they have.
+            Iterator<String> itt = connectedTo.iterator();
 
-            for (int i=0;i<connectedTo.size();i++) {
-                if (connectedTo.get(i).startsWith(address)) {
-                    connectedTo.remove(i);
-                    return;
+            while (itt.hasNext()) {
+                if (RoutingTable.address(itt.next()).equals(address)) {
+                    itt.remove();
+                    changed = true;
                 }
             }
+
+            if (changed) {
+                lastLocalUpdate = state.increment();
+            }
+        }
+
+        if (changed) {
+            topologyChanged();
+        }
+
+        synchronized (linkMetrics) {
+            if (linkMetrics.remove(address) != null) {
+                lastMetricsUpdate = state.increment();
+            }
         }
     }
 
@@ -3,12 +3,23 @@ package ibis.smartsockets.hub.state;
 import ibis.smartsockets.direct.DirectSocketAddress;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
-
-
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The hubs known to the local hub.
+ *
+ * Lookups and selections do not lock the list. The descriptions are kept in
+ * concurrent maps, and an immutable array of all descriptions, which is
+ * replaced whenever a hub is added (hubs are never removed). The selectors
+ * walk over this array, so they do not block (and are not blocked by) threads
+ * that add hubs. The monitor of the list only protects the bookkeeping of the
+ * connector (connectedHubs and mustCheck).
+ */
 public class HubList {
 
+    private static final HubDescription [] EMPTY = new HubDescription[0];
+
     private static int RETRY_DELAY = 15000;
 
     private final StateCounter state;
@@ -25,11 +36,26 @@ public class HubList {
         new LinkedList<HubDescription>();
     */
 
-    private final HashMap<DirectSocketAddress, HubDescription> map =
-        new HashMap<DirectSocketAddress, HubDescription>();
+    private final ConcurrentHashMap<DirectSocketAddress, HubDescription> map =
+        new ConcurrentHashMap<DirectSocketAddress, HubDescription>();
+
+    // The same hubs, indexed by the hash code of their address (the first
+    // one wins in case of a collision).
+    private final ConcurrentHashMap<Integer, HubDescription> byHash =
+        new ConcurrentHashMap<Integer, HubDescription>();
+
+    // All hubs in 'map'. Never changed, only replaced (while holding the lock
+    // of the list).
+    private volatile HubDescription [] all = EMPTY;
 
     private HubDescription localDescription;
 
+    // Maps clients to the hubs that know them. Maintained by the descriptions.
+    private final ClientIndex clientIndex = new ClientIndex();
+
+    // Shortest routes to the other hubs. Maintained by the descriptions.
+    private final RoutingTable routes = new RoutingTable(this);
+
     public HubList(StateCounter state) {
         this.state = state;
     }
@@ -78,12 +104,27 @@ public class HubList {
         }
     }
 
-    public void addLocalDescription(HubDescription desc) {
-        // NOTE: We assume that it is not required to be thread safe!
+    public synchronized void addLocalDescription(HubDescription desc) {
         // The description of the local machine is only put in the map, not the
         // list...
         localDescription = desc;
-        map.put(desc.hubAddress, desc);
+        desc.setClientIndex(clientIndex);
+        desc.setRoutingTable(routes);
+        publish(desc);
+    }
+
+    // Makes a new description visible to the readers. The caller must hold
+    // the lock of the list.
+    private void publish(HubDescription d) {
+
+        map.put(d.hubAddress, d);
+        byHash.putIfAbsent(d.hubAddress.hashCode(), d);
+
+        HubDescription [] tmp = new HubDescription[all.length + 1];
+        System.arraycopy(all, 0, tmp, 0, all.length);
+        tmp[all.length] = d;
+
+        all = tmp;
     }
 
     public HubDescription getLocalDescription() {
@@ -92,15 +133,54 @@ public class HubList {
         return localDescription;
     }
 
-    public synchronized boolean contains(DirectSocketAddress m) {
+    // Returns all known hubs. The array may not be changed!
+    HubDescription [] descriptions() {
+        return all;
+    }
+
+    /**
+     * Returns the hub that is the first hop on the shortest route to 'target',
+     * or null if no route is known.
+     *
+     * @param target the hub to route to
+     * @return the first hop, or null if the hub cannot be reached.
+     */
+    public HubDescription nextHop(HubDescription target) {
+        return routes.nextHop(target);
+    }
+
+    public boolean contains(DirectSocketAddress m) {
         return map.containsKey(m);
     }
 
-    public synchronized HubDescription get(DirectSocketAddress m) {
+    public HubDescription get(DirectSocketAddress m) {
         return map.get(m);
     }
 
-    public synchronized void select(Selector s) {
+    /**
+     * Returns a hub whose address has the given hash code, or null if there
+     * is no such hub. Since the hash codes are not unique, the caller must
+     * check if it got the right hub.
+     *
+     * @param hash the hash code of the address of the hub
+     * @return a hub with the given hash code, or null.
+     */
+    public HubDescription get(int hash) {
+        return byHash.get(hash);
+    }
+
+    public void select(Selector s) {
+
+        DirectSocketAddress client = s.needClient();
+
+        if (client != null) {
+            // shortcut: only the hubs that know the client are interesting,
+            // so we don't need to look at all of them.
+            for (HubDescription d : clientIndex.get(client)) {
+                s.select(d);
+            }
+            return;
+        }
 
         boolean all = s.needAll();
         boolean connected = s.needConnected();
@@ -112,7 +192,7 @@ public class HubList {
             return;
         }
 
-        for (HubDescription d : map.values()) {
+        for (HubDescription d : this.all) {
             if (all ||
                (connected && (d.getConnection() != null)) ||
                (local && d.local)) {
@@ -132,13 +212,27 @@ public class HubList {
         }
     }
 
-    public synchronized HubDescription add(DirectSocketAddress a) {
+    public HubDescription add(DirectSocketAddress a) {
+
+        HubDescription tmp = map.get(a);
+
+        if (tmp != null) {
+            // The common case, which does not need the lock.
+            return tmp;
+        }
+
+        return addNew(a);
+    }
+
+    private synchronized HubDescription addNew(DirectSocketAddress a) {
 
-        HubDescription tmp = get(a);
+        HubDescription tmp = map.get(a);
 
         if (tmp == null) {
             tmp = new HubDescription(a, state);
-            map.put(tmp.hubAddress, tmp);
+            tmp.setClientIndex(clientIndex);
+            tmp.setRoutingTable(routes);
+            publish(tmp);
 
             //System.out.println("@@@@@@@@@@@@@ ADD NEW PROXY:\n " + tmp + "\n");
 
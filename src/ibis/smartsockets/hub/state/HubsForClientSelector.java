@@ -19,6 +19,10 @@ public class HubsForClientSelector extends Selector {
         return true;
     }
 
+    public DirectSocketAddress needClient() {
+        return client;
+    }
+
     public void select(HubDescription description) {
 
         if (description.containsClient(client)) {
@@ -0,0 +1,32 @@
+package ibis.smartsockets.hub.state;
+
+import java.util.LinkedList;
+
+/**
+ * Selects all hubs (including the local one) that have a client with a
+ * property with the given tag. If the tag is empty, all hubs that have any
+ * clients are selected.
+ */
+public class HubsForTagSelector extends Selector {
+
+    private LinkedList<HubDescription> result = new LinkedList<HubDescription>();
+    private final String tag;
+
+    public HubsForTagSelector(String tag) {
+        this.tag = tag;
+    }
+
+    public boolean needAll() {
+        return true;
+    }
+
+    public void select(HubDescription description) {
+        if (description.containsClients(tag)) {
+            result.add(description);
+        }
+    }
+
+    public LinkedList<HubDescription> getResult() {
+        return result;
+    }
+}
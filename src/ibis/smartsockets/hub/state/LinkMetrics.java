@@ -0,0 +1,58 @@
+package ibis.smartsockets.hub.state;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The measured quality of the link between a hub and one of the hubs in its
+ * connectedTo list (see HubConnection).
+ */
+public final class LinkMetrics {
+
+    // Address of the hub at the other end of the link, as used in the
+    // connectedTo list.
+    public final String address;
+
+    // Round trip time in microseconds, or -1 if unknown.
+    public final long rtt;
+
+    // Bandwidth in bytes per second, or 0 if unknown.
+    public final long bandwidth;
+
+    public LinkMetrics(String address, long rtt, long bandwidth) {
+        this.address = address;
+        this.rtt = rtt;
+        this.bandwidth = bandwidth;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(address);
+        out.writeLong(rtt);
+        out.writeLong(bandwidth);
+    }
+
+    public static LinkMetrics read(DataInputStream in) throws IOException {
+        return new LinkMetrics(in.readUTF(), in.readLong(), in.readLong());
+    }
+
+    public boolean equals(Object other) {
+
+        if (!(other instanceof LinkMetrics)) {
+            return false;
+        }
+
+        LinkMetrics m = (LinkMetrics) other;
+
+        return address.equals(m.address) && rtt == m.rtt
+            && bandwidth == m.bandwidth;
+    }
+
+    public int hashCode() {
+        return address.hashCode();
+    }
+
+    public String toString() {
+        return address + " rtt=" + rtt + " bw=" + (bandwidth / 1024);
+    }
+}
@@ -0,0 +1,28 @@
+package ibis.smartsockets.hub.state;
+
+import java.util.LinkedList;
+
+// Selects the hubs of which the link metrics changed after a given state.
+public class MetricsSelector extends Selector {
+
+    private LinkedList<HubDescription> result = new LinkedList<HubDescription>();
+    private final long state;
+
+    public MetricsSelector(long state) {
+        this.state = state;
+    }
+
+    public boolean needAll() {
+        return true;
+    }
+
+    public void select(HubDescription description) {
+        if (description.getLastMetricsUpdate() > state) {
+            result.add(description);
+        }
+    }
+
+    public LinkedList<HubDescription> getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,258 @@
+package ibis.smartsockets.hub.state;
+
+import ibis.smartsockets.hub.connections.HubConnection;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routing table of the local hub.
+ *
+ * The table contains the first hop of the shortest path from the local hub to
+ * every other known hub. It is computed (using Dijkstra's algorithm) from the
+ * connections of the local hub, and the connectedTo lists the other hubs
+ * gossip. A connection between two hubs can be used in both directions.
+ *
+ * The cost of a link is based on its round trip time and bandwidth, as
+ * measured by the HubConnections and gossiped along with the connectedTo
+ * lists (see HubDescription.setLinkMetrics). Links that have not been measured
+ * yet (or that are reported by hubs that do not measure them) are assumed to
+ * have a round trip time of DEFAULT_RTT.
+ *
+ * The descriptions report all changes in the topology. The table is only
+ * recomputed when it is used after such a change, so a burst of gossip
+ * results in a single recomputation. Each recomputation is a complete run
+ * of Dijkstra's algorithm, not an incremental update. This is cheap for the
+ * number of hubs in an overlay, and the table then never depends on the order
+ * in which the changes arrived. The routes are replaced as a whole, so
+ * lookups only need a lock if the table must be recomputed.
+ *
+ * Two hubs may temporarily disagree on a route, so the virtual connection
+ * setup carries a hop limit (see MessageForwarderProtocol.MAX_VIRTUAL_HOPS).
+ */
+public final class RoutingTable {
+
+    private static final class Entry implements Comparable<Entry> {
+
+        final HubDescription hub;
+        final HubDescription first;
+        final int cost;
+
+        Entry(HubDescription hub, HubDescription first, int cost) {
+            this.hub = hub;
+            this.first = first;
+            this.cost = cost;
+        }
+
+        public int compareTo(Entry other) {
+            return cost < other.cost ? -1 : (cost == other.cost ? 0 : 1);
+        }
+    }
+
+    // Cost of a single hop (in microseconds), so the shortest of two paths
+    // with the same latency is used.
+    private static final long HOP_COST = 100;
+
+    // Round trip time assumed for links without metrics (in microseconds).
+    private static final long DEFAULT_RTT = 1000;
+
+    // The bandwidth of a link is weighed as the time needed to send a message
+    // of this size.
+    private static final long REFERENCE_SIZE = 64*1024;
+
+    private final HubList hubs;
+
+    // Incremented on every change in the topology.
+    private final AtomicInteger version = new AtomicInteger(0);
+
+    // The version the current routes are based on.
+    private volatile int computed = -1;
+
+    // Maps each reachable hub to the first hop on its route. Never changed
+    // once published.
+    private volatile HashMap<HubDescription, HubDescription> routes =
+        new HashMap<HubDescription, HubDescription>();
+
+    RoutingTable(HubList hubs) {
+        this.hubs = hubs;
+    }
+
+    // NOTE: this method may be called while holding the lock of a description,
+    // so it may not lock anything itself.
+    void topologyChanged() {
+        version.incrementAndGet();
+    }
+
+    // Returns the cost of a link with the given round trip time (in
+    // microseconds, or -1 if unknown) and bandwidth (in bytes per second, or
+    // 0 if unknown).
+    private static int cost(long rtt, long bandwidth) {
+
+        long cost = HOP_COST + (rtt < 0 ? DEFAULT_RTT : rtt);
+
+        if (bandwidth > 0) {
+            cost += (REFERENCE_SIZE * 1000000L) / bandwidth;
+        }
+
+        return (int) Math.min(cost, Integer.MAX_VALUE / 4);
+    }
+
+    // Returns the cost of a link of which we only know the gossiped metrics
+    // (if any).
+    private static int cost(LinkMetrics m) {
+
+        if (m == null) {
+            return cost(-1, 0);
+        }
+
+        return cost(m.rtt, m.bandwidth);
+    }
+
+    // Returns the address part of a connectedTo entry.
+    static String address(String entry) {
+
+        // The connectedTo entries may be followed by a remark, such as (SSH).
+        int index = entry.indexOf(' ');
+
+        if (index < 0) {
+            return entry;
+        }
+
+        return entry.substring(0, index);
+    }
+
+    private void recompute() {
+
+        HubDescription local = hubs.getLocalDescription();
+        HubDescription [] all = hubs.descriptions();
+
+        HashMap<String, HubDescription> byAddress =
+            new HashMap<String, HubDescription>();
+
+        for (HubDescription d : all) {
+            byAddress.put(d.hubAddressAsString, d);
+        }
+
+        // Build the (undirected) graph. The links of the local hub are the
+        // connections it actually has, the others are taken from the gossip.
+        HashMap<HubDescription, HashMap<HubDescription, Integer>> graph =
+            new HashMap<HubDescription, HashMap<HubDescription, Integer>>();
+
+        for (HubDescription d : all) {
+
+            if (d == local) {
+                continue;
+            }
+
+            HubConnection c = d.getConnection();
+
+            if (c != null) {
+                addLink(graph, local, d, cost(c.getRTT(), c.getBandwidth()));
+            }
+
+            for (String s : d.connectedTo()) {
+
+                String a = address(s);
+                HubDescription other = byAddress.get(a);
+
+                if (other != null && other != local && other != d) {
+                    addLink(graph, d, other, cost(d.getLinkMetrics(a)));
+                }
+            }
+        }
+
+        HashMap<HubDescription, HubDescription> result =
+            new HashMap<HubDescription, HubDescription>();
+
+        HashMap<HubDescription, Integer> done =
+            new HashMap<HubDescription, Integer>();
+
+        PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+
+        queue.add(new Entry(local, null, 0));
+
+        while (!queue.isEmpty()) {
+
+            Entry e = queue.poll();
+
+            if (done.containsKey(e.hub)) {
+                continue;
+            }
+
+            done.put(e.hub, e.cost);
+
+            if (e.first != null) {
+                result.put(e.hub, e.first);
+            }
+
+            HashMap<HubDescription, Integer> links = graph.get(e.hub);
+
+            if (links == null) {
+                continue;
+            }
+
+            for (HubDescription n : links.keySet()) {
+                if (!done.containsKey(n)) {
+                    queue.add(new Entry(n, e.first == null ? n : e.first,
+                            e.cost + links.get(n)));
+                }
+            }
+        }
+
+        routes = result;
+    }
+
+    private static void addLink(
+            HashMap<HubDescription, HashMap<HubDescription, Integer>> graph,
+            HubDescription a, HubDescription b, int c) {
+
+        addHalfLink(graph, a, b, c);
+        addHalfLink(graph, b, a, c);
+    }
+
+    private static void addHalfLink(
+            HashMap<HubDescription, HashMap<HubDescription, Integer>> graph,
+            HubDescription from, HubDescription to, int cost) {
+
+        HashMap<HubDescription, Integer> links = graph.get(from);
+
+        if (links == null) {
+            links = new HashMap<HubDescription, Integer>();
+            graph.put(from, links);
+        }
+
+        Integer old = links.get(to);
+
+        if (old == null || old > cost) {
+            links.put(to, cost);
+        }
+    }
+
+    /**
+     * Returns the hub that is the first hop on the shortest route to 'target',
+     * or null if there is no route.
+     *
+     * @param target the hub to route to
+     * @return the first hop, or null if the hub cannot be reached.
+     */
+    public HubDescription nextHop(HubDescription target) {
+
+        if (version.get() != computed) {
+            update();
+        }
+
+        return routes.get(target);
+    }
+
+    private synchronized void update() {
+
+        int current = version.get();
+
+        // Another thread may have beaten us to it.
+        if (current != computed) {
+            recompute();
+            computed = current;
+        }
+    }
+}
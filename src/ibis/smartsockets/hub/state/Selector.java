@@ -1,5 +1,7 @@
 package ibis.smartsockets.hub.state;
 
+import ibis.smartsockets.direct.DirectSocketAddress;
+
 public abstract class Selector {
 
     public boolean needLocal() {
@@ -14,5 +16,11 @@ public abstract class Selector {
         return false;
     }
 
+    // If a selector is only interested in the hubs that know a certain client,
+    // it can return that client here. Only those hubs will then be selected.
+    public DirectSocketAddress needClient() {
+        return null;
+    }
+
     public abstract void select(HubDescription description);
 }
@@ -16,6 +16,36 @@ public class StateCounter {
     }
 
     public synchronized long increment() {
+        // Wakes up the gossip thread, which is waiting for a change.
+        notifyAll();
         return ++state;
     }
+
+    /**
+     * Waits until the state differs from <code>known</code>, or until the
+     * timeout expires.
+     *
+     * @param known the last state seen by the caller.
+     * @param timeout the maximum time to wait (in milliseconds).
+     * @return the current state.
+     * @throws InterruptedException if the caller was interrupted.
+     */
+    public synchronized long waitForChange(long known, long timeout)
+        throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (state == known) {
+
+            long left = deadline - System.currentTimeMillis();
+
+            if (left <= 0) {
+                break;
+            }
+
+            wait(left);
+        }
+
+        return state;
+    }
 }
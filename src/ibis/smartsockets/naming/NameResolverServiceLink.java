@@ -2,10 +2,8 @@ package ibis.smartsockets.naming;
 
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.hub.servicelink.CallBack;
-import ibis.smartsockets.hub.servicelink.ClientInfo;
 import ibis.smartsockets.hub.servicelink.ServiceLink;
 import ibis.smartsockets.util.MalformedAddressException;
-import ibis.smartsockets.util.ThreadPool;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
@@ -17,10 +15,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Uses the service link to handle naming. This is a rather poor
- * implementation because the service link doesn't have a broadcast
- * primitive which is what we really want and also because we assume
- * that we want to collect all names locally.
+ * Uses the service link to handle naming. Names are broadcast to all
+ * clients with the naming property. This is a rather poor implementation
+ * because we assume that we want to collect all names locally.
  *
  * @author nick <palmer@cs.vu.nl>
  *
@@ -32,6 +29,11 @@ public class NameResolverServiceLink extends NameResolverMethod {
 
     private static final String NAMING_MODULE = "naming";
 
+    /**
+     * The property all naming clients register.
+     */
+    private static final String NAMING_PROPERTY = "naming";
+
     /**
      * The opcode used to send an add message.
      */
@@ -158,6 +160,16 @@ public class NameResolverServiceLink extends NameResolverMethod {
         };
     }
 
+    /**
+     * Sends a message to all naming clients.
+     * @param opcode the opcode of the message
+     * @param message the message
+     */
+    private void sendToNamingClients(int opcode, byte[][] message) {
+        LOGGER.debug("Broadcasting {}", opcode);
+        mServiceLink.broadcast(NAMING_PROPERTY, NAMING_MODULE, opcode, message);
+    }
+
     private void handleQueryMessage(DirectSocketAddress src,
             DirectSocketAddress srcProxy, byte[][] message) {
         String name = new String(message[0]);
@@ -221,34 +233,14 @@ public class NameResolverServiceLink extends NameResolverMethod {
     public void register(String name, String address, Map<String, String> info)
             throws IOException {
         LOGGER.info("Registering: {} {}", name, address);
-        // TODO: Service link should have a broadcast primitive
-        // Look through all hubs
-        for (DirectSocketAddress hub : mServiceLink.hubs()) {
-            // And look at all of their clients
-            for (ClientInfo client : mServiceLink.clients(hub)) {
-                // Send an add message to each client
-                mServiceLink.send(client.getClientAddress(), hub,
-                        NAMING_MODULE, NAME_ADD,
-                        buildAddMessage(name, address, info));
-            }
-        }
+        sendToNamingClients(NAME_ADD, buildAddMessage(name, address, info));
     }
 
 
     @Override
     public void unregister(String name) throws IOException {
         LOGGER.info("Unregistering: {}", name);
-        // TODO: Service link should have a broadcast primitive
-        // Look through all hubs
-        for (DirectSocketAddress hub : mServiceLink.hubs()) {
-            // And look at all of their clients
-            for (ClientInfo client : mServiceLink.clients(hub)) {
-                // Send a remove message to each client
-                mServiceLink.send(client.getClientAddress(), hub,
-                        NAMING_MODULE, NAME_REMOVE,
-                        buildNameMessage(name));
-            }
-        }
+        sendToNamingClients(NAME_REMOVE, buildNameMessage(name));
     }
 
     @Override
@@ -257,8 +249,8 @@ public class NameResolverServiceLink extends NameResolverMethod {
         if (mServiceLink != null) {
             initializeCallback();
             mServiceLink.registerProperty("smartsockets.viz", "N^naming^naming service^" + 0xff0000ff);
-            mServiceLink.registerProperty("naming", "true");
-            mServiceLink.register("naming", mCallback);
+            mServiceLink.registerProperty(NAMING_PROPERTY, "true");
+            mServiceLink.register(NAMING_MODULE, mCallback);
         } else {
             LOGGER.error("No service link for naming.");
             throw new IOException("No service link to use.");
@@ -283,57 +275,8 @@ public class NameResolverServiceLink extends NameResolverMethod {
 
     @Override
     public void query(final String name) {
-        ThreadPool.createNew(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // TODO: Service link should have a broadcast primitive
-                    final DirectSocketAddress[] hubs = mServiceLink.hubs();
-                    LOGGER.debug("Have: {} hubs", hubs.length);
-                    for (final DirectSocketAddress hub : hubs) {
-                        ThreadPool.createNew(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                LOGGER.debug("Checking hub: {}", hub);
-                                // And look at all of their clients
-                                try {
-                                    final ClientInfo[] clients = mServiceLink.clients(hub);
-                                    LOGGER.debug("Hub has {} clients.", clients.length);
-                                    for (final ClientInfo client : clients) {
-                                        // Send a query message to each naming client
-                                        LOGGER.debug("Checking client: {}", client.getClientAddress());
-                                        if (client.hasProperty("naming")) {
-                                            ThreadPool.createNew(new Runnable() {
-
-                                                @Override
-                                                public void run() {
-                                                    LOGGER.info("Querying for: {} to: {}", name, client.getClientAddress());
-                                                    mServiceLink.send(client.getClientAddress(), null,
-                                                            NAMING_MODULE, NAME_QUERY, buildNameMessage(name));
-                                                    LOGGER.debug("Query sent.");
-                                                }
-
-                                            },
-                                            "query-naming-client: " + name +
-                                            " " + client.getClientAddress());
-                                        } else {
-                                            LOGGER.debug("Not a naming client.");
-                                        }
-                                    }
-                                } catch (Exception e) {
-                                    LOGGER.error("Error asking for clients", e);
-                                }
-                            }
-
-                        }, "query-service-link: " +
-                                name + " : " + hub);
-                    }
-                } catch (Exception e) {
-                    LOGGER.error("Error while querying for name", e);
-                }
-            }
-        }, "query-service-link: " + name);
+        LOGGER.info("Querying for: {}", name);
+        sendToNamingClients(NAME_QUERY, buildNameMessage(name));
     }
 
 }
@@ -0,0 +1,265 @@
+package ibis.smartsockets.util;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Circular byte buffer for exactly one producer thread and one consumer
+ * thread.
+ *
+ * The buffer does not use any locks. The producer and consumer each own one
+ * (volatile) cursor, which counts the total number of bytes written or read.
+ * A consumer that finds the buffer empty parks itself, and is unparked by the
+ * producer when new data is added or the buffer is closed.
+ *
+ * The producer must never write more than free() bytes (which is typically
+ * guaranteed by some flow control scheme).
+ *
+ * The buffer can be grown while in use. A call to ensureCapacity only records
+ * the new size. The producer replaces the array before it writes more data
+ * than fits in the old one. Since the producer never overwrites data in the
+ * old array, a consumer that is still copying from it is not affected.
+ */
+public final class ByteRingBuffer {
+
+    // Only replaced by the producer.
+    private volatile byte [] buffer;
+
+    // The size the buffer should have. Only changed by the consumer.
+    private volatile int capacity;
+
+    // Total number of bytes written. Only changed by the producer.
+    private volatile long written = 0;
+
+    // Total number of bytes read. Only changed by the consumer.
+    private volatile long read = 0;
+
+    // The consumer, if it is (about to be) parked.
+    private volatile Thread waiting;
+
+    private volatile boolean closed = false;
+
+    public ByteRingBuffer(int size) {
+        buffer = new byte[size];
+        capacity = size;
+    }
+
+    public int size() {
+        return capacity;
+    }
+
+    /**
+     * Makes sure the buffer can hold at least size bytes. More than the old
+     * size may be written as soon as this method returns (consumer only).
+     */
+    public void ensureCapacity(int size) {
+        if (size > capacity) {
+            capacity = size;
+        }
+    }
+
+    /**
+     * Returns the number of bytes that can be read.
+     */
+    public int available() {
+        return (int) (written - read);
+    }
+
+    /**
+     * Returns the number of bytes that can be written.
+     */
+    public int free() {
+        return capacity - available();
+    }
+
+    /**
+     * Closes the buffer. The consumer can still read the data that is left.
+     */
+    public void close() {
+        closed = true;
+        wakeup();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void wakeup() {
+
+        Thread t = waiting;
+
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    // Returns the array to write into, replacing it first if it has to grow
+    // (producer only).
+    private byte [] producerBuffer() {
+
+        byte [] old = buffer;
+        int size = capacity;
+
+        if (size <= old.length) {
+            return old;
+        }
+
+        byte [] tmp = new byte[size];
+
+        // Copy the unread data, so that every position ends up where the new
+        // array length expects it.
+        long w = written;
+        long c = read;
+
+        while (c < w) {
+            int from = (int) (c % old.length);
+            int to = (int) (c % tmp.length);
+            int len = (int) Math.min(w - c,
+                    Math.min(old.length - from, tmp.length - to));
+
+            System.arraycopy(old, from, tmp, to, len);
+            c += len;
+        }
+
+        buffer = tmp;
+        return tmp;
+    }
+
+    private void publish(int len) {
+        written += len;
+        wakeup();
+    }
+
+    /**
+     * Reads len bytes from the input into the buffer (producer only).
+     */
+    public void write(DataInput in, int len) throws IOException {
+
+        byte [] buffer = producerBuffer();
+
+        int pos = (int) (written % buffer.length);
+        int cont = buffer.length - pos;
+
+        if (cont >= len) {
+            // We can read the data in one go.
+            in.readFully(buffer, pos, len);
+        } else {
+            // The buffer will wrap, so read in two parts
+            in.readFully(buffer, pos, cont);
+            in.readFully(buffer, 0, len-cont);
+        }
+
+        publish(len);
+    }
+
+    /**
+     * Copies len bytes into the buffer (producer only).
+     */
+    public void write(byte [] b, int off, int len) {
+
+        byte [] buffer = producerBuffer();
+
+        int pos = (int) (written % buffer.length);
+        int cont = buffer.length - pos;
+
+        if (cont >= len) {
+            System.arraycopy(b, off, buffer, pos, len);
+        } else {
+            System.arraycopy(b, off, buffer, pos, cont);
+            System.arraycopy(b, off+cont, buffer, 0, len-cont);
+        }
+
+        publish(len);
+    }
+
+    /**
+     * Copies at most len bytes from the buffer without blocking (consumer
+     * only).
+     *
+     * @return the number of bytes copied.
+     */
+    public int read(byte [] b, int off, int len) {
+
+        // NOTE: 'written' must be read before 'buffer', as the data it
+        // covers may only be in the latest array.
+        long w = written;
+        byte [] buffer = this.buffer;
+
+        long r = read;
+
+        int avail = (int) (w - r);
+        int toRead = avail < len ? avail : len;
+
+        int pos = (int) (r % buffer.length);
+
+        // Check if the buffer will wrap during the read
+        if (pos + toRead <= buffer.length) {
+            System.arraycopy(buffer, pos, b, off, toRead);
+        } else {
+            int part = buffer.length - pos;
+            System.arraycopy(buffer, pos, b, off, part);
+            System.arraycopy(buffer, 0, b, off+part, toRead-part);
+        }
+
+        read = r + toRead;
+        return toRead;
+    }
+
+    /**
+     * Waits until data is available (consumer only).
+     *
+     * @param timeout the maximum time to wait in milliseconds, or 0 to wait
+     * without limit.
+     * @return the number of bytes available, 0 if the timeout expired, or -1
+     * if the buffer is empty and closed.
+     */
+    public int waitAvailable(long timeout) {
+
+        int avail = available();
+
+        // shortcut
+        if (avail > 0) {
+            return avail;
+        }
+
+        long deadline = 0;
+
+        if (timeout > 0) {
+            deadline = System.nanoTime() + timeout * 1000000L;
+        }
+
+        waiting = Thread.currentThread();
+
+        try {
+            while (true) {
+
+                // NOTE: must be checked after setting 'waiting', or we may
+                // miss the wakeup of the producer.
+                avail = available();
+
+                if (avail > 0) {
+                    return avail;
+                }
+
+                if (closed) {
+                    return -1;
+                }
+
+                if (deadline == 0) {
+                    LockSupport.park();
+                } else {
+                    long left = deadline - System.nanoTime();
+
+                    if (left <= 0) {
+                        return 0;
+                    }
+
+                    LockSupport.parkNanos(left);
+                }
+            }
+        } finally {
+            waiting = null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ibis.smartsockets.util;
+
+import java.util.LinkedList;
+
+/**
+ * Hash map that uses primitive longs as keys.
+ *
+ * Unlike a HashMap<Long, V> this map does not need to allocate any objects to
+ * insert or lookup an entry (except when it grows). It uses open addressing
+ * with linear probing. Null values are not allowed.
+ *
+ * Like HashMap, this class is not synchronized.
+ *
+ * @param <V> the type of the values.
+ */
+public class LongHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long [] keys;
+    private V [] values;
+
+    private int mask;
+    private int size;
+
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongHashMap(int capacity) {
+
+        int tmp = DEFAULT_CAPACITY;
+
+        // Keep the table at most half full.
+        while (tmp < 2*capacity) {
+            tmp *= 2;
+        }
+
+        allocate(tmp);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = (V []) new Object[capacity];
+        mask = capacity-1;
+    }
+
+    private int slot(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public V get(long key) {
+
+        int i = slot(key);
+
+        while (values[i] != null) {
+
+            if (keys[i] == key) {
+                return values[i];
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        return null;
+    }
+
+    public V put(long key, V value) {
+
+        if (value == null) {
+            throw new NullPointerException("Null values not allowed");
+        }
+
+        int i = slot(key);
+
+        while (values[i] != null) {
+
+            if (keys[i] == key) {
+                V old = values[i];
+                values[i] = value;
+                return old;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        size++;
+
+        if (2*size > values.length) {
+            grow();
+        }
+
+        return null;
+    }
+
+    public V remove(long key) {
+
+        int i = slot(key);
+
+        while (values[i] != null) {
+
+            if (keys[i] == key) {
+                V old = values[i];
+                delete(i);
+                return old;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes all entries from the map.
+     *
+     * @return the values that were stored in the map.
+     */
+    public LinkedList<V> removeAll() {
+
+        LinkedList<V> result = new LinkedList<V>();
+
+        for (int i=0;i<values.length;i++) {
+            if (values[i] != null) {
+                result.add(values[i]);
+                values[i] = null;
+            }
+        }
+
+        size = 0;
+        return result;
+    }
+
+    // Removes the entry in slot i, and moves any following entries of the
+    // same probe sequence back, so we don't need tombstones.
+    private void delete(int i) {
+
+        values[i] = null;
+        size--;
+
+        int j = (i + 1) & mask;
+
+        while (values[j] != null) {
+
+            int home = slot(keys[j]);
+
+            // Move the entry at j to the hole at i if its home slot is not
+            // (cyclically) in the range (i, j].
+            boolean move;
+
+            if (i <= j) {
+                move = (home <= i || home > j);
+            } else {
+                move = (home <= i && home > j);
+            }
+
+            if (move) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+
+            j = (j + 1) & mask;
+        }
+    }
+
+    private void grow() {
+
+        long [] oldKeys = keys;
+        V [] oldValues = values;
+
+        allocate(2*oldValues.length);
+
+        size = 0;
+
+        for (int i=0;i<oldValues.length;i++) {
+            if (oldValues[i] != null) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
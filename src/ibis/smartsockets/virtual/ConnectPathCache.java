@@ -0,0 +1,326 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which module was last used to successfully connect to a machine
+ * (and to the cluster or hub it belongs to), and how long the connection setup
+ * took.
+ *
+ * The module that worked last time is tried first, before the order given by
+ * the VirtualClusters. Entries expire after a configurable time, and only a
+ * limited number of entries is kept (least recently used entries are removed
+ * first). Optionally, the cache is stored in a file, so it survives a restart.
+ */
+final class ConnectPathCache {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.cache");
+
+    // Minimal time between two saves of the cache file.
+    private static final long SAVE_INTERVAL = 10000;
+
+    private static final class Path {
+
+        final String module;
+
+        // Average connection setup time in ms.
+        long latency;
+
+        // Time of the last successful connection setup.
+        long timestamp;
+
+        Path(String module, long latency, long timestamp) {
+            this.module = module;
+            this.latency = latency;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final long ttl;
+    private final int maxSize;
+    private final File file;
+
+    private final LinkedHashMap<String, Path> paths;
+
+    private boolean dirty = false;
+    private long lastSave = 0;
+
+    ConnectPathCache(TypedProperties p) {
+
+        ttl = p.getLongProperty(SmartSocketsProperties.CONNECT_CACHE_TTL,
+                600000);
+        maxSize = p.getIntProperty(SmartSocketsProperties.CONNECT_CACHE_SIZE,
+                1000);
+
+        String name = p.getProperty(SmartSocketsProperties.CONNECT_CACHE_FILE);
+
+        if (name == null || name.length() == 0) {
+            file = null;
+        } else {
+            file = new File(name);
+        }
+
+        paths = new LinkedHashMap<String, Path>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Path> e) {
+                return size() > maxSize;
+            }
+        };
+
+        if (file != null) {
+            load();
+        }
+    }
+
+    private static String clusterKey(VirtualSocketAddress target) {
+
+        String c = target.cluster();
+
+        if (c == null || c.length() == 0) {
+            // No cluster defined... let's use the hub address as a cluster.
+            DirectSocketAddress hub = target.hub();
+
+            if (hub != null) {
+                return "hub:" + hub.toString();
+            }
+
+            return null;
+        }
+
+        return "cluster:" + c;
+    }
+
+    private static String machineKey(VirtualSocketAddress target) {
+        return "machine:" + target.machine().toString();
+    }
+
+    private Path get(String key, long now) {
+
+        if (key == null) {
+            return null;
+        }
+
+        Path p = paths.get(key);
+
+        if (p != null && now - p.timestamp > ttl) {
+            paths.remove(key);
+            dirty = true;
+            return null;
+        }
+
+        return p;
+    }
+
+    /**
+     * Returns the connect order to use for the target. If the cache knows a
+     * module that worked before, this module is moved to the front of (a copy
+     * of) the order.
+     *
+     * @param target the target of the connection setup.
+     * @param order the order determined by the VirtualClusters.
+     * @return the order to use.
+     */
+    synchronized ConnectModule [] getOrder(VirtualSocketAddress target,
+            ConnectModule [] order) {
+
+        long now = System.currentTimeMillis();
+
+        Path p = get(machineKey(target), now);
+
+        if (p == null) {
+            p = get(clusterKey(target), now);
+        }
+
+        if (p == null || order.length == 0
+                || order[0].getName().equals(p.module)) {
+            return order;
+        }
+
+        for (int i=1;i<order.length;i++) {
+
+            if (order[i].getName().equals(p.module)) {
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("Using cached module " + p.module + " to "
+                            + "connect to " + target + " (setup time "
+                            + p.latency + " ms.)");
+                }
+
+                ConnectModule [] result = new ConnectModule[order.length];
+                result[0] = order[i];
+                System.arraycopy(order, 0, result, 1, i);
+                System.arraycopy(order, i+1, result, i+1, order.length-i-1);
+                return result;
+            }
+        }
+
+        // The module is not loaded by this factory.
+        return order;
+    }
+
+    private void put(String key, String module, long time, long now) {
+
+        if (key == null) {
+            return;
+        }
+
+        Path p = paths.get(key);
+
+        if (p == null || !p.module.equals(module)) {
+            paths.put(key, new Path(module, time, now));
+        } else {
+            p.latency = (3*p.latency + time) / 4;
+            p.timestamp = now;
+        }
+    }
+
+    /**
+     * Records a successful connection setup.
+     *
+     * @param target the target of the connection setup.
+     * @param m the module that created the connection.
+     * @param time the time required for the connection setup (in ms.).
+     */
+    synchronized void succes(VirtualSocketAddress target, ConnectModule m,
+            long time) {
+
+        long now = System.currentTimeMillis();
+
+        put(machineKey(target), m.getName(), time, now);
+        put(clusterKey(target), m.getName(), time, now);
+
+        dirty = true;
+
+        if (file != null && now - lastSave >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * Records that no module was able to connect to the target. The cached
+     * information about the target machine is no longer useful.
+     *
+     * @param target the target of the connection setup.
+     */
+    synchronized void failed(VirtualSocketAddress target) {
+        if (paths.remove(machineKey(target)) != null) {
+            dirty = true;
+        }
+    }
+
+    private void load() {
+
+        if (!file.exists()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new FileReader(file));
+
+            String line = in.readLine();
+
+            while (line != null) {
+
+                // key, module, latency, timestamp
+                String [] tmp = line.split("\\t");
+
+                if (tmp.length == 4) {
+
+                    long latency = Long.parseLong(tmp[2]);
+                    long timestamp = Long.parseLong(tmp[3]);
+
+                    if (now - timestamp <= ttl) {
+                        paths.put(tmp[0], new Path(tmp[1], latency, timestamp));
+                    }
+                }
+
+                line = in.readLine();
+            }
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Loaded " + paths.size() + " connect paths from "
+                        + file);
+            }
+
+        } catch (Exception e) {
+            logger.warn("Failed to load connect path cache " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the cache in its file (if any) if it has changed.
+     */
+    synchronized void save() {
+
+        if (file == null || !dirty) {
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+
+        PrintWriter out = null;
+
+        try {
+            out = new PrintWriter(new FileWriter(tmp));
+
+            for (Map.Entry<String, Path> e : paths.entrySet()) {
+                Path p = e.getValue();
+                out.println(e.getKey() + "\t" + p.module + "\t" + p.latency
+                        + "\t" + p.timestamp);
+            }
+
+            out.close();
+            out = null;
+
+            // Replace the old file. The delete is needed on some platforms.
+            if (!tmp.renameTo(file)) {
+                file.delete();
+
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tmp);
+                }
+            }
+
+            dirty = false;
+
+        } catch (IOException e) {
+            logger.warn("Failed to save connect path cache " + file, e);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        lastSave = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,158 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.IOException;
+
+/**
+ * Keeps track of a number of connection attempts to the same target that run
+ * in parallel, each using a different module.
+ *
+ * The first attempt that gets its connection accepted wins the race. To
+ * ensure that the target never accepts more than one of the connections, only
+ * a single attempt at a time is allowed to wait for an accept. Any attempt
+ * that succeeds after the race has been decided closes its connection.
+ */
+final class ConnectRace {
+
+    private final Throwable [] exceptions;
+
+    private int running = 0;
+
+    private boolean accepting = false;
+    private boolean done = false;
+
+    private VirtualSocket winner;
+    private ConnectModule winningModule;
+
+    private IOException fatal;
+
+    ConnectRace(int attempts) {
+        exceptions = new Throwable[attempts];
+    }
+
+    synchronized void started() {
+        running++;
+    }
+
+    synchronized void finished(int index, Throwable e) {
+
+        running--;
+
+        if (e instanceof IOException) {
+            // A non-transient error (i.e., target port does not exist), so
+            // there is no point in waiting for the other attempts.
+            if (fatal == null) {
+                fatal = (IOException) e;
+            }
+
+            done = true;
+        } else if (e != null) {
+            exceptions[index] = e;
+        }
+
+        notifyAll();
+    }
+
+    synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Called by an attempt that has created a connection and wants to wait for
+     * the target to accept it. Blocks while another attempt is waiting for an
+     * accept.
+     *
+     * @return if the attempt may wait for the accept. If false, the race has
+     * already been decided, and the connection should be closed.
+     */
+    synchronized boolean mayAccept() {
+
+        while (accepting && !done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        if (done) {
+            return false;
+        }
+
+        accepting = true;
+        return true;
+    }
+
+    /**
+     * Called by an attempt after waiting for an accept.
+     *
+     * @param vs the accepted socket, or null if the accept failed.
+     * @param m the module that created the socket.
+     * @return if the socket won the race. If false, the race was decided by a
+     * fatal error while we waited, and the socket should be closed.
+     */
+    synchronized boolean acceptDone(VirtualSocket vs, ConnectModule m) {
+
+        accepting = false;
+        notifyAll();
+
+        if (vs == null || done) {
+            return false;
+        }
+
+        winner = vs;
+        winningModule = m;
+        done = true;
+        return true;
+    }
+
+    /**
+     * Waits until the race is decided, all attempts that were started have
+     * finished, or the timeout expires.
+     *
+     * @param timeout the maximum time to wait, or 0 to wait without limit.
+     * @return if the race was decided.
+     */
+    synchronized boolean waitFor(long timeout) {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (!done && running > 0) {
+
+            long left = 0;
+
+            if (timeout > 0) {
+                left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    break;
+                }
+            }
+
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        return done;
+    }
+
+    synchronized VirtualSocket getWinner() {
+        return winner;
+    }
+
+    synchronized ConnectModule getWinningModule() {
+        return winningModule;
+    }
+
+    synchronized IOException getFatal() {
+        return fatal;
+    }
+
+    synchronized Throwable [] getExceptions() {
+        return exceptions.clone();
+    }
+}
@@ -160,6 +160,8 @@ public final class VirtualSocketFactory {
 
     private final boolean DETAILED_EXCEPTIONS;
 
+    private final int CONNECT_STAGGER;
+
     private final Random random;
 
     private final HashMap<Integer, VirtualServerSocket> serverSockets =
@@ -181,6 +183,9 @@ public final class VirtualSocketFactory {
 
     private VirtualClusters clusters;
 
+    // Only used if the connect cache is enabled.
+    private ConnectPathCache pathCache;
+
     private boolean printStatistics = false;
 
     private String statisticPrefix = null;
@@ -207,6 +212,50 @@ public final class VirtualSocketFactory {
         }
     }
 
+    /**
+     * A connection attempt using a single module, which runs in parallel with
+     * attempts using other modules.
+     */
+    private class ConnectAttempt implements Runnable {
+
+        private final ConnectRace race;
+        private final int index;
+        private final ConnectModule m;
+        private final VirtualSocketAddress target;
+        private final int timeout;
+        private final int timeLeft;
+        private final boolean fillTimeout;
+        private final Map<String, Object> properties;
+
+        private ConnectAttempt(ConnectRace race, int index, ConnectModule m,
+                VirtualSocketAddress target, int timeout, int timeLeft,
+                boolean fillTimeout, Map<String, Object> properties) {
+            this.race = race;
+            this.index = index;
+            this.m = m;
+            this.target = target;
+            this.timeout = timeout;
+            this.timeLeft = timeLeft;
+            this.fillTimeout = fillTimeout;
+            this.properties = properties;
+        }
+
+        public void run() {
+
+            Throwable error = null;
+
+            try {
+                // The resulting socket is handed to the race.
+                createClientSocket(m, target, timeout, timeLeft, fillTimeout,
+                        properties, race);
+            } catch (Throwable e) {
+                error = e;
+            }
+
+            race.finished(index, error);
+        }
+    }
+
     private VirtualSocketFactory(DirectSocketFactory df, TypedProperties p)
             throws InitializationException {
 
@@ -228,6 +277,9 @@ public final class VirtualSocketFactory {
         DEFAULT_ACCEPT_TIMEOUT = p.getIntProperty(
                 SmartSocketsProperties.ACCEPT_TIMEOUT, 60000);
 
+        CONNECT_STAGGER = p.getIntProperty(
+                SmartSocketsProperties.MODULES_STAGGER, 0);
+
         // NOTE: order is VERY important here!
         try {
             loadModules();
@@ -349,6 +401,12 @@ public final class VirtualSocketFactory {
 
     private void loadClusterDefinitions() {
         clusters = new VirtualClusters(this, properties, getModules());
+
+        if (properties.booleanProperty(SmartSocketsProperties.CONNECT_CACHE,
+                true) && properties.booleanProperty(
+                        SmartSocketsProperties.CLUSTER_REORDER, true)) {
+            pathCache = new ConnectPathCache(properties);
+        }
     }
 
     private DirectSocketAddress discoverHub(String localCluster) {
@@ -945,6 +1003,7 @@ public final class VirtualSocketFactory {
      * @param timeLeft Total timeout left.
      * @param fillTimeout Should we retry until the timeout expires ?
      * @param properties Properties to use in connection setup.
+     * @param race The race this attempt is part of (may be null).
      * @return a VirtualSocket if the connection setup succeeded, null
      * otherwise.
      * @throws IOException a non-transient error occured (i.e., target port does
@@ -953,8 +1012,8 @@ public final class VirtualSocketFactory {
      */
     private VirtualSocket createClientSocket(ConnectModule m,
             VirtualSocketAddress target, int timeout, int timeLeft,
-            boolean fillTimeout, Map<String, Object> properties)
-            throws IOException, NonFatalIOException {
+            boolean fillTimeout, Map<String, Object> properties,
+            ConnectRace race) throws IOException, NonFatalIOException {
 
         int backoff = 1000;
 
@@ -990,6 +1049,11 @@ public final class VirtualSocketFactory {
 
         while (true) {
 
+            if (race != null && race.isDone()) {
+                // Some other module won the race, so we can stop.
+                return null;
+            }
+
             long t = System.currentTimeMillis() - start;
 
             // Check if we ran out of time. If so, the throw a target overloaded
@@ -1056,6 +1120,17 @@ public final class VirtualSocketFactory {
                     newTimeout = 1000;
                 }
 
+                if (race != null && !race.mayAccept()) {
+                    // Another module won the race while we were connecting.
+                    if (conlogger.isDebugEnabled()) {
+                        conlogger.debug("Module " + m.module + " lost the "
+                                + "race to " + target);
+                    }
+
+                    close(vs, null);
+                    return null;
+                }
+
                 if (conlogger.isInfoEnabled()) {
                     conlogger.info(getVirtualAddressAsString() + ": Success "
                             + m.module + " connected to " + target
@@ -1063,9 +1138,12 @@ public final class VirtualSocketFactory {
                             + " ms.)");
                 }
 
+                boolean accepted = false;
+
                 try {
                     vs.waitForAccept(newTimeout);
                     vs.setTcpNoDelay(false);
+                    accepted = true;
 
                     long end = System.currentTimeMillis();
 
@@ -1103,6 +1181,19 @@ public final class VirtualSocketFactory {
                         // We'll only retry if 'fillTimeout' is true
                         throw e;
                     }
+                } finally {
+                    if (race != null
+                            && !race.acceptDone(accepted ? vs : null, m)
+                            && accepted) {
+                        // The race was given up while we waited.
+                        if (conlogger.isDebugEnabled()) {
+                            conlogger.debug("Module " + m.module + " connected"
+                                    + " to " + target + " after the race "
+                                    + "was decided");
+                        }
+
+                        close(vs, null);
+                    }
                 }
 
                 // The target has refused our connection. Since we have
@@ -1196,6 +1287,11 @@ public final class VirtualSocketFactory {
         Throwable[] exceptions = new Throwable[order.length];
 
         try {
+            if (CONNECT_STAGGER > 0 && order.length > 1) {
+                return raceClientSocket(target, order, timeouts, totalTimeout,
+                        fillTimeout, prop);
+            }
+
             int timeLeft = totalTimeout;
 
             VirtualSocket vs = null;
@@ -1218,7 +1314,7 @@ public final class VirtualSocketFactory {
 
                 try {
                     vs = createClientSocket(m, target, timeout, timeLeft,
-                            fillTimeout, prop);
+                            fillTimeout, prop, null);
                 } catch (NonFatalIOException e) {
                     // Store the exeception and continue with the next module
                     exceptions[i] = e;
@@ -1235,6 +1331,12 @@ public final class VirtualSocketFactory {
                         // so we remember this to speed up later connections.
                         clusters.succes(target, m);
                     }
+
+                    if (pathCache != null) {
+                        pathCache.succes(target, m,
+                                System.currentTimeMillis() - start);
+                    }
+
                     return vs;
                 }
 
@@ -1270,6 +1372,96 @@ public final class VirtualSocketFactory {
         }
     }
 
+    /**
+     * This method starts a connection attempt for each of the modules, each
+     * CONNECT_STAGGER ms. after the previous one (or immediately when all
+     * previous attempts have failed), and returns the first connection that is
+     * accepted. The other attempts are cancelled.
+     *
+     * @param target Target VirtualServerSocket.
+     * @param order ConnectModules in the order in which they should be started.
+     * @param timeouts Timeouts for each of the modules.
+     * @param totalTimeout Total timeout for the connection setup.
+     * @param fillTimeout Should we retry until the timeout expires ?
+     * @param prop Properties to use in connection setup.
+     * @return the VirtualSocket of the module that won the race.
+     * @throws IOException a non-transient error occurred (i.e., target port
+     * does not exist on receiver).
+     * @throws NoSuitableModuleException No module could create the connection.
+     */
+    private VirtualSocket raceClientSocket(VirtualSocketAddress target,
+            ConnectModule[] order, int[] timeouts, int totalTimeout,
+            boolean fillTimeout, Map<String, Object> prop)
+            throws IOException, NoSuitableModuleException {
+
+        ConnectRace race = new ConnectRace(order.length);
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < order.length; i++) {
+
+            int timeLeft = (int) (totalTimeout
+                    - (System.currentTimeMillis() - start));
+
+            if (timeLeft <= 0) {
+                break;
+            }
+
+            ConnectModule m = order[i];
+            int timeout = (timeouts != null ? timeouts[i] : m.getTimeout());
+
+            if (conlogger.isDebugEnabled()) {
+                conlogger.debug("Starting module " + m.module + " in race to "
+                        + target);
+            }
+
+            race.started();
+
+            ThreadPool.createNew(new ConnectAttempt(race, i, m, target,
+                    timeout, timeLeft, fillTimeout, prop), "ConnectAttempt "
+                    + m.module);
+
+            if (i < order.length - 1 && race.waitFor(CONNECT_STAGGER)) {
+                break;
+            }
+        }
+
+        race.waitFor(0);
+
+        VirtualSocket vs = race.getWinner();
+
+        if (vs != null) {
+            ConnectModule m = race.getWinningModule();
+
+            if (m != order[0]) {
+                // We managed to connect, but not with the first module,
+                // so we remember this to speed up later connections.
+                clusters.succes(target, m);
+            }
+
+            if (pathCache != null) {
+                pathCache.succes(target, m, System.currentTimeMillis() - start);
+            }
+
+            return vs;
+        }
+
+        IOException e = race.getFatal();
+
+        if (e != null) {
+            throw e;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("No suitable module found to connect to " + target);
+        }
+
+        throw new NoSuitableModuleException("No suitable module found to"
+                + " connect to " + target + " (timeouts="
+                + Arrays.toString(timeouts) + ", fillTimeout="
+                + fillTimeout + ")", getNames(order), race.getExceptions());
+    }
+
     // Distribute a given timeout over a number of modules, taking the relative
     // sizes of the default module timeouts into account.
     private int[] distributesTimeout(int timeout, int[] timeouts,
@@ -1353,6 +1545,10 @@ public final class VirtualSocketFactory {
 
         ConnectModule[] order = clusters.getOrder(target);
 
+        if (pathCache != null) {
+            order = pathCache.getOrder(target, order);
+        }
+
         int timeLeft = timeout;
         int[] timeouts = null;
 
@@ -1434,6 +1630,10 @@ public final class VirtualSocketFactory {
 
         } while (fillTimeout);
 
+        if (pathCache != null) {
+            pathCache.failed(target);
+        }
+
         if (DETAILED_EXCEPTIONS) {
             throw new NoSuitableModuleException("No suitable module found to "
                     + "connect to " + target + "(timeout=" + timeout
@@ -1698,6 +1898,10 @@ public final class VirtualSocketFactory {
         if (hub != null) {
             hub.end();
         }
+
+        if (pathCache != null) {
+            pathCache.save();
+        }
     }
 
     /**
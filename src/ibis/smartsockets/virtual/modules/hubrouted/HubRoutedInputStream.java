@@ -1,5 +1,7 @@
 package ibis.smartsockets.virtual.modules.hubrouted;
 
+import ibis.smartsockets.util.ByteRingBuffer;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -7,61 +9,78 @@ import java.net.SocketTimeoutException;
 
 public class HubRoutedInputStream extends InputStream {
 
-    private final int MINIMAL_ACK_SIZE;
+    // Amount of data that must be read before an ACK is sent. Only changes
+    // if the window is adaptive.
+    private int ackSize;
 
     private final HubRoutedVirtualSocket parent;
 
-    // Current buffer
-    private final byte [] buffer;
+    // Current buffer. The data is added by the service link receiver thread
+    // and removed by the reader, so no locking is needed.
+    private final ByteRingBuffer buffer;
 
-    // Postion in the buffer where we start reading.
-    private int startRead = 0;
+    // Amount of data which still needs to be acked.
+    private int pendingACK = 0;
 
-    // Postion in the buffer where we start writing.
-    private int startWrite = 0;
+    private final byte [] single = new byte[1];
 
-    // Amount of data in the buffer
-    private int available = 0;
+    // To indicate if we are closed.
+    private volatile boolean closed = false;
 
-    // Amount of data which still needs to be acked.
-    private int pendingACK = 0;
+    // Adaptive flow control (only used when maxWindow > 0). The window is the
+    // amount of credit the sender may use. It starts at the buffer size that
+    // was advertised in the handshake, and is set to twice the amount of data
+    // consumed per round trip (like TCP receive buffer autotuning). We grow
+    // the window by sending extra credit with an ACK, and shrink it by
+    // withholding credit from later ACKs.
+    private final int minWindow;
+    private final int maxWindow;
+    private int window;
+
+    // Credit still to be withheld after the window was shrunk.
+    private int debt = 0;
+
+    // Total credit given to the sender (initial window plus all ACKs).
+    private long granted;
 
-    // To indicate if we are (about to be) closed.
-    private boolean closePending = false;
-    private boolean closed = false;
+    // Data consumed since the start of the current measuring period.
+    private long periodStart;
+    private long periodBytes = 0;
+
+    // Round trip measurement. When an ACK is sent at 'ackTime', the sender
+    // cannot send more than 'rttMark' bytes in total until that ACK arrives.
+    // So the arrival of any data beyond the mark completes a round trip.
+    // 'received' and 'rtt' are only changed by the service link thread.
+    private long received = 0;
+    private volatile long rttMark;
+    private volatile long ackTime = 0;
+    private volatile long rtt = 0;
 
     HubRoutedInputStream(HubRoutedVirtualSocket parent, int fragmentation,
-            int bufferSize, int ackSize) {
+            int bufferSize, int ackSize, int maxBufferSize) {
 
         this.parent = parent;
-        this.buffer = new byte[bufferSize];
-        this.MINIMAL_ACK_SIZE = ackSize;
+        this.buffer = new ByteRingBuffer(bufferSize);
+        this.ackSize = ackSize;
+
+        this.minWindow = bufferSize;
+        this.maxWindow = maxBufferSize;
+        this.window = bufferSize;
+        this.granted = bufferSize;
+        this.periodStart = System.nanoTime();
 
     //    System.err.println("Buffer = " + bufferSize + ")");
     }
 
     public int read() throws IOException {
 
-        if (closed) {
-            throw new IOException("Stream closed!");
-        }
-
-        // Check how much data we can read. This will block if the buffer is
-        // emtpy, and may throw a TimeOutException
-        int avail = waitAvailable();
+        int n = read(single, 0, 1);
 
-        // If -1 is returned, the socket was closed
-        if (avail == -1) {
-            doClose();
+        if (n == -1) {
             return -1;
         }
 
-        int result = buffer[startRead];
-        startRead = (startRead + 1) % buffer.length;
-
-        decreaseAvailableAndACK(1);
-
-        return result & 255;
+        return single[0] & 255;
     }
 
     public int read(byte[] b) throws IOException {
@@ -80,141 +99,156 @@ public class HubRoutedInputStream extends InputStream {
 
         // If -1 is returned, the socket was closed
         if (avail == -1) {
-            doClose();
+            closed = true;
             return -1;
         }
 
-        // Check if there is more/less available than we need
-        int toRead = avail < len ? avail : len;
-
-        // Check if the buffer will wrap during the read
-        if (startRead + toRead <= buffer.length) {
-            // all the data can be read in one go!
-            System.arraycopy(buffer, startRead, b, off, toRead);
-            startRead = (startRead + toRead) % buffer.length;
-        } else {
-            // the buffer wraps, so read the data in two parts
-            int part = buffer.length - startRead;
-            System.arraycopy(buffer, startRead, b, off, part);
-            System.arraycopy(buffer, 0, b, off+part, toRead-part);
-            startRead = toRead-part;
-        }
+        int toRead = buffer.read(b, off, len);
+
+        pendingACK += toRead;
 
-        decreaseAvailableAndACK(toRead);
+        if (pendingACK > ackSize) {
+            sendACK();
+        }
 
         return toRead;
     }
 
-    private void decreaseAvailableAndACK(int amount) throws IOException {
+    private void sendACK() throws IOException {
 
-        synchronized (this) {
-       //     System.err.println("SEND ACK Available -= " + amount + "(" + (available - amount) + ")");
-            available -= amount;
-        }
+        int credit = pendingACK;
+        pendingACK = 0;
+
+        if (maxWindow > 0) {
 
-        pendingACK += amount;
+            credit = adaptWindow(credit);
 
-        if (pendingACK > MINIMAL_ACK_SIZE) {
-            parent.sendACK(pendingACK);
-            pendingACK = 0;
+            if (credit == 0) {
+                return;
+            }
+
+            if (ackTime == 0) {
+                rttMark = granted;
+                ackTime = System.nanoTime();
+            }
+
+            granted += credit;
         }
+
+        parent.sendACK(credit);
     }
 
-    private synchronized int waitAvailable() throws IOException {
+    // Adjusts the window to the consumption rate, and returns the credit that
+    // should be sent for the 'consumed' bytes.
+    private int adaptWindow(int consumed) {
 
-        // shortcut
-        if (available > 0) {
-            return available;
-        }
+        int credit = consumed;
 
-        long deadline = 0;
-        long timeleft = parent.getSoTimeout();
+        long now = System.nanoTime();
+        long elapsed = now - periodStart;
+        long r = rtt;
 
-        if (timeleft > 0) {
-            deadline = System.currentTimeMillis() + timeleft;
-        } else {
-            timeleft = 0;
-        }
+        periodBytes += consumed;
 
-        while (available == 0) {
+        if (r > 0 && elapsed >= r) {
 
-            if (closePending || closed) {
-                return -1;
-            }
+            double perRTT = ((double) periodBytes * r) / elapsed;
 
-            try {
-                wait(timeleft);
-            } catch (InterruptedException e) {
-                // ignore
-            }
+            int target = (int) Math.max(minWindow,
+                    Math.min(maxWindow, 2 * perRTT));
 
-            if (deadline > 0 && available == 0) {
-                timeleft = deadline - System.currentTimeMillis();
+            if (target > window) {
+                // Cancel any credit we were still withholding before we hand
+                // out any new credit.
+                int grow = target - window;
+                int cancel = Math.min(debt, grow);
 
-                if (timeleft <= 0) {
-                    throw new SocketTimeoutException("Timeout while reading " +
-                            "data");
-                }
+                window = target;
+                debt -= cancel;
+
+                // Must be done before the sender gets the extra credit!
+                buffer.ensureCapacity(window + debt);
+
+                credit += grow - cancel;
+            } else if (target < window / 2) {
+                // Only shrink if the difference is substantial, so a short
+                // hiccup in the application does not cost us the window.
+                debt += window - target;
+                window = target;
             }
+
+            ackSize = window / 4;
+
+            periodStart = now;
+            periodBytes = 0;
         }
 
-        return available;
-    }
+        if (debt > 0) {
+            int withheld = Math.min(debt, credit);
+            debt -= withheld;
+            credit -= withheld;
+        }
 
-    public synchronized int available() {
-        return available;
+        return credit;
     }
 
-    public synchronized void close() {
-        closePending = true;
+    private int waitAvailable() throws IOException {
 
-        // Wakeup anyone waiting for data
-        if (available == 0) {
-            notifyAll();
+        int avail = buffer.waitAvailable(parent.getSoTimeout());
+
+        if (avail == 0) {
+            throw new SocketTimeoutException("Timeout while reading data");
         }
+
+        return avail;
+    }
+
+    public int available() {
+        return buffer.available();
     }
 
-    private synchronized void doClose() {
-        closed = true;
+    public void close() {
+        // Wakeup anyone waiting for data
+        buffer.close();
     }
 
     public boolean closed() {
         return closed;
     }
 
-    protected final synchronized void add(int len, DataInputStream dis) throws IOException {
+    protected final void add(int len, DataInputStream dis) throws IOException {
 
         // If the flow control is working correctly, we can alway write the
         // data here!!!!
 
         // Sanity check -- remove ASAP
-        if (len > (buffer.length - available)) {
-            System.err.println("EEK: buffer overflow!! (" + len + " > " + buffer.length + " - " + available + ")");
+        if (len > buffer.free()) {
+            System.err.println("EEK: buffer overflow!! (" + len + " > "
+                    + buffer.size() + " - " + buffer.available() + ")");
             new Exception().printStackTrace(System.err);
         }
 
-        int cont = (buffer.length - startWrite);
-
-        if (cont >= len) {
-            // We can read the data in one go.
-            dis.readFully(buffer, startWrite, len);
-            startWrite = (startWrite + len) % buffer.length;
-        } else {
-            // The buffer will wrap, so read in two parts
-            dis.readFully(buffer, startWrite, cont);
-            dis.readFully(buffer, 0, len-cont);
-            startWrite = len-cont;
-        }
+        buffer.write(dis, len);
 
-     //   System.err.println("RECEIVE Available += " + len + "(" + (available + len) + ")");
+        if (maxWindow > 0) {
+            received += len;
 
-        available += len;
+            long t = ackTime;
 
-      //  System.err.println("Buffer has " + available + " bytes...");
+            if (t != 0 && received > rttMark) {
+                long sample = System.nanoTime() - t;
+                long r = rtt;
 
-        // Check if anyone could have been waiting for us...
-        if (available == len) {
-            notifyAll();
+                // Data that was held up on its way (or by the sender) only
+                // makes a sample larger, so we prefer the smaller ones.
+                if (r == 0 || sample < r) {
+                    rtt = sample;
+                } else {
+                    rtt = r + (sample - r) / 8;
+                }
+
+                ackTime = 0;
+            }
         }
     }
 }
@@ -11,15 +11,19 @@ public class HubRoutedOutputStream extends OutputStream {
     private final byte [] buffer;
     private final int size;
 
+    // Maximum number of fragments to send in one go.
+    private final int maxBatch;
+
     private int remoteBufferFree;
 
     private int used = 0;
     private boolean closed = false;
 
     HubRoutedOutputStream(HubRoutedVirtualSocket parent, int fragmentation,
-            int bufferSize) {
+            int bufferSize, int maxBatch) {
 
         this.parent = parent;
+        this.maxBatch = maxBatch;
 
         this.size = fragmentation;
         buffer = new byte[fragmentation];
@@ -46,6 +50,15 @@ public class HubRoutedOutputStream extends OutputStream {
 
         while (len > 0) {
 
+            // Whole fragments are send straight from the user's array, as
+            // many at a time as the credits allow.
+            if (used == 0 && len >= size && maxBatch > 1) {
+                int sent = flushFragments(b, off, len);
+                len -= sent;
+                off += sent;
+                continue;
+            }
+
             int space = size-used;
 
             // Data is smaller than space
@@ -67,7 +80,33 @@ public class HubRoutedOutputStream extends OutputStream {
         }
     }
 
-    private synchronized void waitForBufferSpace() throws IOException {
+    private int flushFragments(byte [] b, int off, int len)
+        throws IOException {
+
+        // Will throw an exception on timeout!
+        waitForBufferSpace(size);
+
+        int count;
+
+        synchronized (this) {
+            count = Math.min(len, remoteBufferFree) / size;
+        }
+
+        if (count > maxBatch) {
+            count = maxBatch;
+        }
+
+        parent.flush(b, off, size, count);
+
+        synchronized (this) {
+            remoteBufferFree -= count*size;
+        }
+
+        return count*size;
+    }
+
+    private synchronized void waitForBufferSpace(int needed)
+        throws IOException {
 
         long timeleft = parent.getSoTimeout();
         long deadline = 0;
@@ -76,16 +115,16 @@ public class HubRoutedOutputStream extends OutputStream {
             deadline = System.currentTimeMillis() + timeleft;
         }
 
-        while (remoteBufferFree-used < 0) {
+        while (remoteBufferFree-needed < 0) {
             try {
-        //        System.err.println("@@@@ Waiting for RemoteBuffer (" + remoteBufferFree + " - " + used + " < 0)");
+        //        System.err.println("@@@@ Waiting for RemoteBuffer (" + remoteBufferFree + " - " + needed + " < 0)");
 
                 wait(timeleft);
             } catch (InterruptedException e) {
                 // ignore
             }
 
-            if (remoteBufferFree-used >= 0) {
+            if (remoteBufferFree-needed >= 0) {
                 return;
             }
 
@@ -118,7 +157,7 @@ public class HubRoutedOutputStream extends OutputStream {
         if (used > 0) {
 
             // Will throw an exception on timeout!
-            waitForBufferSpace();
+            waitForBufferSpace(used);
 
             parent.flush(buffer, 0, used);
 
@@ -35,6 +35,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
     private final int localFragmentation;
     private final int localBufferSize;
     private final int localMinimalACKSize;
+    private final int localMaxBufferSize;
 
     private int remoteFragmentation;
     private int remoteBufferSize;
@@ -52,7 +53,8 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
     protected HubRoutedVirtualSocket(Hubrouted parent, int localFragmentation,
             int localBufferSize, int localMinimalACKSize,
-            int remoteFragmentation, int remoteBufferSize,
+            int localMaxBufferSize, int remoteFragmentation,
+            int remoteBufferSize,
             VirtualSocketAddress target, ServiceLink serviceLink,
             long connectionIndex, Map<String, ?> p) {
 
@@ -65,20 +67,22 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
         this.localFragmentation = localFragmentation;
         this.localBufferSize = localBufferSize;
         this.localMinimalACKSize = localMinimalACKSize;
+        this.localMaxBufferSize = localMaxBufferSize;
 
         this.remoteFragmentation = remoteFragmentation;
         this.remoteBufferSize = remoteBufferSize;
 
         this.out = new HubRoutedOutputStream(this, remoteFragmentation,
-                remoteBufferSize);
+                remoteBufferSize, parent.getMaxBatch());
 
         this.in = new HubRoutedInputStream(this, localFragmentation,
-                localBufferSize, localMinimalACKSize);
+                localBufferSize, localMinimalACKSize, localMaxBufferSize);
     }
 
     protected HubRoutedVirtualSocket(Hubrouted parent, int localFragmentation,
             int localBufferSize, int localMinimalACKSize,
-            VirtualSocketAddress target, ServiceLink serviceLink, Map<String, ?> p) {
+            int localMaxBufferSize, VirtualSocketAddress target,
+            ServiceLink serviceLink, Map<String, ?> p) {
 
         super(target);
 
@@ -88,6 +92,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
         this.localFragmentation = localFragmentation;
         this.localBufferSize = localBufferSize;
         this.localMinimalACKSize = localMinimalACKSize;
+        this.localMaxBufferSize = localMaxBufferSize;
     }
 
     protected void connectionAccepted(int timeout) throws IOException {
@@ -328,6 +333,26 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
                 timeout);
     }
 
+    // Sends 'count' fragments of 'len' bytes, stored back to back in buffer.
+    protected void flush(byte[] buffer, int off, int len, int count)
+        throws IOException {
+
+        long [] index = new long[count];
+        byte [][] data = new byte[count][];
+        int [] offsets = new int[count];
+        int [] lengths = new int[count];
+
+        for (int i=0;i<count;i++) {
+            index[i] = connectionIndex;
+            data[i] = buffer;
+            offsets[i] = off + i*len;
+            lengths[i] = len;
+        }
+
+        serviceLink.sendVirtualMessages(index, data, offsets, lengths, count,
+                timeout);
+    }
+
     protected void setTargetOverload() {
         gotTargetOverload = true;
     }
@@ -385,10 +410,10 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
         remoteBufferSize = buffer;
 
         out = new HubRoutedOutputStream(this, remoteFragmentation,
-                remoteBufferSize);
+                remoteBufferSize, parent.getMaxBatch());
 
         in = new HubRoutedInputStream(this, localFragmentation,
-                localBufferSize, localMinimalACKSize);
+                localBufferSize, localMinimalACKSize, localMaxBufferSize);
 
         notifyAll();
 
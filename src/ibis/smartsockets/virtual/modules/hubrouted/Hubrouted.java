@@ -34,6 +34,12 @@ public class Hubrouted extends ConnectModule
     private int localBufferSize = 1024*1024;
     private int localMinimalACKSize = localBufferSize / 4;
 
+    // Maximum window when the window is adaptive, or 0 if it is fixed.
+    private int localMaxBufferSize = 0;
+
+    // Maximum number of fragments written to the service link in one go.
+    private int maxBatch = 16;
+
     public Hubrouted() {
         super("ConnectModule(HubRouted)", true);
     }
@@ -75,10 +81,47 @@ public class Hubrouted extends ConnectModule
             localFragmentation = localBufferSize;
         }
 
+        maxBatch = properties.getIntProperty(SmartSocketsProperties.ROUTED_BATCH,
+                maxBatch);
+
+        if (maxBatch < 1) {
+            maxBatch = 1;
+        }
+
+        if (properties.booleanProperty(SmartSocketsProperties.ROUTED_ADAPTIVE,
+                false)) {
+
+            // The buffer size is only the initial window, which must leave
+            // room for at least one fragment after an ACK is withheld.
+            if (localBufferSize < 2*localFragmentation) {
+                localBufferSize = 2*localFragmentation;
+            }
+
+            localMaxBufferSize = properties.getIntProperty(
+                    SmartSocketsProperties.ROUTED_MAX_BUFFER, 8*1024*1024);
+
+            if (localMaxBufferSize < localBufferSize) {
+                logger.warn("Maximum buffer size (" + localMaxBufferSize
+                        + ") is smaller than buffer size (" + localBufferSize
+                        + ") -> increasing maximum buffer size to: "
+                        + localBufferSize);
+
+                localMaxBufferSize = localBufferSize;
+            }
+
+            localMinimalACKSize = localBufferSize / 4;
+        }
+
         if (logger.isInfoEnabled()) {
             logger.info("Using local fragment size: " + localFragmentation);
             logger.info("Using local buffer size  : " + localBufferSize);
             logger.info("Using minimal ACK size  : " + localMinimalACKSize);
+            logger.info("Using batch size        : " + maxBatch);
+
+            if (localMaxBufferSize > 0) {
+                logger.info("Using adaptive window up to: "
+                        + localMaxBufferSize);
+            }
         }
     }
 
@@ -122,7 +165,7 @@ public class Hubrouted extends ConnectModule
         // it until we get a connection.
         HubRoutedVirtualSocket s = new HubRoutedVirtualSocket(this,
                  localFragmentation, localBufferSize, localMinimalACKSize,
-                 target, serviceLink, null);
+                 localMaxBufferSize, target, serviceLink, null);
 
         while (true) {
 
@@ -250,8 +293,8 @@ public class Hubrouted extends ConnectModule
 
         HubRoutedVirtualSocket s = new HubRoutedVirtualSocket(this,
                 localFragmentation, localBufferSize, localMinimalACKSize,
-                remoteFragmentation, remoteBufferSize, sa, serviceLink, index,
-                null);
+                localMaxBufferSize, remoteFragmentation, remoteBufferSize, sa,
+                serviceLink, index, null);
 
         sockets.put(index, s);
 
@@ -402,6 +445,10 @@ public class Hubrouted extends ConnectModule
         s.messageACK(data);
     }
 
+    int getMaxBatch() {
+        return maxBatch;
+    }
+
     public int getDefaultTimeout() {
         return DEFAULT_CONNECT_TIMEOUT;
     }
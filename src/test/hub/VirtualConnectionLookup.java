@@ -0,0 +1,181 @@
+package test.hub;
+
+import ibis.smartsockets.util.LongHashMap;
+
+import java.util.HashMap;
+
+/**
+ * Compares the lookup rate of the virtual connection administration in the
+ * hub. The 'string' variant mimics the old approach of a single synchronized
+ * HashMap using "prefix + index" keys. The 'long' variant uses a LongHashMap
+ * per connection, each guarded by its own lock.
+ *
+ * Each thread acts as a single hub connection, looking up its own virtual
+ * connections as fast as possible.
+ *
+ * Usage: VirtualConnectionLookup [-threads N] [-connections N] [-time ms]
+ *                                [-repeat N]
+ */
+public class VirtualConnectionLookup {
+
+    private static int threads = 1;
+    private static int connections = 64;
+    private static long time = 2000;
+    private static int repeat = 5;
+
+    private static volatile boolean stop = false;
+
+    // Prevents the JIT from removing the lookups.
+    private static volatile Object sink;
+
+    private static abstract class Worker extends Thread {
+
+        protected final String prefix;
+        protected long lookups;
+
+        Worker(int id) {
+            prefix = "192.168.0." + id + "-17878__";
+        }
+
+        abstract void init();
+        abstract Object lookup(long index);
+
+        public void run() {
+
+            Object last = null;
+            long count = 0;
+            long index = 0;
+
+            while (!stop) {
+                for (int i=0;i<1000;i++) {
+                    last = lookup(index);
+                    index = (index + 1) % connections;
+                }
+                count += 1000;
+            }
+
+            sink = last;
+            lookups = count;
+        }
+    }
+
+    private static final HashMap<String, Object> global =
+        new HashMap<String, Object>();
+
+    private static class StringWorker extends Worker {
+
+        StringWorker(int id) {
+            super(id);
+        }
+
+        void init() {
+            for (long i=0;i<connections;i++) {
+                synchronized (global) {
+                    global.put(prefix + i, new Object());
+                }
+            }
+        }
+
+        Object lookup(long index) {
+
+            String key = prefix + index;
+
+            synchronized (global) {
+                return global.get(key);
+            }
+        }
+    }
+
+    private static class LongWorker extends Worker {
+
+        private final LongHashMap<Object> table = new LongHashMap<Object>();
+
+        LongWorker(int id) {
+            super(id);
+        }
+
+        void init() {
+            for (long i=0;i<connections;i++) {
+                synchronized (table) {
+                    table.put(i, new Object());
+                }
+            }
+        }
+
+        Object lookup(long index) {
+            synchronized (table) {
+                return table.get(index);
+            }
+        }
+    }
+
+    private static double run(boolean useLong) throws InterruptedException {
+
+        Worker [] workers = new Worker[threads];
+
+        global.clear();
+
+        for (int i=0;i<threads;i++) {
+            if (useLong) {
+                workers[i] = new LongWorker(i);
+            } else {
+                workers[i] = new StringWorker(i);
+            }
+
+            workers[i].init();
+        }
+
+        stop = false;
+
+        long start = System.currentTimeMillis();
+
+        for (int i=0;i<threads;i++) {
+            workers[i].start();
+        }
+
+        Thread.sleep(time);
+
+        stop = true;
+
+        long total = 0;
+
+        for (int i=0;i<threads;i++) {
+            workers[i].join();
+            total += workers[i].lookups;
+        }
+
+        long end = System.currentTimeMillis();
+
+        return (1000.0 * total) / (end - start);
+    }
+
+    public static void main(String [] args) throws InterruptedException {
+
+        for (int i=0;i<args.length;i++) {
+            if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-connections")) {
+                connections = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-time")) {
+                time = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-repeat")) {
+                repeat = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        System.out.println("Threads: " + threads + ", virtual connections "
+                + "per thread: " + connections);
+
+        for (int r=0;r<repeat;r++) {
+
+            double s = run(false);
+            double l = run(true);
+
+            System.out.printf("string keys: %.0f lookups/s, long keys: %.0f "
+                    + "lookups/s (%.1fx)\n", s, l, l / s);
+        }
+    }
+}
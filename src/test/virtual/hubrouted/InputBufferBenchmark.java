@@ -0,0 +1,254 @@
+package test.virtual.hubrouted;
+
+import ibis.smartsockets.util.ByteRingBuffer;
+
+/**
+ * Compares the lock-free ring buffer used by the hub routed input streams
+ * with the monitor based buffer it replaced.
+ *
+ * One producer thread adds fragments (like the hub connection reader does)
+ * and one consumer thread reads them (like the application does). We measure
+ * the number of fragments per second that can be moved through the buffer,
+ * and the time it takes to wake up a consumer that is waiting for data.
+ */
+public class InputBufferBenchmark {
+
+    private static int bufferSize = 64*1024;
+    private static int fragmentSize = 8*1024;
+    private static int readSize = 8*1024;
+    private static int fragments = 1000000;
+    private static int wakeups = 1000;
+    private static int repeat = 5;
+
+    private interface Buffer {
+        int free();
+        void add(byte [] b, int len);
+        int read(byte [] b, int off, int len);
+    }
+
+    // The buffer as it used to be implemented in HubRoutedInputStream.
+    private static class MonitorBuffer implements Buffer {
+
+        private final byte [] buffer = new byte[bufferSize];
+
+        private int used = 0;
+        private int available = 0;
+
+        public synchronized int free() {
+            return buffer.length - available;
+        }
+
+        public synchronized void add(byte [] b, int len) {
+
+            int start = (used + available) % buffer.length;
+
+            if (start + len <= buffer.length) {
+                System.arraycopy(b, 0, buffer, start, len);
+            } else {
+                int cont = buffer.length - start;
+                System.arraycopy(b, 0, buffer, start, cont);
+                System.arraycopy(b, cont, buffer, 0, len-cont);
+            }
+
+            available += len;
+            notifyAll();
+        }
+
+        private synchronized int waitAvailable() {
+
+            while (available == 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            return available;
+        }
+
+        public int read(byte [] b, int off, int len) {
+
+            waitAvailable();
+
+            synchronized (this) {
+
+                int toRead = Math.min(len, available);
+
+                if (used + toRead <= buffer.length) {
+                    System.arraycopy(buffer, used, b, off, toRead);
+                } else {
+                    int part = buffer.length - used;
+                    System.arraycopy(buffer, used, b, off, part);
+                    System.arraycopy(buffer, 0, b, off+part, toRead-part);
+                }
+
+                used = (used + toRead) % buffer.length;
+                available -= toRead;
+                return toRead;
+            }
+        }
+    }
+
+    private static class RingBuffer implements Buffer {
+
+        private final ByteRingBuffer buffer = new ByteRingBuffer(bufferSize);
+
+        public int free() {
+            return buffer.free();
+        }
+
+        public void add(byte [] b, int len) {
+            buffer.write(b, 0, len);
+        }
+
+        public int read(byte [] b, int off, int len) {
+            buffer.waitAvailable(0);
+            return buffer.read(b, off, len);
+        }
+    }
+
+    private static Buffer create(boolean ring) {
+        if (ring) {
+            return new RingBuffer();
+        } else {
+            return new MonitorBuffer();
+        }
+    }
+
+    // Written by the producer just before adding a fragment.
+    private static volatile long sendTime;
+
+    // Number of fragments received by the consumer.
+    private static volatile int received;
+
+    private static double throughput(boolean ring) throws InterruptedException {
+
+        final Buffer buffer = create(ring);
+        final long total = (long) fragments * fragmentSize;
+
+        Thread consumer = new Thread() {
+            public void run() {
+                byte [] b = new byte[readSize];
+                long left = total;
+
+                while (left > 0) {
+                    left -= buffer.read(b, 0, b.length);
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+
+        consumer.start();
+
+        byte [] fragment = new byte[fragmentSize];
+
+        for (int i=0;i<fragments;i++) {
+
+            // In the real stream the credits returned by the consumer
+            // prevent us from overflowing the buffer.
+            while (buffer.free() < fragmentSize) {
+                Thread.yield();
+            }
+
+            buffer.add(fragment, fragmentSize);
+        }
+
+        consumer.join();
+
+        long end = System.nanoTime();
+
+        return (1000000000.0 * fragments) / (end - start);
+    }
+
+    private static double wakeup(boolean ring) throws InterruptedException {
+
+        final Buffer buffer = create(ring);
+        final long [] latency = new long[wakeups];
+
+        received = 0;
+
+        Thread consumer = new Thread() {
+            public void run() {
+                byte [] b = new byte[readSize];
+
+                for (int i=0;i<wakeups;i++) {
+                    buffer.read(b, 0, b.length);
+                    latency[i] = System.nanoTime() - sendTime;
+                    received = i+1;
+                }
+            }
+        };
+
+        consumer.start();
+
+        byte [] fragment = new byte[1];
+
+        for (int i=0;i<wakeups;i++) {
+
+            // Give the consumer time to block.
+            Thread.sleep(1);
+
+            sendTime = System.nanoTime();
+            buffer.add(fragment, 1);
+
+            while (received <= i) {
+                Thread.yield();
+            }
+        }
+
+        consumer.join();
+
+        long sum = 0;
+
+        for (long l : latency) {
+            sum += l;
+        }
+
+        return sum / (1000.0 * wakeups);
+    }
+
+    public static void main(String [] args) throws InterruptedException {
+
+        for (int i=0;i<args.length;i++) {
+            if (args[i].equals("-buffer")) {
+                bufferSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-fragment")) {
+                fragmentSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-read")) {
+                readSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-fragments")) {
+                fragments = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-wakeups")) {
+                wakeups = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-repeat")) {
+                repeat = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (fragmentSize > bufferSize) {
+            System.err.println("Fragment does not fit in buffer!");
+            System.exit(1);
+        }
+
+        System.out.println("Buffer: " + bufferSize + ", fragment: "
+                + fragmentSize + ", read: " + readSize);
+
+        for (int r=0;r<repeat;r++) {
+
+            double m = throughput(false);
+            double l = throughput(true);
+
+            double mw = wakeup(false);
+            double lw = wakeup(true);
+
+            System.out.printf("monitor: %.0f fragments/s, wakeup %.1f us, "
+                    + "ring: %.0f fragments/s, wakeup %.1f us (%.1fx)\n",
+                    m, mw, l, lw, l / m);
+        }
+    }
+}
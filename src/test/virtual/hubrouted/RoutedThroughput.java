@@ -0,0 +1,156 @@
+package test.virtual.hubrouted;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.virtual.InitializationException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Properties;
+
+/**
+ * Variant of test.virtual.simple.Throughput that forces the data through the
+ * hub, and compares the throughput for different batch sizes of the hubrouted
+ * module (see SmartSocketsProperties.ROUTED_BATCH).
+ *
+ * Both sides of the connection run in this process, so only a hub is needed:
+ *
+ *   RoutedThroughput -hub <hub address> [-batch 1,4,16] [-size n] ...
+ */
+public class RoutedThroughput {
+
+    private static int TIMEOUT = 15000;
+
+    private static int count = 100;
+    private static int repeat = 5;
+    private static int size = 1024*1024;
+
+    private static String hub;
+    private static String batches = "1,16";
+
+    private static VirtualSocketFactory create(String batch)
+        throws InitializationException {
+
+        Properties p = new Properties();
+        p.put(SmartSocketsProperties.HUB_ADDRESSES, hub);
+        p.put(SmartSocketsProperties.MODULES_DEFINE, "hubrouted");
+        p.put(SmartSocketsProperties.MODULES_ORDER, "hubrouted");
+        p.put(SmartSocketsProperties.ROUTED_BATCH, batch);
+
+        return VirtualSocketFactory.createSocketFactory(p, true);
+    }
+
+    private static void server(VirtualServerSocket ss) {
+
+        try {
+            VirtualSocket s = ss.accept();
+
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+            byte [] data = new byte[size];
+
+            for (int r=0;r<repeat;r++) {
+                for (int i=0;i<count;i++) {
+                    in.readFully(data);
+                }
+
+                out.write((byte) 42);
+                out.flush();
+            }
+
+            VirtualSocketFactory.close(s, out, in);
+        } catch (Exception e) {
+            System.out.println("Server got exception " + e);
+        }
+    }
+
+    private static void run(String batch) throws Exception {
+
+        VirtualSocketFactory serverFactory = create(batch);
+        VirtualSocketFactory clientFactory = create(batch);
+
+        final VirtualServerSocket ss = serverFactory.createServerSocket(0, 0,
+                null);
+
+        Thread t = new Thread() {
+            public void run() {
+                server(ss);
+            }
+        };
+
+        t.start();
+
+        VirtualSocket s = clientFactory.createClientSocket(
+                ss.getLocalSocketAddress(), TIMEOUT, null);
+
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+        byte [] data = new byte[size];
+
+        for (int r=0;r<repeat;r++) {
+
+            long time = System.currentTimeMillis();
+
+            for (int i=0;i<count;i++) {
+                out.write(data);
+                out.flush();
+            }
+
+            in.read();
+
+            time = System.currentTimeMillis() - time;
+
+            double tp = (1000.0 * size * count) / (1024.0*1024.0*time);
+
+            System.out.printf("batch %s: test took %d ms. Througput = %4.1f "
+                    + "MByte/s\n", batch, time, tp);
+        }
+
+        VirtualSocketFactory.close(s, out, in);
+
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            // ignore
+        }
+
+        ss.close();
+        clientFactory.end();
+        serverFactory.end();
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        for (int i=0;i<args.length;i++) {
+            if (args[i].equals("-hub")) {
+                hub = args[++i];
+            } else if (args[i].equals("-batch")) {
+                batches = args[++i];
+            } else if (args[i].equals("-size")) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-count")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-repeat")) {
+                repeat = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (hub == null) {
+            System.err.println("No hub specified!");
+            System.exit(1);
+        }
+
+        for (String batch : batches.split(",")) {
+            run(batch);
+        }
+
+        System.exit(0);
+    }
+}